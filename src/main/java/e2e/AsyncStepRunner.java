@@ -0,0 +1,222 @@
+package e2e;
+
+import e2e.EToE.Command;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 以接續 (continuation) 的方式執行步驟: sleep 用計時器排程下一步, 等待類指令每次只檢查一次, 不成立就排程下一次檢查
+// set field 要等 select 的 option 時也一樣, 先以檢查排程等到 option 出現, 之後才真的輸入
+// 執行緒只在真正呼叫 WebDriver 時才被佔用, 少量執行緒就能推動大量大部分時間在等待的 session
+public final class AsyncStepRunner implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncStepRunner.class);
+
+    private final ScheduledExecutorService carriers;
+
+    public AsyncStepRunner(ScheduledExecutorService carriers) {
+        this.carriers = carriers;
+    }
+
+    public ScheduledExecutorService getCarriers() {
+        return carriers;
+    }
+
+    public CompletableFuture<Void> run(WebDriver webDriver, CommandPlan commandPlan, int fromLine, StepTimer stepTimer,
+                                       AtomicBoolean cancelled) {
+        if (commandPlan.waitsForNetworkIdle()) {
+            NetworkIdle.register(webDriver);
+        }
+        final Execution execution = new Execution(webDriver, commandPlan.getSteps().iterator(), fromLine, stepTimer,
+                cancelled);
+        execution.schedule(execution::nextStep, 0);
+        return execution.promise;
+    }
+
+    @Override
+    public void close() {
+        carriers.shutdownNow();
+    }
+
+    private final class Execution {
+        final CompletableFuture<Void> promise = new CompletableFuture<>();
+        final WebDriver webDriver;
+        final Iterator<CommandStep> steps;
+        final int fromLine;
+        final StepTimer stepTimer;
+        final AtomicBoolean cancelled;
+        CommandStep step;
+        long stepStartNanos;
+        long waitStartNanos;
+        long deadlineNanos;
+        long pollMillis;
+        int polls;
+        WaitOptions waitOptions;
+
+        Execution(WebDriver webDriver, Iterator<CommandStep> steps, int fromLine, StepTimer stepTimer,
+                  AtomicBoolean cancelled) {
+            this.webDriver = webDriver;
+            this.steps = steps;
+            this.fromLine = fromLine;
+            this.stepTimer = stepTimer;
+            this.cancelled = cancelled;
+        }
+
+        void nextStep() {
+            if (cancelled.get()) {
+                promise.completeExceptionally(new RuntimeException("執行已取消"));
+                return;
+            }
+            step = null;
+            while (steps.hasNext()) {
+                final CommandStep candidate = steps.next();
+                // parallel 區塊的標記略過, 各分支依序執行
+                if (candidate.getLineNumber() >= fromLine && !candidate.getCommand().isBlockMarker()
+                        && !SessionState.skip(webDriver, candidate)) {
+                    step = candidate;
+                    break;
+                }
+            }
+            if (step == null) {
+                promise.complete(null);
+                return;
+            }
+            LOGGER.debug("[processCmd] 對應到的指令:{}", step.getCommand().getCmdString());
+            StepTimer.attach(stepTimer);
+            try {
+                stepStartNanos = StepTimer.beginStep();
+            } finally {
+                StepTimer.unbind();
+            }
+            final Command command = step.getCommand();
+            if (command == Command.SLEEP) {
+                schedule(() -> finishStep(null), Command.getSleepTime(step.getOptions()));
+            } else if (command.isWait() || command == Command.SET_FIELD) {
+                waitOptions = WaitOptions.of(step.getOptions());
+                waitStartNanos = System.nanoTime();
+                deadlineNanos = waitStartNanos + TimeUnit.MILLISECONDS.toNanos(waitOptions.getTimeoutMillis());
+                pollMillis = waitOptions.getMinPollMillis();
+                polls = 0;
+                poll();
+            } else if (command == Command.LOAD_STATE) {
+                loadState();
+            } else {
+                RuntimeException error = null;
+                StepTimer.attach(stepTimer);
+                try {
+                    command.executeCommand(webDriver, step);
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    StepTimer.unbind();
+                }
+                finishStep(error);
+            }
+        }
+
+        void poll() {
+            if (cancelled.get()) {
+                finishStep(new RuntimeException("執行已取消"));
+                return;
+            }
+            polls++;
+            StepTimer.attach(stepTimer);
+            try {
+                if (step.getCommand() == Command.SET_FIELD) {
+                    // 檢查沒有副作用可以重複; 輸入只在 option 都出現後做一次, 不在 probe 裡以免輸入到一半被重排
+                    Waits.probe(() -> EToE.waitSelectOptionsExist(webDriver, step));
+                    step.getCommand().executeCommand(webDriver, step);
+                } else {
+                    Waits.probe(() -> step.getCommand().executeCommand(webDriver, step));
+                }
+            } catch (Waits.NotReadyException e) {
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    finishStep(new TimeoutException(String.format("等待逾時: %s (等了 %d ms, 檢查 %d 次)", step,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStartNanos), polls)));
+                } else {
+                    final long delay = Math.min(pollMillis, remainingMillis);
+                    pollMillis = Math.min(waitOptions.getMaxPollMillis(), Math.max(pollMillis + 1, pollMillis * 3 / 2));
+                    schedule(this::poll, delay);
+                }
+                return;
+            } catch (RuntimeException e) {
+                finishStep(e);
+                return;
+            } finally {
+                StepTimer.unbind();
+            }
+            finishStep(null);
+        }
+
+        // 其他 session 正在登入同一個 key 時不佔住執行緒等待, 等它結束再試一次
+        void loadState() {
+            if (cancelled.get()) {
+                finishStep(new RuntimeException("執行已取消"));
+                return;
+            }
+            final CompletableFuture<?> login;
+            StepTimer.attach(stepTimer);
+            try {
+                login = SessionState.tryLoad(webDriver, step.getOption(SessionState.KEY_OPTION));
+            } catch (RuntimeException e) {
+                finishStep(e);
+                return;
+            } finally {
+                StepTimer.unbind();
+            }
+            if (login == null) {
+                finishStep(null);
+            } else {
+                login.whenComplete((snapshot, error) -> schedule(this::loadState, 0));
+            }
+        }
+
+        void finishStep(RuntimeException error) {
+            StepTimer.attach(stepTimer);
+            try {
+                if (step.getCommand().isWait() || step.getCommand() == Command.SET_FIELD) {
+                    StepTimer.recordWait(System.nanoTime() - waitStartNanos, polls);
+                }
+                StepTimer.endStep(step, stepStartNanos, error);
+                if (error != null && !cancelled.get()) {
+                    FailureArtifacts.capture(webDriver, StepTimer.currentRunFileName(), step, error);
+                }
+            } finally {
+                StepTimer.unbind();
+            }
+            if (error != null) {
+                EToE.logStepFailed(step);
+                promise.completeExceptionally(error);
+            } else {
+                schedule(this::nextStep, 0);
+            }
+        }
+
+        void schedule(Runnable continuation, long delayMillis) {
+            final Runnable guarded = () -> {
+                try {
+                    continuation.run();
+                } catch (RuntimeException e) {
+                    promise.completeExceptionally(e);
+                }
+            };
+            try {
+                if (delayMillis <= 0) {
+                    carriers.execute(guarded);
+                } else {
+                    carriers.schedule(guarded, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException e) {
+                promise.completeExceptionally(e);
+            }
+        }
+    }
+}
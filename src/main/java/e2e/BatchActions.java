@@ -0,0 +1,105 @@
+package e2e;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+// click / set field 的批次模式: 找元素和操作在同一次 executeScript 完成, 不用每個元素來回呼叫 chromedriver
+// 文字欄位逐字觸發 keydown/keypress/input/keyup (事件的 isTrusted 為 false), 預設關閉.
+// file input、還沒有對應 option 的 select, 以及停用、唯讀或看不到的文字欄位交回逐一處理, 和 sendKeys 一樣會失敗
+public final class BatchActions {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchActions.class);
+
+    private static final String BATCH_SCRIPT = "var byType=arguments[0],search=arguments[1],elements=arguments[2],"
+            + "action=arguments[3],value=arguments[4];"
+            + "function locate(){if(elements){return elements;}var list=[],nodes,i;"
+            + "switch(byType){"
+            + "case 'cssSelector':nodes=document.querySelectorAll(search);break;"
+            + "case 'id':nodes=document.querySelectorAll('#'+CSS.escape(search));break;"
+            + "case 'name':nodes=document.querySelectorAll('[name=\"'+CSS.escape(search)+'\"]');break;"
+            + "case 'tagName':nodes=document.getElementsByTagName(search);break;"
+            + "case 'xpath':var r=document.evaluate(search,document,null,XPathResult.ORDERED_NODE_SNAPSHOT_TYPE,null);"
+            + "for(i=0;i<r.snapshotLength;i++){list.push(r.snapshotItem(i));}return list;"
+            + "default:return list;}"
+            + "for(i=0;i<nodes.length;i++){list.push(nodes[i]);}return list;}"
+            + "function fire(el,name){el.dispatchEvent(new Event(name,{bubbles:true}));}"
+            + "function key(el,name,c){return el.dispatchEvent(new KeyboardEvent(name,{key:c,bubbles:true,cancelable:true}));}"
+            + "function visible(el){return !!(el.offsetWidth||el.offsetHeight||el.getClientRects().length)"
+            + "&&getComputedStyle(el).visibility!=='hidden';}"
+            + "function setNativeValue(el,v){var d=Object.getOwnPropertyDescriptor(Object.getPrototypeOf(el),'value');"
+            + "if(d&&d.set){d.set.call(el,v);}else{el.value=v;}}"
+            // 和 clear + sendKeys 一樣先清空再逐字輸入, keydown/keypress 被取消或超過 maxlength 的字不輸入
+            + "function typeValue(el,v){el.focus();setNativeValue(el,'');fire(el,'input');"
+            + "for(var k=0;k<v.length;k++){var c=v.charAt(k);"
+            + "if(key(el,'keydown',c)&&key(el,'keypress',c)&&!(el.maxLength>=0&&el.value.length>=el.maxLength)){"
+            + "setNativeValue(el,el.value+c);el.dispatchEvent(new InputEvent('input',{bubbles:true,data:c,inputType:'insertText'}));}"
+            + "key(el,'keyup',c);}"
+            + "fire(el,'change');}"
+            + "var list=locate(),fallback=[],done=0;"
+            + "for(var i=0;i<list.length;i++){var el=list[i];"
+            + "if(action==='click'){el.click();done++;continue;}"
+            + "var tag=el.tagName.toLowerCase();"
+            + "if(tag==='select'){var matched=false;"
+            + "for(var j=0;j<el.options.length;j++){if(el.options[j].value===value){el.options[j].selected=true;matched=true;}}"
+            + "if(matched){fire(el,'input');fire(el,'change');done++;}else{fallback.push(el);}"
+            + "}else if(tag==='input'){var type=(el.type||'').toLowerCase();"
+            + "if(type==='file'){fallback.push(el);}"
+            + "else if(type==='tel'||type==='text'||type==='password'){"
+            + "if(el.disabled||el.readOnly||!visible(el)){fallback.push(el);}else{typeValue(el,value);done++;}}"
+            + "else if(type==='radio'){if(el.value===value){el.click();}done++;}"
+            + "else if(type==='checkbox'){el.click();done++;}}}"
+            + "return {count:list.length,done:done,fallback:fallback};";
+
+    // 頁面上直接找元素的方式, 和 Selenium 的 By 結果相同; 其他 (className / linkText / partialLinkText) 先用 Selenium 找
+    private static final Set<String> SCRIPT_LOCATORS = new HashSet<>(Arrays.asList("cssSelector", "id", "name",
+            "tagName", "xpath"));
+
+    private static volatile boolean enabled = false;
+
+    private BatchActions() {
+    }
+
+    public static void configure(Properties properties) {
+        enabled = EToE.getBooleanProperty(properties, "batch.enabled", enabled);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // elements 不為 null 時直接用已找到的元素, 否則在頁面上依 byType/search 找
+    public static int click(WebDriver webDriver, String byType, String search, List<WebElement> elements) {
+        return ((Number) execute(webDriver, byType, search, elements, "click", null).get("count")).intValue();
+    }
+
+    // 回傳需要逐一處理的元素
+    @SuppressWarnings("unchecked")
+    public static List<WebElement> setValue(WebDriver webDriver, String byType, String search,
+                                            List<WebElement> elements, String value) {
+        final Object fallback = execute(webDriver, byType, search, elements, "set", value).get("fallback");
+        return fallback == null ? Collections.emptyList() : (List<WebElement>) fallback;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> execute(WebDriver webDriver, String byType, String search,
+                                               List<WebElement> elements, String action, String value) {
+        if (elements == null && !SCRIPT_LOCATORS.contains(byType)) {
+            elements = webDriver.findElements(EToE.Command.getByCondition(byType, search));
+        }
+        final Map<String, Object> result = (Map<String, Object>) ((JavascriptExecutor) webDriver)
+                .executeScript(BATCH_SCRIPT, byType, search, elements, action, value);
+        LOGGER.debug("[batch] {} 找到 {} 個元素, 完成 {} 個, 需逐一處理 {} 個", action, result.get("count"),
+                result.get("done"), result.get("fallback") == null ? 0 : ((List<?>) result.get("fallback")).size());
+        return result;
+    }
+}
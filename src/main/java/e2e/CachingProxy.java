@@ -0,0 +1,634 @@
+package e2e;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// 所有瀏覽器共用的 HTTP 快取 proxy, 同一份 JS/CSS/圖片只向受測系統下載一次
+// 只快取 GET 且 200、網址符合 proxy.cache.patterns 的回應; 先放記憶體, 超過上限依 LRU 移到磁碟, 磁碟也滿了就丟掉最久沒用的
+// HTTPS 走 CONNECT 通道直接轉送, 不解密也不快取
+public final class CachingProxy implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingProxy.class);
+
+    private static final String CACHE_HEADER = "X-E2E-Cache";
+    // 只在單一連線上有意義, 不轉送
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+            "upgrade", "content-length", "host"));
+
+    private final String advertiseHost;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executorService;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final long ttlMillis;
+    private final long maxEntryBytes;
+    private final long memoryLimitBytes;
+    private final long diskLimitBytes;
+    private final File diskDir;
+    private final int timeoutMillis;
+    private final Map<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private long memoryBytes;
+    private long diskBytes;
+    private volatile boolean closed;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncacheable = new LongAdder();
+    private final LongAdder tunnels = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder cachedBytesServed = new LongAdder();
+
+    public CachingProxy(Properties properties) {
+        // 預設 HttpURLConnection 會默默丟掉 Origin 等標頭, 轉送瀏覽器的請求需要原樣送出
+        if (System.getProperty("sun.net.http.allowRestrictedHeaders") == null) {
+            System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+        }
+        final String bindAddress = properties.getProperty("proxy.bind.address", "127.0.0.1").trim();
+        this.advertiseHost = properties.getProperty("proxy.advertise.host", bindAddress).trim();
+        this.includes = globs(properties.getProperty("proxy.cache.patterns",
+                "*.js,*.mjs,*.css,*.png,*.jpg,*.jpeg,*.gif,*.svg,*.webp,*.ico,*.woff,*.woff2,*.ttf"));
+        this.excludes = globs(properties.getProperty("proxy.cache.exclude", ""));
+        this.ttlMillis = EToE.getIntProperty(properties, "proxy.cache.ttl.seconds", 3600) * 1000L;
+        this.maxEntryBytes = EToE.getIntProperty(properties, "proxy.cache.max.entry.mb", 16) * 1024L * 1024;
+        this.memoryLimitBytes = EToE.getIntProperty(properties, "proxy.cache.memory.mb", 256) * 1024L * 1024;
+        this.diskLimitBytes = EToE.getIntProperty(properties, "proxy.cache.disk.mb", 0) * 1024L * 1024;
+        this.timeoutMillis = EToE.getIntProperty(properties, "proxy.upstream.timeout.seconds", 30) * 1000;
+        try {
+            this.diskDir = diskLimitBytes > 0 ? Files.createTempDirectory("e2e-proxy-cache-").toFile() : null;
+            this.serverSocket = new ServerSocket(EToE.getIntProperty(properties, "proxy.port", 0), 256,
+                    InetAddress.getByName(bindAddress));
+        } catch (IOException e) {
+            throw new UncheckedIOException("無法啟動快取 proxy:" + bindAddress, e);
+        }
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executorService = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "caching-proxy-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executorService.execute(this::accept);
+        LOGGER.info("[proxy] 快取 proxy 啟動於 {}, 記憶體 {}MB, 磁碟 {}MB", getAddress(), memoryLimitBytes / 1024 / 1024,
+                diskLimitBytes / 1024 / 1024);
+    }
+
+    // 給瀏覽器 --proxy-server 用的 host:port
+    public String getAddress() {
+        return advertiseHost + ":" + serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executorService.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.warn("[proxy] 接受連線失敗", e);
+                }
+            }
+        }
+    }
+
+    // 一條連線可以連續處理多個請求 (keep-alive), 直到瀏覽器關閉或閒置逾時
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setSoTimeout(60_000);
+            final InputStream in = new BufferedInputStream(client.getInputStream());
+            final OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            while (!closed) {
+                final String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                final String[] parts = requestLine.split(" ");
+                final List<String[]> headers = readHeaders(in);
+                if (parts.length != 3) {
+                    writeError(out, 400, "Bad Request", "無法解析的請求:" + requestLine);
+                    return;
+                }
+                if ("CONNECT".equals(parts[0])) {
+                    tunnel(client, in, out, parts[1]);
+                    return;
+                }
+                final byte[] body = readBody(in, headers);
+                final boolean keepAlive = "HTTP/1.1".equals(parts[2])
+                        && !"close".equalsIgnoreCase(header(headers, "Connection"))
+                        && !"close".equalsIgnoreCase(header(headers, "Proxy-Connection"));
+                handle(parts[0], parts[1], headers, body, out);
+                out.flush();
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            LOGGER.trace("[proxy] 連線閒置結束", e);
+        } catch (IOException e) {
+            LOGGER.debug("[proxy] 連線中斷", e);
+        }
+    }
+
+    private void handle(String method, String uri, List<String[]> headers, byte[] body, OutputStream out)
+            throws IOException {
+        requests.increment();
+        if (!uri.startsWith("http://")) {
+            writeError(out, 400, "Bad Request", "proxy 只接受絕對網址:" + uri);
+            return;
+        }
+        if (!"GET".equals(method) || !isCacheable(uri)) {
+            uncacheable.increment();
+            forward(method, uri, headers, body, out, null);
+            return;
+        }
+        final String key = uri + " " + header(headers, "Accept-Encoding");
+        final Entry cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            writeEntry(out, cached);
+            return;
+        }
+        final CompletableFuture<Entry> fetch = new CompletableFuture<>();
+        final CompletableFuture<Entry> pending = inFlight.putIfAbsent(key, fetch);
+        if (pending != null) {
+            // 同一個檔案已經有別的 session 在下載, 等它完成就好, 不必再向受測系統要一次
+            final Entry shared = pending.handle((entry, error) -> entry).join();
+            if (shared != null) {
+                hits.increment();
+                coalesced.increment();
+                writeEntry(out, shared);
+                return;
+            }
+            misses.increment();
+            forward(method, uri, headers, body, out, null);
+            return;
+        }
+        misses.increment();
+        Entry fetched = null;
+        try {
+            fetched = forward(method, uri, headers, body, out, key);
+        } finally {
+            fetch.complete(fetched);
+            inFlight.remove(key, fetch);
+        }
+    }
+
+    private boolean isCacheable(String uri) {
+        final int query = uri.indexOf('?');
+        final String path = query < 0 ? uri : uri.substring(0, query);
+        return includes.stream().anyMatch(pattern -> pattern.matcher(path).matches())
+                && excludes.stream().noneMatch(pattern -> pattern.matcher(uri).matches());
+    }
+
+    // 向受測系統取回應並寫給瀏覽器; key 不為 null 且回應可以快取時存起來並回傳
+    private Entry forward(String method, String uri, List<String[]> headers, byte[] body, OutputStream out,
+                          String key) throws IOException {
+        final HttpURLConnection connection;
+        final int status;
+        try {
+            connection = (HttpURLConnection) new URL(uri).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestMethod(method);
+            for (String[] header : headers) {
+                if (!HOP_BY_HOP.contains(header[0].toLowerCase(Locale.ROOT))) {
+                    connection.addRequestProperty(header[0], header[1]);
+                }
+            }
+            if (body.length > 0) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream upstream = connection.getOutputStream()) {
+                    upstream.write(body);
+                }
+            }
+            status = connection.getResponseCode();
+        } catch (IOException | RuntimeException e) {
+            errors.increment();
+            LOGGER.debug("[proxy] 轉送 {} {} 失敗", method, uri, e);
+            writeError(out, 502, "Bad Gateway", "proxy 無法連到受測系統:" + e.getMessage());
+            return null;
+        }
+        final List<String[]> responseHeaders = new ArrayList<>();
+        String contentLength = null;
+        for (int i = 1; connection.getHeaderFieldKey(i) != null; i++) {
+            final String name = connection.getHeaderFieldKey(i);
+            if ("content-length".equalsIgnoreCase(name)) {
+                contentLength = connection.getHeaderField(i);
+            } else if (!HOP_BY_HOP.contains(name.toLowerCase(Locale.ROOT))) {
+                responseHeaders.add(new String[]{name, connection.getHeaderField(i)});
+            }
+        }
+        final String reason = connection.getResponseMessage() == null ? "" : connection.getResponseMessage();
+        if ("HEAD".equals(method) || status == 204 || status == 304 || status < 200) {
+            writeHead(out, status, reason, responseHeaders, "BYPASS",
+                    contentLength == null ? null : "Content-Length: " + contentLength);
+            connection.disconnect();
+            return null;
+        }
+        final boolean storable = key != null && status == 200 && isStorable(responseHeaders);
+        try (InputStream upstream = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final boolean complete = upstream == null
+                    || IOUtils.copyLarge(upstream, buffer, 0, maxEntryBytes + 1) <= maxEntryBytes;
+            if (complete) {
+                final byte[] responseBody = buffer.toByteArray();
+                writeHead(out, status, reason, responseHeaders, key == null ? "BYPASS" : "MISS",
+                        "Content-Length: " + responseBody.length);
+                out.write(responseBody);
+                if (!storable) {
+                    return null;
+                }
+                final Entry entry = new Entry(status, reason, responseHeaders, responseBody,
+                        System.currentTimeMillis() + ttlMillis);
+                store(key, entry);
+                return entry;
+            }
+            // 太大的回應不快取, 邊讀邊以 chunked 寫給瀏覽器
+            writeHead(out, status, reason, responseHeaders, "BYPASS", "Transfer-Encoding: chunked");
+            writeChunk(out, buffer.toByteArray(), buffer.size());
+            final byte[] chunk = new byte[64 * 1024];
+            int read;
+            while ((read = upstream.read(chunk)) > 0) {
+                writeChunk(out, chunk, read);
+            }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            return null;
+        }
+    }
+
+    private static boolean isStorable(List<String[]> headers) {
+        final String cacheControl = header(headers, "Cache-Control").toLowerCase(Locale.ROOT);
+        return !cacheControl.contains("no-store") && !cacheControl.contains("private")
+                && header(headers, "Set-Cookie").isEmpty() && !"*".equals(header(headers, "Vary").trim());
+    }
+
+    private Entry lookup(String key) {
+        final long now = System.currentTimeMillis();
+        final DiskEntry diskEntry;
+        synchronized (this) {
+            final Entry entry = memory.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    cachedBytesServed.add(entry.body.length);
+                    return entry;
+                }
+                memory.remove(key);
+                memoryBytes -= entry.size();
+            }
+            diskEntry = disk.get(key);
+            if (diskEntry == null) {
+                return null;
+            }
+            if (diskEntry.expiresAt <= now) {
+                disk.remove(key);
+                diskBytes -= diskEntry.size;
+                FileUtils.deleteQuietly(diskEntry.file);
+                return null;
+            }
+        }
+        try {
+            final Entry entry = Entry.read(diskEntry.file);
+            diskHits.increment();
+            cachedBytesServed.add(entry.body.length);
+            return entry;
+        } catch (IOException e) {
+            // 檔案可能剛好被 LRU 刪掉, 當成沒有快取
+            LOGGER.debug("[proxy] 讀取磁碟快取失敗:{}", diskEntry.file, e);
+            return null;
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        final List<Map.Entry<String, Entry>> spilled = new ArrayList<>();
+        synchronized (this) {
+            final Entry previous = memory.put(key, entry);
+            memoryBytes += entry.size() - (previous == null ? 0 : previous.size());
+            final Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > memoryLimitBytes && eldest.hasNext()) {
+                final Map.Entry<String, Entry> evicted = eldest.next();
+                eldest.remove();
+                memoryBytes -= evicted.getValue().size();
+                spilled.add(evicted);
+            }
+        }
+        for (Map.Entry<String, Entry> evicted : spilled) {
+            if (diskDir == null) {
+                evictions.increment();
+            } else {
+                spill(evicted.getKey(), evicted.getValue());
+            }
+        }
+    }
+
+    private void spill(String key, Entry entry) {
+        final File file = new File(diskDir, Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString());
+        try {
+            entry.write(file);
+        } catch (IOException e) {
+            evictions.increment();
+            LOGGER.debug("[proxy] 寫入磁碟快取失敗:{}", file, e);
+            return;
+        }
+        final List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            final DiskEntry previous = disk.put(key, new DiskEntry(file, file.length(), entry.expiresAt));
+            diskBytes += file.length() - (previous == null ? 0 : previous.size);
+            final Iterator<DiskEntry> eldest = disk.values().iterator();
+            while (diskBytes > diskLimitBytes && eldest.hasNext()) {
+                final DiskEntry evicted = eldest.next();
+                eldest.remove();
+                diskBytes -= evicted.size;
+                deleted.add(evicted.file);
+            }
+        }
+        for (File deletedFile : deleted) {
+            evictions.increment();
+            FileUtils.deleteQuietly(deletedFile);
+        }
+    }
+
+    private void tunnel(Socket client, InputStream in, OutputStream out, String authority) throws IOException {
+        tunnels.increment();
+        final int separator = authority.lastIndexOf(':');
+        final String host = separator < 0 ? authority : authority.substring(0, separator);
+        final int port = separator < 0 ? 443 : Integer.parseInt(authority.substring(separator + 1));
+        try (Socket upstream = new Socket()) {
+            try {
+                upstream.connect(new InetSocketAddress(host, port), timeoutMillis);
+            } catch (IOException e) {
+                errors.increment();
+                writeError(out, 502, "Bad Gateway", "proxy 無法連到:" + authority);
+                return;
+            }
+            out.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            client.setSoTimeout(0);
+            executorService.execute(() -> {
+                try {
+                    pump(in, upstream.getOutputStream());
+                    upstream.shutdownOutput();
+                } catch (IOException e) {
+                    LOGGER.trace("[proxy] 通道關閉", e);
+                }
+            });
+            pump(upstream.getInputStream(), out);
+        }
+    }
+
+    private static void pump(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+            out.flush();
+        }
+    }
+
+    private void writeEntry(OutputStream out, Entry entry) throws IOException {
+        writeHead(out, entry.status, entry.reason, entry.headers, "HIT", "Content-Length: " + entry.body.length);
+        out.write(entry.body);
+    }
+
+    private static void writeHead(OutputStream out, int status, String reason, List<String[]> headers,
+                                  String cacheStatus, String framing) throws IOException {
+        final StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason)
+                .append("\r\n");
+        for (String[] header : headers) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        head.append(CACHE_HEADER).append(": ").append(cacheStatus).append("\r\n");
+        if (framing != null) {
+            head.append(framing).append("\r\n");
+        }
+        out.write(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void writeChunk(OutputStream out, byte[] bytes, int length) throws IOException {
+        if (length > 0) {
+            out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(bytes, 0, length);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static void writeError(OutputStream out, int status, String reason, String message) throws IOException {
+        final byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        writeHead(out, status, reason, Arrays.<String[]>asList(new String[]{"Content-Type", "text/plain; charset=UTF-8"}),
+                "BYPASS", "Content-Length: " + body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    // 讀一行 (不含 CRLF), 連線已關閉時回傳 null
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    private static List<String[]> readHeaders(InputStream in) throws IOException {
+        final List<String[]> headers = new ArrayList<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(new String[]{line.substring(0, colon).trim(), line.substring(colon + 1).trim()});
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readBody(InputStream in, List<String[]> headers) throws IOException {
+        if ("chunked".equalsIgnoreCase(header(headers, "Transfer-Encoding"))) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                body.write(IOUtils.toByteArray(in, size));
+                readLine(in);
+            }
+            readHeaders(in);
+            return body.toByteArray();
+        }
+        final String contentLength = header(headers, "Content-Length");
+        return contentLength.isEmpty() ? new byte[0] : IOUtils.toByteArray(in, Long.parseLong(contentLength));
+    }
+
+    private static String header(List<String[]> headers, String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return "";
+    }
+
+    private static List<Pattern> globs(String value) {
+        final List<Pattern> patterns = new ArrayList<>();
+        for (String glob : value.split(",")) {
+            if (!glob.trim().isEmpty()) {
+                patterns.add(Pattern.compile(("\\Q" + glob.trim() + "\\E").replace("*", "\\E.*\\Q"),
+                        Pattern.CASE_INSENSITIVE));
+            }
+        }
+        return patterns;
+    }
+
+    public void reportMetrics(RunReport runReport) {
+        final long hitCount = hits.sum();
+        final long missCount = misses.sum();
+        final double hitRatio = hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount);
+        runReport.putMetric("proxy_requests_total", requests.sum());
+        runReport.putMetric("proxy_cache_hits_total", hitCount);
+        runReport.putMetric("proxy_cache_disk_hits_total", diskHits.sum());
+        runReport.putMetric("proxy_cache_coalesced_total", coalesced.sum());
+        runReport.putMetric("proxy_cache_misses_total", missCount);
+        runReport.putMetric("proxy_uncacheable_total", uncacheable.sum());
+        runReport.putMetric("proxy_tunnels_total", tunnels.sum());
+        runReport.putMetric("proxy_cache_evictions_total", evictions.sum());
+        runReport.putMetric("proxy_errors_total", errors.sum());
+        runReport.putMetric("proxy_cache_hit_ratio", hitRatio);
+        runReport.putMetric("proxy_cache_served_bytes_total", cachedBytesServed.sum());
+        LOGGER.info("[proxy] 請求:{} 命中:{} (磁碟:{} 合併:{}) 未命中:{} 不快取:{} 通道:{} 命中率:{}%", requests.sum(), hitCount,
+                diskHits.sum(), coalesced.sum(), missCount, uncacheable.sum(), tunnels.sum(),
+                String.format("%.1f", hitRatio * 100));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        IOUtils.closeQuietly(serverSocket);
+        executorService.shutdownNow();
+        if (diskDir != null) {
+            FileUtils.deleteQuietly(diskDir);
+        }
+    }
+
+    private static final class Entry {
+        final int status;
+        final String reason;
+        final List<String[]> headers;
+        final byte[] body;
+        final long expiresAt;
+
+        Entry(int status, String reason, List<String[]> headers, byte[] body, long expiresAt) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        long size() {
+            return body.length + 64L * (headers.size() + 1);
+        }
+
+        // 先寫暫存檔再搬過去, 避免讀到寫一半的檔案
+        void write(File file) throws IOException {
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(status);
+                out.writeUTF(reason);
+                out.writeLong(expiresAt);
+                out.writeInt(headers.size());
+                for (String[] header : headers) {
+                    out.writeUTF(header[0]);
+                    out.writeUTF(header[1]);
+                }
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static Entry read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(file.toPath())))) {
+                final int status = in.readInt();
+                final String reason = in.readUTF();
+                final long expiresAt = in.readLong();
+                final int headerCount = in.readInt();
+                final List<String[]> headers = new ArrayList<>(headerCount);
+                for (int i = 0; i < headerCount; i++) {
+                    headers.add(new String[]{in.readUTF(), in.readUTF()});
+                }
+                final byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return new Entry(status, reason, headers, body, expiresAt);
+            }
+        }
+    }
+
+    private static final class DiskEntry {
+        final File file;
+        final long size;
+        final long expiresAt;
+
+        DiskEntry(File file, long size, long expiresAt) {
+            this.file = file;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
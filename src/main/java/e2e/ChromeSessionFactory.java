@@ -0,0 +1,249 @@
+package e2e;
+
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.chromium.HasCdp;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// 依 run.properties 建立 Chrome session
+// browser.mode=trimmed 時預設無頭、關掉用不到的背景功能並擋掉圖片/字型/影音, 個別設定可以再覆蓋
+public class ChromeSessionFactory implements Supplier<WebDriver>, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChromeSessionFactory.class);
+
+    public static final String MODE_DEFAULT = "default";
+    public static final String MODE_TRIMMED = "trimmed";
+
+    // 高密度執行時用不到的背景功能
+    private static final List<String> TRIMMED_FLAGS = Collections.unmodifiableList(Arrays.asList(
+            "--disable-gpu",
+            "--disable-extensions",
+            "--disable-background-networking",
+            "--disable-background-timer-throttling",
+            "--disable-backgrounding-occluded-windows",
+            "--disable-renderer-backgrounding",
+            "--disable-component-update",
+            "--disable-default-apps",
+            "--disable-sync",
+            "--disable-client-side-phishing-detection",
+            "--disable-hang-monitor",
+            "--disable-dev-shm-usage",
+            "--disable-features=Translate,OptimizationHints,MediaRouter,AutofillServerCommunication",
+            "--metrics-recording-only",
+            "--mute-audio",
+            "--no-first-run",
+            "--no-default-browser-check",
+            "--password-store=basic"));
+    private static final List<String> FONT_URLS = Arrays.asList("*.woff", "*.woff2", "*.ttf", "*.otf", "*.eot");
+    private static final List<String> MEDIA_URLS = Arrays.asList("*.mp4", "*.webm", "*.ogg", "*.mp3", "*.wav",
+            "*.m4a", "*.m3u8", "*.mpd");
+    // Chrome 執行中的鎖定檔, 複製 profile 時要略過
+    private static final String SINGLETON_PREFIX = "Singleton";
+
+    private final String mode;
+    private final boolean headless;
+    private final boolean trimmedFlags;
+    private final boolean blockImages;
+    private final List<String> blockedUrls;
+    private final String windowSize;
+    private final File profileTemplate;
+    private final List<String> extraArgs;
+    private final URL remoteUrl;
+    private final DriverResolver driverResolver;
+    private final CachingProxy cachingProxy;
+    private final Set<File> profileDirs = ConcurrentHashMap.newKeySet();
+    private volatile boolean profileTemplateReady;
+
+    public ChromeSessionFactory(Properties properties) {
+        this.mode = properties.getProperty("browser.mode", MODE_DEFAULT).trim();
+        if (!MODE_DEFAULT.equals(mode) && !MODE_TRIMMED.equals(mode)) {
+            throw new IllegalArgumentException("不支援的 browser.mode:" + mode);
+        }
+        final boolean trimmed = MODE_TRIMMED.equals(mode);
+        this.headless = EToE.getBooleanProperty(properties, "browser.headless", trimmed);
+        this.trimmedFlags = EToE.getBooleanProperty(properties, "browser.flags.trimmed", trimmed);
+        this.blockImages = EToE.getBooleanProperty(properties, "browser.block.images", trimmed);
+        final List<String> urls = new ArrayList<>();
+        if (EToE.getBooleanProperty(properties, "browser.block.fonts", trimmed)) {
+            urls.addAll(FONT_URLS);
+        }
+        if (EToE.getBooleanProperty(properties, "browser.block.media", trimmed)) {
+            urls.addAll(MEDIA_URLS);
+        }
+        this.blockedUrls = Collections.unmodifiableList(urls);
+        final String size = properties.getProperty("browser.window.size", trimmed ? "1280x800" : "").trim();
+        if (!size.isEmpty() && !size.matches("\\d+x\\d+")) {
+            throw new IllegalArgumentException("browser.window.size 格式必須是 寬x高:" + size);
+        }
+        this.windowSize = size.replace('x', ',');
+        final String template = properties.getProperty("browser.profile.template", "").trim();
+        this.profileTemplate = template.isEmpty() ? null : new File(template);
+        final List<String> args = new ArrayList<>();
+        for (String arg : properties.getProperty("browser.args", "").split(",")) {
+            if (!arg.trim().isEmpty()) {
+                args.add(arg.trim());
+            }
+        }
+        this.extraArgs = Collections.unmodifiableList(args);
+        final String remote = properties.getProperty("browser.remote.url", "").trim();
+        try {
+            this.remoteUrl = remote.isEmpty() ? null : new URL(remote);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("browser.remote.url 不是正確的網址:" + remote, e);
+        }
+        this.driverResolver = new DriverResolver(properties);
+        this.cachingProxy = EToE.getBooleanProperty(properties, "proxy.enabled", false)
+                ? new CachingProxy(properties) : null;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public ChromeOptions createOptions() {
+        final ChromeOptions chromeOptions = new ChromeOptions();
+        if (headless) {
+            chromeOptions.addArguments("--headless=new");
+        }
+        if (trimmedFlags) {
+            chromeOptions.addArguments(TRIMMED_FLAGS);
+        }
+        if (!windowSize.isEmpty()) {
+            chromeOptions.addArguments("--window-size=" + windowSize);
+        }
+        if (blockImages) {
+            final Map<String, Object> prefs = new HashMap<>();
+            prefs.put("profile.managed_default_content_settings.images", 2);
+            chromeOptions.setExperimentalOption("prefs", prefs);
+            chromeOptions.addArguments("--blink-settings=imagesEnabled=false");
+        }
+        if (cachingProxy != null) {
+            // <-loopback> 讓 localhost 上的受測系統也經過 proxy
+            chromeOptions.addArguments("--proxy-server=http://" + cachingProxy.getAddress(),
+                    "--proxy-bypass-list=<-loopback>");
+        }
+        chromeOptions.addArguments(extraArgs);
+        return chromeOptions;
+    }
+
+    @Override
+    public WebDriver get() {
+        final ChromeOptions chromeOptions = createOptions();
+        if (remoteUrl != null) {
+            // 遠端 (Selenium Grid) 不需要本機 chromedriver 與 profile 範本
+            return new RemoteWebDriver(remoteUrl, chromeOptions);
+        }
+        driverResolver.resolve();
+        File profileDir = null;
+        if (profileTemplate != null) {
+            profileDir = copyProfileTemplate();
+            chromeOptions.addArguments("--user-data-dir=" + profileDir.getAbsolutePath());
+        }
+        final WebDriver webDriver;
+        try {
+            webDriver = new ChromeDriver(chromeOptions);
+        } catch (RuntimeException e) {
+            deleteProfileDir(profileDir);
+            throw e;
+        }
+        try {
+            blockUrls(webDriver);
+            NetworkIdle.install(webDriver);
+        } catch (RuntimeException e) {
+            webDriver.quit();
+            deleteProfileDir(profileDir);
+            throw e;
+        }
+        return webDriver;
+    }
+
+    // 字型/影音沒有 Chrome 設定可以關, 用 CDP 擋掉對應的網址
+    private void blockUrls(WebDriver webDriver) {
+        if (blockedUrls.isEmpty() || !(webDriver instanceof HasCdp)) {
+            return;
+        }
+        final HasCdp hasCdp = (HasCdp) webDriver;
+        hasCdp.executeCdpCommand("Network.enable", Collections.emptyMap());
+        hasCdp.executeCdpCommand("Network.setBlockedURLs", Collections.singletonMap("urls", blockedUrls));
+    }
+
+    // 第一次使用時先開關一次瀏覽器產生 profile 範本 (first run、元件初始化都在這時做完), 之後每個 session 複製一份
+    private File copyProfileTemplate() {
+        prepareProfileTemplate();
+        try {
+            final File profileDir = Files.createTempDirectory("e2e-profile-").toFile();
+            profileDirs.add(profileDir);
+            FileUtils.copyDirectory(profileTemplate, profileDir,
+                    file -> !file.getName().startsWith(SINGLETON_PREFIX));
+            return profileDir;
+        } catch (IOException e) {
+            throw new UncheckedIOException("複製 profile 範本失敗:" + profileTemplate, e);
+        }
+    }
+
+    private synchronized void prepareProfileTemplate() {
+        if (profileTemplateReady) {
+            return;
+        }
+        final String[] existing = profileTemplate.list();
+        if (existing == null || existing.length == 0) {
+            final long start = System.currentTimeMillis();
+            driverResolver.resolve();
+            final ChromeOptions chromeOptions = createOptions();
+            chromeOptions.addArguments("--user-data-dir=" + profileTemplate.getAbsolutePath());
+            final WebDriver webDriver = new ChromeDriver(chromeOptions);
+            try {
+                webDriver.get(WebDriverPool.BLANK_PAGE);
+            } finally {
+                webDriver.quit();
+            }
+            LOGGER.info("[profile] 已建立 profile 範本 {}, 花費 {}ms", profileTemplate.getAbsolutePath(),
+                    System.currentTimeMillis() - start);
+        }
+        profileTemplateReady = true;
+    }
+
+    private void deleteProfileDir(File profileDir) {
+        if (profileDir != null) {
+            profileDirs.remove(profileDir);
+            FileUtils.deleteQuietly(profileDir);
+        }
+    }
+
+    public void reportMetrics(RunReport runReport) {
+        if (cachingProxy != null) {
+            cachingProxy.reportMetrics(runReport);
+        }
+    }
+
+    // 刪掉複製出來的 profile 並關閉 proxy, 要在所有 session 都關閉之後呼叫
+    @Override
+    public void close() {
+        for (File profileDir : new ArrayList<>(profileDirs)) {
+            deleteProfileDir(profileDir);
+        }
+        if (cachingProxy != null) {
+            cachingProxy.close();
+        }
+    }
+}
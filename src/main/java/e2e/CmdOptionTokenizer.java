@@ -0,0 +1,265 @@
+package e2e;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static e2e.EToE.APOSTROPHE;
+import static e2e.EToE.DASH_CHAR;
+import static e2e.EToE.DOUBLE_QUOTES;
+import static e2e.EToE.EMPTY_STRING;
+import static e2e.EToE.ESCAPE_CHARACTER;
+import static e2e.EToE.WHITE_SPACE_CHAR;
+
+// processCmdDetail 的單次掃描版本
+// 選項名稱與選項內容在原字串裡都是連續的, 所以只記索引範圍, 不用把每個字元放進 Stack/Deque
+// 跳脫與引號的規則和舊版解析器 (測試裡的 LegacyCmdOptionParser) 完全相同
+public final class CmdOptionTokenizer {
+    private static final String[] ASCII_KEYS = new String[128];
+
+    static {
+        for (char c = 0; c < ASCII_KEYS.length; c++) {
+            ASCII_KEYS[c] = String.valueOf(c).intern();
+        }
+    }
+
+    private CmdOptionTokenizer() {
+    }
+
+    public static Map<String, String> tokenize(CharSequence command) {
+        return tokenize(command, 0, command.length());
+    }
+
+    public static Map<String, String> tokenize(CharSequence command, int from, int to) {
+        final Map<String, String> outCome = new HashMap<>();
+        tokenize(command, from, to, outCome, new StringBuilder());
+        return outCome;
+    }
+
+    private static void tokenize(CharSequence command, int from, int to, Map<String, String> outCome,
+                                 StringBuilder buffer) {
+        boolean hasGoDash = false;
+        boolean isAfterOption = false;
+        boolean isQuotes = false;
+        char quotesChar = 0;
+        int keyStart = -1;// 左邊, 選項名稱範圍 [keyStart, keyEnd)
+        int keyEnd = -1;
+        int valueStart = -1;// 右邊, 選項內容從 valueStart 到目前位置, -1 代表還沒有內容
+
+        for (int i = from; i < to; i++) {
+            final char thisChar = command.charAt(i);
+            switch (thisChar) {
+                case WHITE_SPACE_CHAR:
+                    if (hasGoDash) {// 已經走過-
+                        if (keyStart < 0) {// 左邊是空的
+                            throw new RuntimeException("不支援- ");
+                        } else if (!isAfterOption) {// 左邊
+                            isAfterOption = true;// 開啟變成右邊
+                        } else if (valueStart < 0 && isQuotes) {// 引號模式開頭的空白要保留
+                            valueStart = i;
+                        }
+                    }
+                    break;
+                case DASH_CHAR:
+                    if (!hasGoDash) {// 還沒走過-
+                        hasGoDash = true;
+                    } else if (!isAfterOption) {// 左邊
+                        throw new RuntimeException("不支援--,-X-");
+                    } else if (isQuotes) {// 右邊是"或'開頭
+                        if (valueStart < 0) {
+                            valueStart = i;
+                        }
+                    } else if (valueStart >= 0 && command.charAt(i - 1) != WHITE_SPACE_CHAR) {// 右邊不是空且最後一個不是空白字元
+                        throw new RuntimeException("不支援-X YYY-");
+                    } else {
+                        putOption(command, keyStart, keyEnd, valueStart, i, true, outCome, buffer);
+                        keyStart = -1;
+                        valueStart = -1;
+                        isAfterOption = false;// 設定為左邊
+                    }
+                    break;
+                case DOUBLE_QUOTES:
+                case APOSTROPHE:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            throw new RuntimeException("不支援-',-\",-X',-X\"");
+                        } else if (valueStart < 0 && !isQuotes) {// 右邊是空的
+                            isQuotes = true;// 開啟引號模式
+                            quotesChar = thisChar;
+                        } else if (isQuotes && quotesChar == thisChar
+                                && isEvenEscape(command, valueStart, i)) {// 結束引號模式
+                            putOption(command, keyStart, keyEnd, valueStart, i, false, outCome, buffer);
+                            keyStart = -1;
+                            valueStart = -1;
+                            hasGoDash = false;// 設定未走過-
+                            isAfterOption = false;// 設定為左邊
+                            isQuotes = false;// 關閉引號模式
+                        } else if (valueStart < 0) {
+                            valueStart = i;
+                        }
+                    } else {
+                        throw new RuntimeException("不支援 指令和-中間有'or\"");
+                    }
+                    break;
+                case ESCAPE_CHARACTER:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            throw new RuntimeException("沒有支援-safsa\\");
+                        } else if (valueStart < 0) {
+                            valueStart = i;
+                        }
+                    } else {
+                        throw new RuntimeException("指令有問題");
+                    }
+                    break;
+                default:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            if (keyStart < 0) {
+                                keyStart = i;
+                            }
+                            keyEnd = i + 1;
+                        } else if (valueStart < 0) {
+                            valueStart = i;
+                        }
+                    } else {
+                        throw new RuntimeException("指令有問題");
+                    }
+                    break;
+            }
+        }
+        if (keyStart < 0) {
+            return;
+        }
+        for (int k = keyEnd - 1; k >= keyStart; k--) {
+            final String key = toKey(command.charAt(k));
+            if (valueStart >= 0) {
+                if (isQuotes) {
+                    // 引號沒有結尾: 引號到第一個" -"之前當成內容, 之後的再當成選項解析
+                    final StringBuilder before = new StringBuilder().append(quotesChar);
+                    int afterStart = -1;
+                    boolean isWhiteSpace = false;
+                    for (int i = valueStart; i < to; i++) {
+                        final char element = command.charAt(i);
+                        if (!isWhiteSpace) {// 前一個不是' '
+                            if (element == WHITE_SPACE_CHAR) {
+                                isWhiteSpace = true;
+                            } else if (element == DASH_CHAR) {
+                                throw new RuntimeException("指令錯誤");
+                            } else {
+                                before.append(element);
+                            }
+                        } else if (element == DASH_CHAR) {
+                            afterStart = i;
+                            break;
+                        } else {
+                            before.append(WHITE_SPACE_CHAR).append(element);
+                            isWhiteSpace = false;
+                        }
+                    }
+                    buffer.setLength(0);
+                    appendUnescaped(before, 0, before.length(), buffer);
+                    outCome.put(key, buffer.toString());
+                    if (afterStart >= 0) {
+                        tokenize(command, afterStart, to, outCome, buffer);
+                    }
+                } else {
+                    outCome.put(key, unescape(command, valueStart, to, true, buffer));
+                }
+                valueStart = -1;
+            } else if (isQuotes) {
+                outCome.put(key, String.valueOf(quotesChar));
+                isQuotes = false;
+            } else {
+                outCome.put(key, EMPTY_STRING);
+            }
+        }
+    }
+
+    // 最後一個選項名稱拿到內容, 其餘的拿到空字串
+    private static void putOption(CharSequence command, int keyStart, int keyEnd, int valueStart, int valueEnd,
+                                  boolean trim, Map<String, String> outCome, StringBuilder buffer) {
+        for (int k = keyEnd - 1; k >= keyStart; k--) {
+            final String key = toKey(command.charAt(k));
+            if (k == keyEnd - 1 && valueStart >= 0) {
+                outCome.put(key, unescape(command, valueStart, valueEnd, trim, buffer));
+            } else {
+                outCome.put(key, EMPTY_STRING);
+            }
+        }
+    }
+
+    private static String toKey(char c) {
+        return c < ASCII_KEYS.length ? ASCII_KEYS[c] : String.valueOf(c);
+    }
+
+    // 往前數連續的\, 偶數個代表引號沒被跳脫
+    private static boolean isEvenEscape(CharSequence command, int valueStart, int end) {
+        boolean isEven = true;
+        if (valueStart >= 0) {
+            for (int i = end - 1; i >= valueStart && command.charAt(i) == ESCAPE_CHARACTER; i--) {
+                isEven = !isEven;
+            }
+        }
+        return isEven;
+    }
+
+    private static String unescape(CharSequence command, int from, int to, boolean trim, StringBuilder buffer) {
+        buffer.setLength(0);
+        appendUnescaped(command, from, to, buffer);
+        int start = 0;
+        int end = buffer.length();
+        if (trim) {
+            while (start < end && buffer.charAt(start) <= WHITE_SPACE_CHAR) {
+                start++;
+            }
+            while (end > start && buffer.charAt(end - 1) <= WHITE_SPACE_CHAR) {
+                end--;
+            }
+        }
+        return buffer.substring(start, end);
+    }
+
+    private static void appendUnescaped(CharSequence source, int from, int to, StringBuilder stringBuilder) {
+        boolean isJump = false;
+        for (int i = from; i < to; i++) {
+            final char element = source.charAt(i);
+            if (!isJump) {
+                if (element == ESCAPE_CHARACTER) {
+                    isJump = true;
+                } else {
+                    stringBuilder.append(element);
+                }
+            } else {
+                switch (element) {
+                    case 't':
+                        stringBuilder.append('\t');
+                        break;
+                    case 'n':
+                        stringBuilder.append('\n');
+                        break;
+                    case 'b':
+                        stringBuilder.append('\b');
+                        break;
+                    case 'f':
+                        stringBuilder.append('\f');
+                        break;
+                    case 'r':
+                        stringBuilder.append('\r');
+                        break;
+                    case ESCAPE_CHARACTER:
+                    case DOUBLE_QUOTES:
+                    case APOSTROPHE:
+                        stringBuilder.append(element);
+                        break;
+                    default:
+                        stringBuilder.append(ESCAPE_CHARACTER).append(element);
+                        break;
+                }
+                isJump = false;
+            }
+        }
+        if (isJump) {
+            stringBuilder.append(ESCAPE_CHARACTER);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package e2e;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// 整個 run file 編譯後的執行計畫, 以內容 hash 快取, 同樣的腳本只解析一次
+public final class CommandPlan {
+    public static final String COMMENT_PREFIX = "--";
+
+    private static final Cache<String, CommandPlan> PLAN_CACHE = CacheBuilder.newBuilder().maximumSize(256).build();
+
+    private final String contentHash;
+    private final List<CommandStep> steps;
+    private final Set<String> variables;
+    private final boolean waitsForNetworkIdle;
+
+    private CommandPlan(String contentHash, List<CommandStep> steps) {
+        this.contentHash = contentHash;
+        this.steps = Collections.unmodifiableList(steps);
+        final Set<String> names = new LinkedHashSet<>();
+        boolean networkIdle = false;
+        for (CommandStep step : steps) {
+            names.addAll(step.getVariables());
+            networkIdle |= NetworkIdle.isUsedBy(step);
+        }
+        this.variables = Collections.unmodifiableSet(names);
+        this.waitsForNetworkIdle = networkIdle;
+    }
+
+    // 沒有資料檔時 ${變數} 照原字執行, 所有選項都照原字檢查
+    public static CommandPlan compile(String cmd) {
+        return compile(cmd, false);
+    }
+
+    // 有資料檔時使用, 含 ${變數} 的值要等 bind 代入每一列後才檢查
+    public static CommandPlan compileTemplate(String cmd) {
+        return compile(cmd, true);
+    }
+
+    private static CommandPlan compile(String cmd, boolean template) {
+        final String contentHash = hash(cmd);
+        // 兩種模式檢查的範圍不同, 分開快取
+        final String cacheKey = template ? "template:" + contentHash : contentHash;
+        final CommandPlan cached = PLAN_CACHE.getIfPresent(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        final List<CommandStep> steps = new ArrayList<>();
+        final StringBuilder errors = new StringBuilder();
+        final String[] eachCommands = cmd.split("\r?\n");
+        for (int i = 0; i < eachCommands.length; i++) {
+            final String eachCmdTrim = eachCommands[i].trim();
+            if (!eachCmdTrim.isEmpty() && !eachCmdTrim.startsWith(COMMENT_PREFIX)) {
+                try {
+                    steps.add(CommandStep.compile(eachCmdTrim, i + 1, template));
+                } catch (RuntimeException e) {
+                    // 收集整個檔案的錯誤一次回報
+                    errors.append("第").append(i + 1).append("行 ").append(eachCmdTrim)
+                            .append(" : ").append(e.getMessage()).append('\n');
+                }
+            }
+        }
+        ParallelBlocks.validate(steps, errors);
+        SessionState.validate(steps, errors);
+        if (errors.length() > 0) {
+            throw new RuntimeException(errors.toString().trim());
+        }
+        final CommandPlan commandPlan = new CommandPlan(contentHash, steps);
+        PLAN_CACHE.put(cacheKey, commandPlan);
+        return commandPlan;
+    }
+
+    // 代入一列資料, 只有含 ${變數} 的步驟會重建
+    public CommandPlan bind(Map<String, String> values) {
+        if (variables.isEmpty()) {
+            return this;
+        }
+        final List<CommandStep> boundSteps = new ArrayList<>(steps.size());
+        final StringBuilder errors = new StringBuilder();
+        for (CommandStep step : steps) {
+            try {
+                boundSteps.add(step.bind(values));
+            } catch (RuntimeException e) {
+                errors.append(step).append(" : ").append(e.getMessage()).append('\n');
+            }
+        }
+        if (errors.length() > 0) {
+            throw new RuntimeException(errors.toString().trim());
+        }
+        return new CommandPlan(contentHash, boundSteps);
+    }
+
+    public static String hash(String cmd) {
+        return Hashing.sha256().hashString(cmd, StandardCharsets.UTF_8).toString();
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public List<CommandStep> getSteps() {
+        return steps;
+    }
+
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    // 有 wait page -n 時執行前要先在 session 註冊追蹤腳本
+    public boolean waitsForNetworkIdle() {
+        return waitsForNetworkIdle;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+}
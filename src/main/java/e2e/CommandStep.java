@@ -0,0 +1,160 @@
+package e2e;
+
+import e2e.EToE.Command;
+import org.openqa.selenium.By;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// 編譯後的單行指令, 選項與 By 都已事先建好
+public final class CommandStep {
+    // 輸入的值 (可能是密碼) 寫到報告、shard 連線、失敗截圖說明或 log 時以此取代
+    public static final String VALUE_OPTION = "v";
+    public static final String MASK = "******";
+
+    private final Command command;
+    private final int lineNumber;
+    private final String commandLine;
+    private final Map<String, String> options;
+    private final By by;
+    // 選項內含 ${變數} 時要等 bind 代入資料後才能檢查與執行
+    private final Set<String> variables;
+    // bind 之前的選項, 代入的值對外只顯示 ${變數}; 沒有 bind 過時為 null
+    private final Map<String, String> templateOptions;
+    private final Map<String, String> displayOptions;
+    private final String displayLine;
+
+    private CommandStep(Command command, int lineNumber, String commandLine, Map<String, String> options) {
+        this(command, lineNumber, commandLine, options, null);
+    }
+
+    private CommandStep(Command command, int lineNumber, String commandLine, Map<String, String> options,
+                        Map<String, String> templateOptions) {
+        this.command = command;
+        this.lineNumber = lineNumber;
+        this.commandLine = commandLine;
+        this.options = Collections.unmodifiableMap(new HashMap<>(options));
+        this.by = Command.getByCondition(options.get("b"), options.get("s"));
+        final Set<String> names = new LinkedHashSet<>();
+        for (String value : options.values()) {
+            names.addAll(Placeholders.names(value));
+        }
+        this.variables = Collections.unmodifiableSet(names);
+        this.templateOptions = templateOptions;
+        final Map<String, String> display = new HashMap<>(options.size());
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            display.put(entry.getKey(), toDisplayValue(entry.getKey(), entry.getValue()));
+        }
+        this.displayOptions = Collections.unmodifiableMap(display);
+        // 原始那行 (bind 過的是代入前的那行) 只有 -v 的原字會洩漏輸入的值
+        this.displayLine = MASK.equals(display.get(VALUE_OPTION)) ? toDisplayLine(command, display) : commandLine;
+    }
+
+    private boolean isPlaceholder(String key) {
+        return Placeholders.contains(templateOptions != null ? templateOptions.get(key) : options.get(key));
+    }
+
+    // 由資料代入的值顯示成 ${變數}, -v 的值遮掉, 其他照原樣
+    private String toDisplayValue(String key, String value) {
+        if (isPlaceholder(key)) {
+            return templateOptions != null ? templateOptions.get(key) : value;
+        }
+        return VALUE_OPTION.equals(key) && !value.isEmpty() ? MASK : value;
+    }
+
+    // 用遮過的選項 (依名稱排序) 重組一行
+    private static String toDisplayLine(Command command, Map<String, String> display) {
+        final StringBuilder line = new StringBuilder(command.getCmdString());
+        for (Map.Entry<String, String> entry : new TreeMap<>(display).entrySet()) {
+            line.append(" -").append(entry.getKey());
+            if (!entry.getValue().isEmpty()) {
+                line.append(' ').append(entry.getValue());
+            }
+        }
+        return line.toString();
+    }
+
+    public static CommandStep compile(String commandLine, int lineNumber) {
+        return compile(commandLine, lineNumber, false);
+    }
+
+    // template 為 true 時含 ${變數} 的值先換成合法的值檢查, 必填與其他選項仍在編譯時就檢查
+    public static CommandStep compile(String commandLine, int lineNumber, boolean template) {
+        final Command command = EToE.getCommand(commandLine);
+        if (command == null) {
+            throw new RuntimeException("[processCmd] 無找到此指令,輸入的完整指令為" + commandLine);
+        }
+        final Map<String, String> options = CmdOptionTokenizer.tokenize(commandLine,
+                command.getCmdString().length(), commandLine.length());
+        final CommandStep step = new CommandStep(command, lineNumber, commandLine, options);
+        if (template && step.isTemplate()) {
+            command.validateTemplateOptions(options);
+        } else {
+            command.validateOptions(options);
+        }
+        return step;
+    }
+
+    // 代入一列資料, 沒有變數的步驟直接回傳自己
+    public CommandStep bind(Map<String, String> values) {
+        if (!isTemplate()) {
+            return this;
+        }
+        final Map<String, String> boundOptions = new HashMap<>(options.size());
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            boundOptions.put(entry.getKey(), Placeholders.resolve(entry.getValue(), values));
+        }
+        command.validateOptions(boundOptions);
+        return new CommandStep(command, lineNumber, commandLine, boundOptions, options);
+    }
+
+    public boolean isTemplate() {
+        return !variables.isEmpty();
+    }
+
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    // 可以寫到報告或送出去的選項, 輸入的值已遮掉
+    public Map<String, String> getDisplayOptions() {
+        return displayOptions;
+    }
+
+    public String getOption(String key) {
+        return options.get(key);
+    }
+
+    public boolean hasOption(String key) {
+        return options.containsKey(key);
+    }
+
+    public By getBy() {
+        return by;
+    }
+
+    @Override
+    public String toString() {
+        return "第" + lineNumber + "行 " + displayLine;
+    }
+}
@@ -0,0 +1,370 @@
+package e2e;
+
+import e2e.EToE.Command;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 執行中動態調整同時執行的 session 數 (AIMD): 每隔 concurrency.interval.seconds 看一次這段期間的狀況,
+// 步驟變慢、逾時變多、CPU 過高或可用記憶體不足時乘上 (100 - decrease.percent)% 減少; 都正常且空位已用滿時加 increase.step.
+// 延遲以各指令的 p50 除以該指令自己的基準 (看過最快的 p50, 每次稍微放寬) 判斷, 不受這段期間執行哪些指令影響
+public final class ConcurrencyController implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    // 一段期間內某指令少於這個次數時不拿來算延遲
+    private static final int MIN_COMMAND_SAMPLES = 3;
+    // 步驟少於這個次數時不看逾時比例
+    private static final int MIN_TIMEOUT_SAMPLES = 10;
+    // 基準每段期間放寬的比例, 受測系統真的整體變慢時不會一直往下調
+    private static final double BASELINE_DRIFT = 0.02;
+
+    private final int min;
+    private final int max;
+    private final int increaseStep;
+    private final int decreasePercent;
+    private final int latencyTolerancePercent;
+    private final int timeoutPercentMax;
+    private final int cpuPercentMax;
+    private final long memoryMinBytes;
+    private final long intervalMillis;
+    private final WebDriverPool webDriverPool;
+
+    private final Object lock = new Object();
+    private int limit;
+    private int active;
+    private int waiting;
+    private int peakActive;
+    private boolean cooldown;
+
+    private final ConcurrentMap<Command, Recorder> latencies = new ConcurrentHashMap<>();
+    private final Map<Command, Double> baselineMillis = new EnumMap<>(Command.class);
+    private final LongAdder windowSteps = new LongAdder();
+    private final LongAdder windowTimeouts = new LongAdder();
+    private final LongAdder decisions = new LongAdder();
+    private final LongAdder increases = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+    private volatile int lowestLimit;
+    private volatile int highestLimit;
+    private volatile double lastLatencyRatio = 1;
+    private volatile double lastCpuPercent = -1;
+    private ScheduledExecutorService scheduler;
+
+    // webDriverPool 不是 null 時, 調降後關掉多出來的閒置 session
+    public ConcurrencyController(Properties properties, int initial, WebDriverPool webDriverPool) {
+        this.min = getMin(properties);
+        this.max = getMax(properties);
+        this.increaseStep = Math.max(1, EToE.getIntProperty(properties, "concurrency.increase.step", 1));
+        this.decreasePercent = Math.min(90, Math.max(1, EToE.getIntProperty(properties,
+                "concurrency.decrease.percent", 30)));
+        this.latencyTolerancePercent = EToE.getIntProperty(properties, "concurrency.latency.tolerance.percent", 100);
+        this.timeoutPercentMax = EToE.getIntProperty(properties, "concurrency.timeout.percent.max", 5);
+        this.cpuPercentMax = EToE.getIntProperty(properties, "concurrency.cpu.percent.max", 85);
+        this.memoryMinBytes = EToE.getIntProperty(properties, "concurrency.memory.min.mb", 1024) * 1024L * 1024;
+        this.intervalMillis = Math.max(1, EToE.getIntProperty(properties, "concurrency.interval.seconds", 5)) * 1000L;
+        this.webDriverPool = webDriverPool;
+        this.limit = Math.max(min, Math.min(max, initial));
+        this.lowestLimit = limit;
+        this.highestLimit = limit;
+    }
+
+    private static int getMin(Properties properties) {
+        return Math.max(1, EToE.getIntProperty(properties, "concurrency.min", 1));
+    }
+
+    // 同時執行數的上限, driver pool 與執行緒數要能容納這麼多
+    public static int getMax(Properties properties) {
+        return Math.max(getMin(properties), EToE.getIntProperty(properties, "concurrency.max",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public int getLimit() {
+        synchronized (lock) {
+            return limit;
+        }
+    }
+
+    int getWaiting() {
+        synchronized (lock) {
+            return waiting;
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (scheduler != null) {
+                return;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "concurrency-controller");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                adjust(sample());
+            } catch (RuntimeException e) {
+                LOGGER.warn("[concurrency] 調整失敗", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("[concurrency] 同時執行數從 {} 開始, 範圍 {}~{}", getLimit(), min, max);
+    }
+
+    // 開始執行一個檔案前呼叫, 目前執行數已達上限時等待
+    public void acquire() throws InterruptedException {
+        synchronized (lock) {
+            waiting++;
+            try {
+                while (active >= limit) {
+                    lock.wait();
+                }
+            } finally {
+                waiting--;
+            }
+            active++;
+            peakActive = Math.max(peakActive, active);
+        }
+    }
+
+    // 不等待的版本, parallel 區塊另外借 session 前呼叫: 已達上限或有檔案在等時回傳 false, 不搶檔案的空位
+    public boolean tryAcquire() {
+        synchronized (lock) {
+            if (active >= limit || waiting > 0) {
+                return false;
+            }
+            active++;
+            peakActive = Math.max(peakActive, active);
+            return true;
+        }
+    }
+
+    public void release() {
+        synchronized (lock) {
+            active--;
+            lock.notifyAll();
+        }
+    }
+
+    // 步驟耗時照常記到 runReport, 同時拿來判斷受測系統是否變慢
+    public RunReport observe(RunReport runReport) {
+        return new ObservedReport(runReport);
+    }
+
+    void onStep(StepTiming stepTiming) {
+        final Command command = stepTiming.getCommand();
+        if (command == Command.SLEEP || command.isBlockMarker()) {
+            return;
+        }
+        windowSteps.increment();
+        if (!stepTiming.isSuccess()) {
+            if (isTimeout(stepTiming.getError())) {
+                windowTimeouts.increment();
+            }
+            return;
+        }
+        latencies.computeIfAbsent(command, key -> new Recorder(3))
+                .recordValue(TimeUnit.NANOSECONDS.toMicros(stepTiming.getDurationNanos()));
+    }
+
+    // 整個檔案逾時 (run.file.timeout.seconds) 也算一次逾時
+    public void onFileTimeout() {
+        windowSteps.increment();
+        windowTimeouts.increment();
+    }
+
+    private static boolean isTimeout(String error) {
+        if (error == null) {
+            return false;
+        }
+        final String lowerCase = error.toLowerCase(Locale.ROOT);
+        return error.contains("等待逾時") || lowerCase.contains("timed out") || lowerCase.contains("timeout");
+    }
+
+    // 收集這段期間的數據並清空, 下一段重新累計
+    Sample sample() {
+        double weightedRatio = 0;
+        long weight = 0;
+        for (Map.Entry<Command, Recorder> entry : latencies.entrySet()) {
+            final Histogram histogram = entry.getValue().getIntervalHistogram();
+            final long count = histogram.getTotalCount();
+            if (count < MIN_COMMAND_SAMPLES) {
+                continue;
+            }
+            final double p50 = Math.max(0.001, histogram.getValueAtPercentile(50) / 1000d);
+            final Double previous = baselineMillis.get(entry.getKey());
+            final double baseline = previous == null ? p50 : Math.min(p50, previous * (1 + BASELINE_DRIFT));
+            baselineMillis.put(entry.getKey(), baseline);
+            weightedRatio += p50 / baseline * count;
+            weight += count;
+        }
+        return new Sample(windowSteps.sumThenReset(), windowTimeouts.sumThenReset(),
+                weight == 0 ? -1 : weightedRatio / weight, cpuPercent(), availableMemoryBytes());
+    }
+
+    // 依一段期間的數據調整, 回傳新的上限
+    int adjust(Sample sample) {
+        decisions.increment();
+        lastLatencyRatio = sample.latencyRatio;
+        lastCpuPercent = sample.cpuPercent;
+        String reason = null;
+        if (sample.availableMemoryBytes >= 0 && sample.availableMemoryBytes < memoryMinBytes) {
+            reason = String.format("可用記憶體 %dMB", sample.availableMemoryBytes / 1024 / 1024);
+        } else if (sample.cpuPercent > cpuPercentMax) {
+            reason = String.format("CPU %.0f%%", sample.cpuPercent);
+        } else if (sample.steps >= MIN_TIMEOUT_SAMPLES && sample.timeouts * 100 > sample.steps * timeoutPercentMax) {
+            reason = String.format("逾時 %d/%d", sample.timeouts, sample.steps);
+        } else if (sample.latencyRatio * 100 > 100 + latencyTolerancePercent) {
+            reason = String.format("延遲為基準的 %.1f 倍", sample.latencyRatio);
+        }
+        synchronized (lock) {
+            final int before = limit;
+            final boolean saturated = waiting > 0 || peakActive >= limit;
+            peakActive = active;
+            // 剛調降過的下一段期間還反映著調降前的負載, 只有記憶體不足才繼續降
+            final boolean hold = cooldown && reason != null && !reason.startsWith("可用記憶體");
+            cooldown = false;
+            if (reason != null && !hold) {
+                limit = Math.max(min, Math.min(limit - 1, limit * (100 - decreasePercent) / 100));
+                cooldown = limit < before;
+            } else if (reason == null && saturated) {
+                limit = Math.min(max, limit + increaseStep);
+            }
+            if (limit == before) {
+                LOGGER.debug("[concurrency] 維持 {} ({})", limit, describe(sample, reason, saturated));
+                return limit;
+            }
+            lock.notifyAll();
+            lowestLimit = Math.min(lowestLimit, limit);
+            highestLimit = Math.max(highestLimit, limit);
+            if (limit > before) {
+                increases.increment();
+            } else {
+                decreases.increment();
+            }
+            LOGGER.info("[concurrency] 同時執行數 {} -> {} ({})", before, limit, describe(sample, reason, saturated));
+        }
+        if (reason != null && webDriverPool != null) {
+            webDriverPool.trimIdle(getLimit());
+        }
+        return getLimit();
+    }
+
+    private static String describe(Sample sample, String reason, boolean saturated) {
+        return String.format("%s, 步驟 %d, 逾時 %d, 延遲倍數 %.2f, CPU %.0f%%, 可用記憶體 %dMB",
+                reason != null ? reason : saturated ? "已用滿" : "未用滿", sample.steps, sample.timeouts,
+                sample.latencyRatio, sample.cpuPercent,
+                sample.availableMemoryBytes < 0 ? -1 : sample.availableMemoryBytes / 1024 / 1024);
+    }
+
+    // 整台機器的 CPU 使用率, 取不到時回傳 -1
+    @SuppressWarnings("deprecation")
+    private static double cpuPercent() {
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            final double load = ((com.sun.management.OperatingSystemMXBean) bean).getSystemCpuLoad();
+            return load < 0 ? -1 : load * 100;
+        }
+        return -1;
+    }
+
+    // Linux 用 MemAvailable (含可回收的快取), 其他平台用閒置的實體記憶體, 取不到時回傳 -1
+    @SuppressWarnings("deprecation")
+    private static long availableMemoryBytes() {
+        final File meminfo = new File("/proc/meminfo");
+        if (meminfo.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(meminfo.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("MemAvailable:")) {
+                        return Long.parseLong(line.substring("MemAvailable:".length()).trim().split("\\s+")[0]) * 1024;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("[concurrency] 讀取 /proc/meminfo 失敗", e);
+            }
+        }
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getFreePhysicalMemorySize();
+        }
+        return -1;
+    }
+
+    public void reportMetrics(RunReport runReport) {
+        runReport.putMetric("concurrency_limit", getLimit());
+        runReport.putMetric("concurrency_limit_lowest", lowestLimit);
+        runReport.putMetric("concurrency_limit_highest", highestLimit);
+        runReport.putMetric("concurrency_decisions_total", decisions.sum());
+        runReport.putMetric("concurrency_increases_total", increases.sum());
+        runReport.putMetric("concurrency_decreases_total", decreases.sum());
+        runReport.putMetric("concurrency_latency_ratio", lastLatencyRatio);
+        runReport.putMetric("concurrency_cpu_percent", lastCpuPercent);
+        LOGGER.info("[concurrency] 結束時 {}, 最低 {} 最高 {}, 調升 {} 次 調降 {} 次", getLimit(), lowestLimit,
+                highestLimit, increases.sum(), decreases.sum());
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    // 一段期間的數據; latencyRatio / cpuPercent / availableMemoryBytes 取不到時是 -1
+    static final class Sample {
+        final long steps;
+        final long timeouts;
+        final double latencyRatio;
+        final double cpuPercent;
+        final long availableMemoryBytes;
+
+        Sample(long steps, long timeouts, double latencyRatio, double cpuPercent, long availableMemoryBytes) {
+            this.steps = steps;
+            this.timeouts = timeouts;
+            this.latencyRatio = latencyRatio;
+            this.cpuPercent = cpuPercent;
+            this.availableMemoryBytes = availableMemoryBytes;
+        }
+    }
+
+    // 不另外統計, 只把每個步驟也交給控制器
+    private final class ObservedReport extends RunReport {
+        private final RunReport runReport;
+
+        ObservedReport(RunReport runReport) {
+            super(0);
+            this.runReport = runReport;
+        }
+
+        @Override
+        public void record(StepTiming stepTiming) {
+            runReport.record(stepTiming);
+            onStep(stepTiming);
+        }
+    }
+}
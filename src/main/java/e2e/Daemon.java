@@ -0,0 +1,363 @@
+package e2e;
+
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.RunFileTask;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// --daemon: 常駐的 JVM 與預先開好的瀏覽器, 省掉每次執行的 JVM 啟動、設定讀取與開瀏覽器時間
+// 從本機 socket (每行一個 JSON, 格式同 ShardProtocol) 或監看目錄接收 run file 名稱或整段指令文字, 每個步驟的結果即時傳回
+// 設定 daemon.token 時每個請求都要帶相同的 token; 監聽本機以外的位址時一定要設定
+public final class Daemon {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Daemon.class);
+
+    public static final int DEFAULT_PORT = 7878;
+    // 監看目錄裡只處理這個副檔名, 寫完再改名成 .txt 才不會讀到寫一半的檔案
+    private static final String SCRIPT_SUFFIX = ".txt";
+    private static final String RESULTS_DIR = "results";
+
+    private final File eToEResourceRootDir;
+    private final Properties properties;
+    private final WebDriverPool webDriverPool;
+    private final long runFileTimeoutMillis;
+    // 沒設定時是 null, 只接受本機連線
+    private final String token;
+    private final ExecutorService executorService;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicInteger requestIndex = new AtomicInteger();
+    private volatile ServerSocket serverSocket;
+    private volatile WatchService watchService;
+
+    Daemon(File eToEResourceRootDir, Properties properties, Supplier<WebDriver> webDriverFactory) {
+        this.eToEResourceRootDir = eToEResourceRootDir;
+        this.properties = properties;
+        final int parallelism = EToE.getIntProperty(properties, "run.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        // 常駐時至少留一個暖好的瀏覽器
+        this.webDriverPool = new WebDriverPool(webDriverFactory,
+                EToE.getIntProperty(properties, "daemon.pool.min", Math.max(1,
+                        EToE.getIntProperty(properties, "driver.pool.min", 0))),
+                EToE.getIntProperty(properties, "driver.pool.max", parallelism));
+        ParallelBlocks.use(webDriverPool);
+        this.runFileTimeoutMillis = EToE.getIntProperty(properties, "run.file.timeout.seconds", 0) * 1000L;
+        final String configuredToken = properties.getProperty("daemon.token", "").trim();
+        this.token = configuredToken.isEmpty() ? null : configuredToken;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executorService = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "daemon-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static int run(File eToEResourceRootDir, Properties properties) {
+        try (ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(properties)) {
+            return new Daemon(eToEResourceRootDir, properties, chromeSessionFactory).serve();
+        }
+    }
+
+    // 開始接收請求, 直到收到 shutdown 才回傳
+    int serve() {
+        final long start = System.currentTimeMillis();
+        webDriverPool.prestart();
+        final String bindAddress = properties.getProperty("daemon.bind.address", "127.0.0.1").trim();
+        try {
+            final InetAddress address = InetAddress.getByName(bindAddress);
+            // 連得到的人都能在這台機器的瀏覽器上執行指令, 沒有 token 時不對外開放
+            if (!address.isLoopbackAddress() && token == null) {
+                throw new IllegalStateException("daemon.bind.address 不是本機位址 (" + bindAddress
+                        + ") 時必須設定 daemon.token");
+            }
+            serverSocket = new ServerSocket(EToE.getIntProperty(properties, "daemon.port", DEFAULT_PORT), 50, address);
+        } catch (IllegalStateException e) {
+            ParallelBlocks.close();
+            webDriverPool.close();
+            throw e;
+        } catch (IOException e) {
+            ParallelBlocks.close();
+            webDriverPool.close();
+            throw new UncheckedIOException("daemon 無法監聽 " + bindAddress, e);
+        }
+        executorService.execute(this::accept);
+        final String watchDir = properties.getProperty("daemon.watch.dir", "").trim();
+        if (!watchDir.isEmpty()) {
+            startWatching(new File(watchDir));
+        }
+        LOGGER.info("[daemon] 已就緒 {}:{}, 預先開好 {} 個瀏覽器, 花費 {}ms", bindAddress, serverSocket.getLocalPort(),
+                webDriverPool.getMinSize(), System.currentTimeMillis() - start);
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IOUtils.closeQuietly(serverSocket);
+            IOUtils.closeQuietly(watchService);
+            executorService.shutdownNow();
+            ParallelBlocks.close();
+            webDriverPool.close();
+            FailureArtifacts.flush(EToE.getIntProperty(properties, "artifacts.flush.timeout.seconds", 30) * 1000L);
+        }
+        LOGGER.info("[daemon] 結束, 共處理 {} 個請求", requestIndex.get());
+        return 0;
+    }
+
+    int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    void stop() {
+        stopped.countDown();
+    }
+
+    private void accept() {
+        while (stopped.getCount() > 0) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executorService.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (stopped.getCount() > 0) {
+                    LOGGER.warn("[daemon] 接受連線失敗", e);
+                }
+            }
+        }
+    }
+
+    // 一條連線可以依序送多個請求
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+            Map<String, Object> request;
+            while ((request = ShardProtocol.read(reader)) != null) {
+                if (!authorized(request)) {
+                    LOGGER.warn("[daemon] {} 的請求 token 不正確, 中斷連線", client.getRemoteSocketAddress());
+                    final Map<String, Object> error = ShardProtocol.message(ShardProtocol.ERROR);
+                    error.put("message", "token 不正確");
+                    ShardProtocol.send(writer, error);
+                    return;
+                }
+                final Object type = request.get(ShardProtocol.TYPE);
+                if (ShardProtocol.RUN.equals(type)) {
+                    execute(request, writer);
+                } else if (ShardProtocol.SHUTDOWN.equals(type)) {
+                    ShardProtocol.send(writer, ShardProtocol.message(ShardProtocol.DONE));
+                    LOGGER.info("[daemon] 收到 shutdown");
+                    stop();
+                    return;
+                } else {
+                    final Map<String, Object> error = ShardProtocol.message(ShardProtocol.ERROR);
+                    error.put("message", "不認得的請求種類:" + type);
+                    ShardProtocol.send(writer, error);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("[daemon] 連線中斷", e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("[daemon] 處理請求失敗", e);
+        }
+    }
+
+    // 比對時間不因相同的前綴長度而不同, 無法逐字元猜出 token
+    private boolean authorized(Map<String, Object> request) {
+        if (token == null) {
+            return true;
+        }
+        final Object given = request.get("token");
+        return given != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                String.valueOf(given).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // request 有 file (run file 名稱, 可含 :行號) 或 script (整段指令文字) 其中一個; 步驟、結果與最後的 done 依序寫到 writer
+    boolean execute(Map<String, Object> request, Writer writer) throws IOException {
+        final long startNanos = System.nanoTime();
+        final int index = requestIndex.incrementAndGet();
+        final Object file = request.get("file");
+        final Object script = request.get("script");
+        final RunFileScheduler runFileScheduler = new RunFileScheduler(webDriverPool, webDriverPool.getMaxSize(),
+                runFileTimeoutMillis, new ShardWorker.ForwardingReport(writer));
+        final List<RunFileResult> results = new ArrayList<>();
+        if (script != null) {
+            final String name = request.get("name") == null ? "inline-" + index : String.valueOf(request.get("name"));
+            try {
+                final CommandPlan commandPlan = CommandPlan.compile(String.valueOf(script));
+                final List<RunFileTask> tasks = new ArrayList<>();
+                tasks.add(new RunFileTask(name, null, 0, commandPlan.getSteps().size(), commandPlan, 1));
+                results.addAll(runFileScheduler.runAll(tasks));
+            } catch (RuntimeException e) {
+                results.add(RunFileResult.failed(name, e));
+            }
+        } else if (file != null) {
+            results.addAll(ShardWorker.runEntry(eToEResourceRootDir, properties, String.valueOf(file).trim(),
+                    runFileScheduler));
+        } else {
+            results.add(RunFileResult.failed("request-" + index, new IllegalArgumentException("請求要有 file 或 script")));
+        }
+        boolean success = true;
+        for (RunFileResult result : results) {
+            success &= result.isSuccess();
+            ShardProtocol.send(writer, ShardProtocol.toMessage(result));
+        }
+        final Map<String, Object> done = ShardProtocol.message(ShardProtocol.DONE);
+        done.put("success", success);
+        done.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        ShardProtocol.send(writer, done);
+        LOGGER.info("[daemon] 第{}個請求 {} {}, 花費 {}ms", index, file != null ? file : "(指令文字)",
+                success ? "成功" : "失敗", done.get("elapsedMs"));
+        // 失敗時瀏覽器會被丟掉, 背景補回暖好的數量
+        if (stopped.getCount() > 0) {
+            executorService.execute(this::refill);
+        }
+        return success;
+    }
+
+    private synchronized void refill() {
+        try {
+            webDriverPool.prestart();
+        } catch (RuntimeException e) {
+            LOGGER.warn("[daemon] 補開瀏覽器失敗", e);
+        }
+    }
+
+    // 監看目錄出現 .txt 時當成指令文字執行, 結果逐行寫到 results/檔名.jsonl, 原檔搬到 results/
+    private void startWatching(File dir) {
+        final File resultsDir = new File(dir, RESULTS_DIR);
+        try {
+            FileUtils.forceMkdir(resultsDir);
+            watchService = dir.toPath().getFileSystem().newWatchService();
+            // 改名搬進來也會收到 ENTRY_CREATE
+            dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("無法監看目錄:" + dir, e);
+        }
+        // 啟動前就放進來的檔案也要處理
+        final File[] existing = dir.listFiles((parent, name) -> name.endsWith(SCRIPT_SUFFIX));
+        if (existing != null) {
+            for (File script : existing) {
+                executorService.execute(() -> runScriptFile(script, resultsDir));
+            }
+        }
+        executorService.execute(() -> {
+            try {
+                while (stopped.getCount() > 0) {
+                    final WatchKey key = watchService.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        final Object context = event.context();
+                        if (context instanceof Path && context.toString().endsWith(SCRIPT_SUFFIX)) {
+                            final File script = new File(dir, context.toString());
+                            executorService.execute(() -> runScriptFile(script, resultsDir));
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                LOGGER.debug("[daemon] 停止監看 {}", dir);
+            }
+        });
+        LOGGER.info("[daemon] 監看目錄 {}", dir.getAbsolutePath());
+    }
+
+    private void runScriptFile(File script, File resultsDir) {
+        final String name = script.getName().substring(0, script.getName().length() - SCRIPT_SUFFIX.length());
+        final File resultFile = new File(resultsDir, name + ".jsonl");
+        try {
+            final String content;
+            synchronized (this) {
+                // 同一個檔案可能同時收到建立與搬入事件, 先搬走的才處理
+                if (!script.isFile()) {
+                    return;
+                }
+                content = FileUtils.readFileToString(script, StandardCharsets.UTF_8);
+                Files.move(script.toPath(), new File(resultsDir, script.getName()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            final Map<String, Object> request = ShardProtocol.message(ShardProtocol.RUN);
+            request.put("name", name);
+            request.put("script", content);
+            try (Writer writer = Files.newBufferedWriter(resultFile.toPath(), StandardCharsets.UTF_8)) {
+                execute(request, writer);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("[daemon] 執行 {} 失敗", script, e);
+        }
+    }
+
+    // --submit host:port 檔名: 交給 daemon 執行並印出每個步驟, 檔名是 - 時從標準輸入讀指令文字; token 空白時不送
+    public static int submit(String daemonAddress, String target, String token) throws IOException {
+        final int separator = daemonAddress.lastIndexOf(':');
+        final String host = separator < 0 ? "127.0.0.1" : daemonAddress.substring(0, separator);
+        final int port = separator < 0 ? Integer.parseInt(daemonAddress)
+                : Integer.parseInt(daemonAddress.substring(separator + 1));
+        final Map<String, Object> request = ShardProtocol.message(ShardProtocol.RUN);
+        if ("-".equals(target)) {
+            request.put("name", "stdin");
+            request.put("script", IOUtils.toString(System.in, StandardCharsets.UTF_8));
+        } else {
+            request.put("file", target);
+        }
+        if (!token.isEmpty()) {
+            request.put("token", token);
+        }
+        try (Socket socket = new Socket(host, port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            ShardProtocol.send(writer, request);
+            Map<String, Object> message;
+            while ((message = ShardProtocol.read(reader)) != null) {
+                final Object type = message.get(ShardProtocol.TYPE);
+                if (ShardProtocol.STEP.equals(type)) {
+                    final StepTiming stepTiming = ShardProtocol.toStepTiming(message);
+                    LOGGER.info("[submit] {} 第{}行 {} {}ms{}", stepTiming.getRunFileName(), stepTiming.getLineNumber(),
+                            stepTiming.getCommand().getCmdString(),
+                            String.format("%.1f", stepTiming.getDurationNanos() / 1_000_000d),
+                            stepTiming.isSuccess() ? "" : " 失敗: " + stepTiming.getError());
+                } else if (ShardProtocol.RESULT.equals(type)) {
+                    final RunFileResult result = ShardProtocol.toResult(message);
+                    LOGGER.info("[submit] {} {} {}ms", result.getName(), result.getStatus(), result.getElapsedMillis());
+                } else if (ShardProtocol.DONE.equals(type)) {
+                    return Boolean.TRUE.equals(message.get("success")) ? 0 : 1;
+                } else if (ShardProtocol.ERROR.equals(type)) {
+                    LOGGER.error("[submit] {}", message.get("message"));
+                    return 1;
+                }
+            }
+        }
+        LOGGER.error("[submit] daemon 在完成前中斷連線");
+        return 1;
+    }
+}
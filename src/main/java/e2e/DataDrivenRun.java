@@ -0,0 +1,110 @@
+package e2e;
+
+import e2e.RunFileScheduler.RunFileTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// 同一個 run file 套用資料檔的每一列, 腳本只編譯一次, 每一列是一個獨立執行的工作 (名稱為 檔名#第幾筆)
+// 排程器要送出下一個工作時才讀下一列, 讀取速度跟著執行速度走
+public final class DataDrivenRun implements Iterator<RunFileTask>, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataDrivenRun.class);
+
+    private final String runFileName;
+    private final CommandPlan commandPlan;
+    private final DataSource dataSource;
+    private final int priority;
+    private final int fromLine;
+    private RuntimeException readError;
+    private boolean finished;
+
+    public DataDrivenRun(String runFileName, CommandPlan commandPlan, DataSource dataSource, int priority, int fromLine) {
+        final Set<String> columns = dataSource.getColumns();
+        if (columns != null) {
+            // csv 的欄位固定, 開瀏覽器前就能檢查
+            final Set<String> missing = new LinkedHashSet<>(commandPlan.getVariables());
+            missing.removeAll(columns);
+            if (!missing.isEmpty()) {
+                throw new RuntimeException("資料檔 " + dataSource.getFile().getName() + " 缺少變數:" + missing);
+            }
+        }
+        this.runFileName = runFileName;
+        this.commandPlan = commandPlan;
+        this.dataSource = dataSource;
+        this.priority = priority;
+        this.fromLine = fromLine;
+    }
+
+    public String getRunFileName() {
+        return runFileName;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        if (readError != null) {
+            return true;
+        }
+        try {
+            if (dataSource.hasNext()) {
+                return true;
+            }
+        } catch (UncheckedIOException e) {
+            // 讀檔失敗時回報成一筆失敗, 後面的資料不再執行
+            readError = new RuntimeException("資料檔 " + dataSource.getFile().getName() + " 讀取失敗", e);
+            return true;
+        }
+        finished = true;
+        LOGGER.info("[data] {} 共 {} 筆資料", runFileName, dataSource.getRowNumber());
+        return false;
+    }
+
+    @Override
+    public RunFileTask next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (readError != null) {
+            final RuntimeException error = readError;
+            finished = true;
+            return failedTask(runFileName + "#" + (dataSource.getRowNumber() + 1), error);
+        }
+        final String rowName;
+        final CommandPlan boundPlan;
+        try {
+            final Map<String, String> row = dataSource.next();
+            rowName = runFileName + "#" + dataSource.getRowNumber();
+            boundPlan = commandPlan.bind(row);
+        } catch (RuntimeException e) {
+            return failedTask(runFileName + "#" + dataSource.getRowNumber(), e);
+        }
+        return new RunFileTask(rowName, runFileName, priority, boundPlan.size(), boundPlan, fromLine);
+    }
+
+    // 資料格式或變數錯誤的列仍然排進去, 才會出現在報告裡
+    private RunFileTask failedTask(String rowName, RuntimeException error) {
+        return new RunFileTask(rowName, runFileName, priority, 0, webDriver -> {
+            throw error;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        dataSource.close();
+    }
+}
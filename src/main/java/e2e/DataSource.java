@@ -0,0 +1,247 @@
+package e2e;
+
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.json.JsonException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// 資料驅動執行用的資料檔, 一次只讀一列, 不會把整個檔案載入記憶體
+// .csv 第一列是欄位名稱; .jsonl 每行一個 JSON 物件
+public abstract class DataSource implements Iterator<Map<String, String>>, Closeable {
+    private final File file;
+    private final BufferedReader reader;
+    private Map<String, String> nextRow;
+    private RuntimeException rowError;
+    private boolean finished;
+    // 目前讀到檔案的第幾行, 與最後回傳的資料是第幾筆
+    protected int lineNumber;
+    private int rowNumber;
+
+    protected DataSource(File file) throws IOException {
+        this.file = file;
+        this.reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    public static DataSource open(File file) throws IOException {
+        final String fileName = file.getName().toLowerCase(Locale.ROOT);
+        if (fileName.endsWith(".csv")) {
+            return new Csv(file);
+        } else if (fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson")) {
+            return new JsonLines(file);
+        }
+        throw new IllegalArgumentException("不支援的資料檔格式:" + file.getName() + ", 只支援 .csv / .jsonl");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRowNumber() {
+        return rowNumber;
+    }
+
+    // 已知的欄位名稱, 沒有固定欄位時回傳 null
+    public abstract Set<String> getColumns();
+
+    protected abstract Map<String, String> readRow() throws IOException;
+
+    // Excel 等工具存成 UTF-8 時檔案開頭會有 BOM, 不去掉的話第一個欄位名稱會變成 \uFEFF欄位名稱
+    protected String readLine() throws IOException {
+        final String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        lineNumber++;
+        return lineNumber == 1 && line.startsWith("\uFEFF") ? line.substring(1) : line;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRow == null && rowError == null && !finished) {
+            try {
+                nextRow = readRow();
+                finished = nextRow == null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                rowError = e;
+            }
+        }
+        return nextRow != null || rowError != null;
+    }
+
+    // 格式錯誤的列會丟出 RuntimeException, 之後仍可以繼續讀下一列
+    @Override
+    public Map<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        rowNumber++;
+        if (rowError != null) {
+            final RuntimeException error = rowError;
+            rowError = null;
+            throw error;
+        }
+        final Map<String, String> row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        reader.close();
+    }
+
+    private static boolean isBlank(String line) {
+        return line.trim().isEmpty();
+    }
+
+    private static final class Csv extends DataSource {
+        private final List<String> header;
+
+        Csv(File file) throws IOException {
+            super(file);
+            String line;
+            do {
+                line = readLine();
+            } while (line != null && isBlank(line));
+            if (line == null) {
+                throw new IllegalArgumentException("資料檔沒有欄位名稱:" + file);
+            }
+            final List<String> columns = new ArrayList<>();
+            for (String column : parseRecord(line)) {
+                columns.add(column.trim());
+            }
+            this.header = Collections.unmodifiableList(columns);
+        }
+
+        @Override
+        public Set<String> getColumns() {
+            return new LinkedHashSet<>(header);
+        }
+
+        @Override
+        protected Map<String, String> readRow() throws IOException {
+            String line;
+            do {
+                line = readLine();
+            } while (line != null && isBlank(line));
+            if (line == null) {
+                return null;
+            }
+            final int startLine = lineNumber;
+            final List<String> values = parseRecord(line);
+            if (values.size() != header.size()) {
+                throw new RuntimeException("資料檔第" + startLine + "行 欄位數量 " + values.size() + " 與欄位名稱數量 "
+                        + header.size() + " 不符");
+            }
+            final Map<String, String> row = new LinkedHashMap<>();
+            for (int i = 0; i < header.size(); i++) {
+                row.put(header.get(i), values.get(i));
+            }
+            return row;
+        }
+
+        // RFC 4180: 逗號分隔, 雙引號包住的欄位可以有逗號/換行, "" 代表一個雙引號
+        private List<String> parseRecord(String firstLine) throws IOException {
+            final List<String> values = new ArrayList<>();
+            final StringBuilder value = new StringBuilder();
+            String line = firstLine;
+            boolean quoted = false;
+            int i = 0;
+            while (true) {
+                if (i == line.length()) {
+                    if (!quoted) {
+                        break;
+                    }
+                    // 引號內的換行, 接著讀下一行
+                    line = readLine();
+                    if (line == null) {
+                        throw new RuntimeException("資料檔第" + lineNumber + "行 引號沒有結尾");
+                    }
+                    value.append('\n');
+                    i = 0;
+                    continue;
+                }
+                final char c = line.charAt(i++);
+                if (quoted) {
+                    if (c != '"') {
+                        value.append(c);
+                    } else if (i < line.length() && line.charAt(i) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+
+    private static final class JsonLines extends DataSource {
+        private static final Json JSON = new Json();
+
+        JsonLines(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public Set<String> getColumns() {
+            return null;
+        }
+
+        @Override
+        protected Map<String, String> readRow() throws IOException {
+            String line;
+            do {
+                line = readLine();
+            } while (line != null && isBlank(line));
+            if (line == null) {
+                return null;
+            }
+            final Object parsed;
+            try {
+                parsed = JSON.toType(line, Object.class);
+            } catch (JsonException e) {
+                throw new RuntimeException("資料檔第" + lineNumber + "行 不是合法的 JSON:" + e.getMessage(), e);
+            }
+            if (!(parsed instanceof Map)) {
+                throw new RuntimeException("資料檔第" + lineNumber + "行 必須是 JSON 物件");
+            }
+            final Map<String, String> row = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) parsed).entrySet()) {
+                final Object value = entry.getValue();
+                // 巢狀的物件/陣列保留成 JSON 字串
+                row.put(String.valueOf(entry.getKey()), value == null ? ""
+                        : value instanceof Map || value instanceof List ? JSON.toJson(value) : String.valueOf(value));
+            }
+            return row;
+        }
+    }
+}
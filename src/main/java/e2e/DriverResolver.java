@@ -0,0 +1,135 @@
+package e2e;
+
+import io.github.bonigarcia.wdm.WebDriverManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// 第一次要開瀏覽器時才決定 chromedriver 的位置, 只做一次
+// 順序: driver.path > 已設定的 webdriver.chrome.driver > WebDriverManager (使用本機快取) > 快取目錄裡已下載的版本
+public final class DriverResolver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DriverResolver.class);
+
+    public static final String CHROME_DRIVER_PROPERTY = "webdriver.chrome.driver";
+    private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)+)");
+
+    private static volatile long resolveNanos = -1;
+
+    private final String driverPath;
+    private final String cachePath;
+    private final boolean offline;
+    private final int ttlSeconds;
+
+    public DriverResolver(Properties properties) {
+        this.driverPath = properties.getProperty("driver.path", "").trim();
+        final String cache = properties.getProperty("driver.cache.path", "").trim();
+        this.cachePath = cache.isEmpty()
+                ? System.getProperty("user.home") + File.separator + ".cache" + File.separator + "selenium" : cache;
+        this.offline = EToE.getBooleanProperty(properties, "driver.offline", false);
+        this.ttlSeconds = EToE.getIntProperty(properties, "driver.cache.ttl.seconds", 0);
+    }
+
+    public synchronized void resolve() {
+        if (System.getProperty(CHROME_DRIVER_PROPERTY) != null && driverPath.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final String source;
+        if (!driverPath.isEmpty()) {
+            if (!new File(driverPath).isFile()) {
+                throw new IllegalStateException("driver.path 指定的 chromedriver 不存在:" + driverPath);
+            }
+            System.setProperty(CHROME_DRIVER_PROPERTY, driverPath);
+            source = "driver.path";
+        } else if (offline) {
+            useCachedDriver();
+            source = "offline cache";
+        } else {
+            source = resolveOnline();
+        }
+        resolveNanos = System.nanoTime() - start;
+        LOGGER.info("[driver] chromedriver:{} ({}), 花費 {}ms", System.getProperty(CHROME_DRIVER_PROPERTY), source,
+                resolveNanos / 1_000_000);
+    }
+
+    private String resolveOnline() {
+        try {
+            final WebDriverManager webDriverManager = WebDriverManager.chromedriver()
+                    .cachePath(cachePath)
+                    .resolutionCachePath(cachePath);
+            if (ttlSeconds > 0) {
+                webDriverManager.ttl(ttlSeconds);
+            }
+            webDriverManager.setup();
+            return "WebDriverManager " + webDriverManager.getDownloadedDriverVersion();
+        } catch (RuntimeException e) {
+            // 連不到網路時退回已下載過的版本
+            LOGGER.warn("[driver] WebDriverManager 解析失敗, 改用快取目錄 {} 裡的 chromedriver", cachePath, e);
+            useCachedDriver();
+            return "cache fallback";
+        }
+    }
+
+    private void useCachedDriver() {
+        final Path cachedDriver = findCachedDriver(Paths.get(cachePath))
+                .orElseThrow(() -> new IllegalStateException("離線模式找不到 chromedriver, 請設定 driver.path 或先在有網路的環境執行一次, 快取目錄:"
+                        + cachePath));
+        System.setProperty(CHROME_DRIVER_PROPERTY, cachedDriver.toString());
+    }
+
+    // 快取目錄底下版本最新的 chromedriver
+    static Optional<Path> findCachedDriver(Path cacheDir) {
+        if (!Files.isDirectory(cacheDir)) {
+            return Optional.empty();
+        }
+        try (Stream<Path> paths = Files.walk(cacheDir)) {
+            return paths.filter(path -> {
+                final String fileName = path.getFileName().toString();
+                return (fileName.equals("chromedriver") || fileName.equals("chromedriver.exe"))
+                        && Files.isRegularFile(path);
+            }).max(Comparator.comparing(DriverResolver::versionOf, DriverResolver::compareVersions));
+        } catch (IOException e) {
+            LOGGER.warn("[driver] 讀取快取目錄失敗:{}", cacheDir, e);
+            return Optional.empty();
+        }
+    }
+
+    private static String versionOf(Path path) {
+        String version = "0";
+        final Matcher matcher = VERSION_PATTERN.matcher(path.toString());
+        while (matcher.find()) {
+            version = matcher.group(1);
+        }
+        return version;
+    }
+
+    private static int compareVersions(String left, String right) {
+        final String[] leftParts = left.split("\\.");
+        final String[] rightParts = right.split("\\.");
+        for (int i = 0; i < Math.max(leftParts.length, rightParts.length); i++) {
+            final long leftPart = i < leftParts.length ? Long.parseLong(leftParts[i]) : 0;
+            final long rightPart = i < rightParts.length ? Long.parseLong(rightParts[i]) : 0;
+            if (leftPart != rightPart) {
+                return Long.compare(leftPart, rightPart);
+            }
+        }
+        return 0;
+    }
+
+    public static void reportMetrics(RunReport runReport) {
+        if (resolveNanos >= 0) {
+            runReport.putMetric("driver_resolve_seconds", resolveNanos / 1_000_000_000d);
+        }
+    }
+}
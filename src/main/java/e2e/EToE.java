@@ -1,37 +1,33 @@
 package e2e;
 
-import io.github.bonigarcia.wdm.WebDriverManager;
-import io.github.bonigarcia.wdm.config.DriverManagerType;
+import com.google.common.collect.Iterators;
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.RunFileTask;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.openqa.selenium.By;
 import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
-import org.openqa.selenium.chrome.ChromeDriver;
-import org.openqa.selenium.support.ui.ExpectedConditions;
 import org.openqa.selenium.support.ui.Select;
-import org.openqa.selenium.support.ui.WebDriverWait;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import static java.time.Duration.ofMillis;
-import static java.time.Duration.ofSeconds;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class EToE {
-    static {
-        WebDriverManager.getInstance(DriverManagerType.CHROME).setup();
-    }
-
     private static final Logger LOGGER = LoggerFactory.getLogger(EToE.class);
 
     public static final String EMPTY_STRING = "";
@@ -40,148 +36,333 @@ public class EToE {
     public static final char DOUBLE_QUOTES = '"';
     public static final char APOSTROPHE = '\'';
     public static final char ESCAPE_CHARACTER = '\\';
+    // 只執行內容或環境有變、或上次沒有成功的檔案
+    public static final String CHANGED_ONLY_ARG = "--changed-only";
+    // 上次失敗的檔案先跑
+    public static final String FAILED_FIRST_ARG = "--failed-first";
+    // 把檔案分給多個 worker 行程執行
+    public static final String COORDINATOR_ARG = "--coordinator";
+    // 接在後面的 host:port 是 coordinator 的位址
+    public static final String WORKER_ARG = "--worker";
+    // 接在後面的檔名以多個虛擬使用者重複執行, 量測吞吐量與延遲
+    public static final String LOAD_ARG = "--load";
+    // 常駐並等待 --submit 或監看目錄送來的檔案
+    public static final String DAEMON_ARG = "--daemon";
+    // 接在後面的 host:port 與檔名 (- 代表標準輸入) 交給 daemon 執行
+    public static final String SUBMIT_ARG = "--submit";
 
     public interface CommandInterface {
-        void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions);
+        void executeCommand(WebDriver webDriver, CommandStep step);
     }
 
     public enum Command implements CommandInterface {
-        GO_PAGE("goPage") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String pOption = cmdOptions.get("p");
-                if (pOption == null || pOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供頁面資訊");
-                }
-                webDriver.get(pOption);
+        GO_PAGE("goPage", "p") {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                webDriver.get(step.getOption("p"));
+                LocatorCache.invalidate(webDriver);
             }
         },
         REFRESH("refresh") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
                 webDriver.navigate().refresh();
+                LocatorCache.invalidate(webDriver);
             }
         },
-        CLICK("click") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String bOption = cmdOptions.get("b");
-                if (bOption == null || bOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋根據");
-                }
-                String sOption = cmdOptions.get("s");
-                if (sOption == null || sOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋名稱");
-                }
-                List<WebElement> webElements = findElementsOnPage(webDriver, bOption, sOption);
-                if (webElements != null && !webElements.isEmpty()) {
-                    for (WebElement webElement : webElements) {
-                        clickByJs(webDriver, webElement);
+        CLICK("click", "b", "s") {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                try {
+                    if (BatchActions.isEnabled()) {
+                        withCachedElements(webDriver, step, cached -> BatchActions.click(webDriver,
+                                step.getOption("b"), step.getOption("s"), cached));
+                    } else {
+                        forEachElement(webDriver, step, webElement -> clickByJs(webDriver, webElement));
                     }
+                } finally {
+                    // 點擊可能換頁或改動 DOM, 之後重新找
+                    LocatorCache.invalidate(webDriver);
                 }
             }
         },
-        WAIT_PAGE("wait page") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String pOption = cmdOptions.get("p");
-                if (pOption == null || pOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供頁面資訊");
+        WAIT_PAGE("wait page", "p") {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                String pOption = step.getOption("p");
+                WaitOptions waitOptions = WaitOptions.of(step.getOptions());
+                if (step.hasOption("r")) {
+                    waitTargetPageReady(webDriver, pOption, waitOptions);
+                } else if (step.hasOption("l")) {
+                    waitLeaveThisPage(webDriver, pOption, waitOptions);
+                } else {
+                    waitUtilGoTargetPage(webDriver, pOption, waitOptions);
+                }
+                if (step.hasOption(NetworkIdle.IDLE_OPTION)) {
+                    NetworkIdle.waitIdle(webDriver, NetworkIdle.quietMillis(step.getOption(NetworkIdle.QUIET_OPTION)),
+                            waitOptions);
                 }
-                if (cmdOptions.containsKey("r")) {
-                    waitTargetPageReady(webDriver, pOption);
-                } else if (cmdOptions.containsKey("l")) {
-                    waitLeaveThisPage(webDriver, pOption);
+                LocatorCache.invalidate(webDriver);
+            }
+
+            @Override
+            public void validateOptions(Map<String, String> cmdOptions) {
+                // 只等網路閒置時可以不指定頁面
+                if (cmdOptions.containsKey(NetworkIdle.IDLE_OPTION) && !cmdOptions.containsKey("p")) {
+                    Map<String, String> withPage = new HashMap<>(cmdOptions);
+                    withPage.put("p", "*");
+                    super.validateOptions(withPage);
                 } else {
-                    waitUtilGoTargetPage(webDriver, pOption);
+                    super.validateOptions(cmdOptions);
                 }
             }
         },
 
         // 根據html或jsp內容去找而非畫面上
-        WAIT_ELEMENT("wait element") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String bOption = cmdOptions.get("b");
-                if (bOption == null || bOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋根據");
-                }
-                String sOption = cmdOptions.get("s");
-                if (sOption == null || sOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋名稱");
-                }
-                String cOption = cmdOptions.get("c");
-                if (cOption == null || cOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位等待條件");
-                }
-                By byCondition = getByCondition(bOption, sOption);
-                switch (cOption) {
-                    case "clickable":
-                        new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500)).until(ExpectedConditions.elementToBeClickable(byCondition));
-                        break;
-                    case "visible":
-                        new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500))
-                                .until(ExpectedConditions.visibilityOfElementLocated(byCondition));
-                        break;
-                    case "exist":
-                        new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500))
-                                .until(ExpectedConditions.presenceOfElementLocated(byCondition));
-                        break;
-                    default:
-                        break;
+        WAIT_ELEMENT("wait element", "b", "s", "c") {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                By byCondition = step.getBy();
+                String cOption = step.getOption("c");
+                // 和 ExpectedConditions 一樣只看第一個元素, 但回傳全部找到的元素放進快取給後面的指令用
+                List<WebElement> webElements = Waits.until(webDriver, cOption + " " + byCondition, (input) -> {
+                    List<WebElement> found = input.findElements(byCondition);
+                    if (found.isEmpty()) {
+                        return null;
+                    }
+                    WebElement first = found.get(0);
+                    switch (cOption) {
+                        case "clickable":
+                            return first.isDisplayed() && first.isEnabled() ? found : null;
+                        case "visible":
+                            return first.isDisplayed() ? found : null;
+                        default:
+                            return found;
+                    }
+                }, WaitOptions.of(step.getOptions()));
+                LocatorCache.put(webDriver, step.getOption("b"), step.getOption("s"), webElements);
+            }
+
+            @Override
+            public void validateOptions(Map<String, String> cmdOptions) {
+                super.validateOptions(cmdOptions);
+                if (!WAIT_CONDITIONS.contains(cmdOptions.get("c"))) {
+                    throw new RuntimeException("不支援的等待條件:" + cmdOptions.get("c"));
                 }
             }
         },
-        SET_FIELD("set field") {
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String bOption = cmdOptions.get("b");
-                if (bOption == null || bOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋根據");
-                }
-                String sOption = cmdOptions.get("s");
-                if (sOption == null || sOption.isEmpty()) {
-                    throw new RuntimeException("沒有提供欄位搜尋名稱");
+        SET_FIELD("set field", "b", "s") {
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                String value = String.valueOf(step.getOption("v"));
+                WaitOptions waitOptions = WaitOptions.of(step.getOptions());
+                if (BatchActions.isEnabled()) {
+                    // 批次處理不了的元素才逐一處理
+                    List<WebElement> webElements = withCachedElements(webDriver, step, cached -> BatchActions.setValue(
+                            webDriver, step.getOption("b"), step.getOption("s"), cached, value));
+                    setValue(webDriver, webElements, value, waitOptions);
+                } else {
+                    forEachElement(webDriver, step, webElement -> setValue(webDriver,
+                            Collections.singletonList(webElement), value, waitOptions));
                 }
-                String vOption = cmdOptions.get("v");
-                List<WebElement> webElements = findElementsOnPage(webDriver, bOption, sOption);
-                setValue(webDriver, webElements, vOption);
+            }
+        },
+        SAVE_STATE("save state", SessionState.KEY_OPTION) {
+            @Override
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                SessionState.save(webDriver, step.getOption(SessionState.KEY_OPTION));
+            }
+
+            @Override
+            public void validateOptions(Map<String, String> cmdOptions) {
+                super.validateOptions(cmdOptions);
+                SessionState.validateKey(cmdOptions.get(SessionState.KEY_OPTION));
+            }
+        },
+        LOAD_STATE("load state", SessionState.KEY_OPTION) {
+            @Override
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+                SessionState.load(webDriver, step.getOption(SessionState.KEY_OPTION));
+            }
+
+            @Override
+            public void validateOptions(Map<String, String> cmdOptions) {
+                super.validateOptions(cmdOptions);
+                SessionState.validateKey(cmdOptions.get(SessionState.KEY_OPTION));
             }
         },
         SLEEP("sleep") {
             @Override
-            public void executeCommand(WebDriver webDriver, Map<String, String> cmdOptions) {
-                String timeMillis = cmdOptions.get("t");
-                long sleepTime;
-                if (timeMillis == null || timeMillis.isEmpty()) {
-                    sleepTime = 1000;
-                } else {
-                    sleepTime = Long.parseLong(timeMillis);
-                }
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
                 try {
-                    Thread.sleep(sleepTime);
+                    Thread.sleep(getSleepTime(step.getOptions()));
                 } catch (InterruptedException e) {
-                    LOGGER.error("sleep 發生錯誤", e);
+                    // 逾時的 watchdog 會中斷執行緒, 保留中斷狀態並結束這個檔案
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("sleep 被中斷", e);
                 }
             }
 
+            @Override
+            public void validateOptions(Map<String, String> cmdOptions) {
+                try {
+                    getSleepTime(cmdOptions);
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("睡眠時間不是數字:" + cmdOptions.get("t"));
+                }
+            }
+        },
+        // parallel / branch / join 標出同時執行的區塊, 由 runPlan 交給 ParallelBlocks;
+        // 不支援區塊的執行方式 (非同步、串流、壓測) 把標記當成空步驟, 各分支依序執行
+        PARALLEL("parallel") {
+            @Override
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+            }
+        },
+        BRANCH("branch") {
+            @Override
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+            }
+        },
+        JOIN("join") {
+            @Override
+            public void executeCommand(WebDriver webDriver, CommandStep step) {
+            }
         };
 
+        private static final List<String> WAIT_CONDITIONS = Arrays.asList("clickable", "visible", "exist");
+        private static final List<String> NUMBER_OPTIONS = Arrays.asList(WaitOptions.TIMEOUT_OPTION, WaitOptions.POLL_OPTION,
+                NetworkIdle.QUIET_OPTION);
+        // 依指令長度由長到短, 讓較長的指令優先比對
+        private static final Command[] BY_PREFIX_LENGTH = values();
+
+        static {
+            Arrays.sort(BY_PREFIX_LENGTH, (a, b) -> b.cmdString.length() - a.cmdString.length());
+        }
+
         private final String cmdString;
+        private final String[] requiredOptions;
 
-        Command(String cmdString) {
+        Command(String cmdString, String... requiredOptions) {
             this.cmdString = cmdString;
+            this.requiredOptions = requiredOptions;
         }
 
         public String getCmdString() {
             return cmdString;
         }
 
-        // 必須是畫面上可被找到的
-        private static List<WebElement> findElementsOnPage(WebDriver webDriver, String byType, String search) {
-            List<WebElement> webElements = null;
-            By by = getByCondition(byType, search);
-            if (by != null) {
-                webElements = webDriver.findElements(by);
+        // 等待類指令, 非同步執行時改成排程重新檢查
+        public boolean isWait() {
+            return this == WAIT_PAGE || this == WAIT_ELEMENT;
+        }
+
+        // 區塊標記, 本身不操作瀏覽器也不記錄耗時
+        public boolean isBlockMarker() {
+            return this == PARALLEL || this == BRANCH || this == JOIN;
+        }
+
+        // 編譯階段就檢查選項, 不用等到開瀏覽器才發現
+        public void validateOptions(Map<String, String> cmdOptions) {
+            for (String requiredOption : requiredOptions) {
+                String optionValue = cmdOptions.get(requiredOption);
+                if (optionValue == null || optionValue.isEmpty()) {
+                    throw new RuntimeException(getMissingOptionMessage(requiredOption));
+                }
+            }
+            for (String numberOption : NUMBER_OPTIONS) {
+                String optionValue = cmdOptions.get(numberOption);
+                if (optionValue != null && !optionValue.isEmpty() && !optionValue.chars().allMatch(Character::isDigit)) {
+                    throw new RuntimeException("選項-" + numberOption + "必須是數字:" + optionValue);
+                }
+            }
+            if (cmdOptions.containsKey("b") && getByCondition(cmdOptions.get("b"), cmdOptions.get("s")) == null) {
+                throw new RuntimeException("不支援的欄位搜尋根據:" + cmdOptions.get("b"));
+            }
+        }
+
+        // 含 ${變數} 的值換成該選項合法的值再檢查, 代入資料後 CommandStep.bind 會用實際的值再完整檢查一次
+        public void validateTemplateOptions(Map<String, String> cmdOptions) {
+            Map<String, String> standIn = new HashMap<>(cmdOptions);
+            for (Map.Entry<String, String> entry : standIn.entrySet()) {
+                if (Placeholders.contains(entry.getValue())) {
+                    entry.setValue(getTemplateStandIn(entry.getKey(), entry.getValue()));
+                }
+            }
+            validateOptions(standIn);
+        }
+
+        private static String getTemplateStandIn(String option, String value) {
+            if (NUMBER_OPTIONS.contains(option) || "t".equals(option)) {
+                return "0";
+            }
+            switch (option) {
+                case "b":
+                    return "id";
+                case "c":
+                    return "exist";
+                case SessionState.KEY_OPTION:
+                    return "template";
+                default:
+                    return value;
+            }
+        }
+
+        private static String getMissingOptionMessage(String option) {
+            switch (option) {
+                case "p":
+                    return "沒有提供頁面資訊";
+                case "b":
+                    return "沒有提供欄位搜尋根據";
+                case "s":
+                    return "沒有提供欄位搜尋名稱";
+                case "c":
+                    return "沒有提供欄位等待條件";
+                default:
+                    return "沒有提供選項-" + option;
+            }
+        }
+
+        // 快取的元素 stale 時清掉快取, 改在頁面上重新找一次
+        private static <T> T withCachedElements(WebDriver webDriver, CommandStep step,
+                                                Function<List<WebElement>, T> action) {
+            List<WebElement> cached = LocatorCache.get(webDriver, step.getOption("b"), step.getOption("s"));
+            try {
+                return action.apply(cached);
+            } catch (StaleElementReferenceException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                LocatorCache.markStale(webDriver);
+                return action.apply(null);
+            }
+        }
+
+        // 第一個元素就 stale 代表快取過期, 重新找再做; 做到一半才 stale 就照原本的行為丟出
+        private static void forEachElement(WebDriver webDriver, CommandStep step, Consumer<WebElement> action) {
+            String bOption = step.getOption("b");
+            String sOption = step.getOption("s");
+            List<WebElement> cached = LocatorCache.get(webDriver, bOption, sOption);
+            List<WebElement> webElements = cached != null ? cached : LocatorCache.find(webDriver, bOption, sOption, step.getBy());
+            for (int i = 0; i < webElements.size(); i++) {
+                try {
+                    action.accept(webElements.get(i));
+                } catch (StaleElementReferenceException e) {
+                    if (i > 0 || cached == null) {
+                        throw e;
+                    }
+                    LocatorCache.markStale(webDriver);
+                    for (WebElement webElement : LocatorCache.find(webDriver, bOption, sOption, step.getBy())) {
+                        action.accept(webElement);
+                    }
+                    return;
+                }
             }
-            return webElements;
         }
 
-        private static By getByCondition(String byType, String search) {
+        static long getSleepTime(Map<String, String> cmdOptions) {
+            String timeMillis = cmdOptions.get("t");
+            if (timeMillis == null || timeMillis.isEmpty()) {
+                return 1000;
+            }
+            return Long.parseLong(timeMillis);
+        }
+
+        static By getByCondition(String byType, String search) {
             By by = null;
             if (byType != null && search != null) {
                 switch (byType) {
@@ -218,63 +399,299 @@ public class EToE {
     }
 
     public static Command getCommand(String inputCommand) {
-        Command cmd = null;
-        for (Command importantCmd : Command.values()) {
-            final String importantCmdPrefix = importantCmd.getCmdString();
-            if (inputCommand.startsWith(importantCmdPrefix)
-                    && (cmd == null || importantCmdPrefix.length() > cmd.getCmdString().length())) {
-                cmd = importantCmd;
+        for (Command cmd : Command.BY_PREFIX_LENGTH) {
+            if (inputCommand.startsWith(cmd.getCmdString())) {
+                return cmd;
             }
         }
-        return cmd;
+        return null;
     }
 
     public static void processCmd(WebDriver webDriver, String inputCommand) {
-        final Command cmd = getCommand(inputCommand);
-        if (cmd != null) {
-            LOGGER.debug("[processCmd] 對應到的指令:{}", cmd.getCmdString());
-            final String newCommand = inputCommand.replaceFirst(cmd.getCmdString(), EMPTY_STRING);
-            final Map<String, String> cmdOptions = processCmdDetail(newCommand);
-            LOGGER.debug("[processCmd] optionKey和optionValue的對應:{}", cmdOptions);
-            cmd.executeCommand(webDriver, cmdOptions);
-            LOGGER.debug("[processCmd] 處理完畢");
-        } else {
-            throw new RuntimeException("[processCmd] 無找到此指令,輸入的完整指令為" + inputCommand);
+        executeStep(webDriver, CommandStep.compile(inputCommand, 0));
+    }
+
+    public static void executeStep(WebDriver webDriver, CommandStep step) {
+        if (step.getCommand().isBlockMarker()) {
+            return;
+        }
+        if (SessionState.skip(webDriver, step)) {
+            LOGGER.debug("[processCmd] 已還原登入狀態, 略過第{}行", step.getLineNumber());
+            return;
         }
+        LOGGER.debug("[processCmd] 對應到的指令:{}", step.getCommand().getCmdString());
+        LOGGER.debug("[processCmd] optionKey和optionValue的對應:{}", step.getDisplayOptions());
+        final long startNanos = StepTimer.beginStep();
+        Throwable error = null;
+        try {
+            step.getCommand().executeCommand(webDriver, step);
+        } catch (RuntimeException e) {
+            error = e;
+            logStepFailed(step);
+            FailureArtifacts.capture(webDriver, StepTimer.currentRunFileName(), step, e);
+            throw e;
+        } finally {
+            StepTimer.endStep(step, startNanos, error);
+        }
+        LOGGER.debug("[processCmd] 處理完畢");
+    }
+
+    static void logStepFailed(CommandStep step) {
+        LOGGER.error("[processCmd] {} 執行失敗, 要從這行接續執行可在 run.file.names 的檔名後加上 :{}", step,
+                step.getLineNumber());
     }
 
     public static void main(String[] args) throws IOException, URISyntaxException {
+        // 瀏覽器 driver 改成第一次開 session 才解析, 這裡只剩 JVM 與類別載入的時間
+        final long startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.info("[startup] JVM 啟動後 {}ms 進入 main", startupMillis);
         final File eToEResourceRootDir = new File(Objects.requireNonNull(EToE.class.getResource("/e2e")).toURI());
         final File runPropertiesFile = new File(eToEResourceRootDir, "conf/run.properties");
         if (runPropertiesFile.isFile()) {
             final Properties properties = new Properties();
             properties.load(Files.newInputStream(runPropertiesFile.toPath()));
+            WaitOptions.configure(properties);
+            BatchActions.configure(properties);
+            LocatorCache.configure(properties);
+            NetworkIdle.configure(properties);
+            SessionState.configure(properties);
+            FailureArtifacts.configure(properties);
+            ParallelBlocks.configure(properties);
+            final List<String> argList = Arrays.asList(args);
+            final int workerIndex = argList.indexOf(WORKER_ARG);
+            if (workerIndex >= 0) {
+                if (workerIndex + 1 >= args.length) {
+                    throw new IllegalArgumentException(WORKER_ARG + " 後面要接 coordinator 的 host:port");
+                }
+                System.exit(ShardWorker.run(eToEResourceRootDir, properties, args[workerIndex + 1]));
+            }
+            final int loadIndex = argList.indexOf(LOAD_ARG);
+            if (loadIndex >= 0) {
+                if (loadIndex + 1 >= args.length) {
+                    throw new IllegalArgumentException(LOAD_ARG + " 後面要接 run file 檔名");
+                }
+                System.exit(LoadRunner.run(eToEResourceRootDir, properties, args[loadIndex + 1]));
+            }
+            if (argList.contains(DAEMON_ARG)) {
+                System.exit(Daemon.run(eToEResourceRootDir, properties));
+            }
+            final int submitIndex = argList.indexOf(SUBMIT_ARG);
+            if (submitIndex >= 0) {
+                if (submitIndex + 2 >= args.length) {
+                    throw new IllegalArgumentException(SUBMIT_ARG + " 後面要接 daemon 的 host:port 與檔名");
+                }
+                System.exit(Daemon.submit(args[submitIndex + 1], args[submitIndex + 2],
+                        properties.getProperty("daemon.token", "").trim()));
+            }
             final String runFileNames = getRunFileNames(properties);
             final String[] runFileNamesSplit = runFileNames.split(",");
-            final ExecutorService executorService = Executors.newFixedThreadPool(4);
-            try {
+            final int parallelism = getIntProperty(properties, "run.parallelism", Runtime.getRuntime().availableProcessors());
+            final List<RunFileResult> results = new ArrayList<>();
+            final List<RunFileTask> tasks = new ArrayList<>();
+            final List<DataDrivenRun> dataDrivenRuns = new ArrayList<>();
+            final boolean changedOnly = argList.contains(CHANGED_ONLY_ARG);
+            final boolean failedFirst = argList.contains(FAILED_FIRST_ARG);
+            final boolean coordinator = argList.contains(COORDINATOR_ARG);
+            for (String arg : args) {
+                if (!CHANGED_ONLY_ARG.equals(arg) && !FAILED_FIRST_ARG.equals(arg) && !COORDINATOR_ARG.equals(arg)) {
+                    LOGGER.warn("不認得的參數:{}, 可用的參數: {} {} {} {} host:port {} 檔名 {} {} host:port 檔名", arg,
+                            CHANGED_ONLY_ARG, FAILED_FIRST_ARG, COORDINATOR_ARG, WORKER_ARG, LOAD_ARG, DAEMON_ARG,
+                            SUBMIT_ARG);
+                }
+            }
+            final ResultStore resultStore = changedOnly || failedFirst
+                    || getBooleanProperty(properties, "run.cache.enabled", true)
+                    ? ResultStore.load(properties) : null;
+            for (String runFileName : runFileNamesSplit) {
+                addRunFile(eToEResourceRootDir, properties, runFileName.trim(), tasks, dataDrivenRuns, results,
+                        resultStore, changedOnly);
+            }
+            // 一般檔案先排, 資料驅動的列依優先權接在後面, 邊執行邊讀資料; --failed-first 時上次失敗的各自排在最前面
+            Comparator<RunFileTask> taskOrder = RunFileScheduler.TASK_ORDER;
+            Comparator<DataDrivenRun> dataDrivenOrder = Comparator.comparingInt(DataDrivenRun::getPriority).reversed();
+            if (failedFirst) {
+                taskOrder = Comparator.comparing((RunFileTask task) -> !resultStore.lastFailed(task.getName()))
+                        .thenComparing(taskOrder);
+                dataDrivenOrder = Comparator.comparing(
+                        (DataDrivenRun run) -> !resultStore.lastFailed(run.getRunFileName())).thenComparing(dataDrivenOrder);
+            }
+            tasks.sort(taskOrder);
+            dataDrivenRuns.sort(dataDrivenOrder);
+            final Iterator<RunFileTask> allTasks = Iterators.concat(tasks.iterator(),
+                    Iterators.concat(dataDrivenRuns.iterator()));
+            final RunReport runReport = new RunReport(getIntProperty(properties, "report.steps.limit", 1000));
+            runReport.putMetric("startup_seconds", startupMillis / 1000d);
+            if (coordinator) {
+                // 這裡編譯過的檔案只用來提早發現語法錯誤與決定分配順序, 實際由 worker 重新讀取執行
+                for (DataDrivenRun dataDrivenRun : dataDrivenRuns) {
+                    IOUtils.closeQuietly(dataDrivenRun);
+                }
+                final Map<String, Long> entries = new LinkedHashMap<>();
                 for (String runFileName : runFileNamesSplit) {
-                    final File runFile = new File(eToEResourceRootDir, "run/" + runFileName);
-                    if (runFile.isFile()) {
-                        CompletableFuture.runAsync(() -> {
-                            final WebDriver webDriver = new ChromeDriver();
-                            try {
-                                runFile(webDriver, runFile);
-                            } catch (IOException e) {
-                                LOGGER.debug("runFile:{} e2e 發生錯誤！", runFile);
-                            }
-                        }, executorService);
+                    final String entry = runFileName.trim();
+                    final String name = entry.contains(":") ? entry.substring(0, entry.lastIndexOf(':')).trim() : entry;
+                    final boolean queued = tasks.stream().anyMatch(task -> task.getName().equals(name))
+                            || dataDrivenRuns.stream().anyMatch(run -> run.getRunFileName().equals(name));
+                    if (queued) {
+                        // 上次失敗的檔案加大權重, 先分出去
+                        final long weight = new File(eToEResourceRootDir, "run/" + name).length();
+                        entries.put(entry, failedFirst && resultStore.lastFailed(name) ? Long.MAX_VALUE / 2 + weight
+                                : weight);
+                    }
+                }
+                if (!entries.isEmpty()) {
+                    results.addAll(new ShardCoordinator(properties, runReport).run(entries));
+                }
+            } else if (allTasks.hasNext()) {
+                final ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(properties);
+                // 動態調整時 run.parallelism 是起始值, 同時執行數在 concurrency.min ~ concurrency.max 之間變動
+                final boolean adaptive = getBooleanProperty(properties, "concurrency.adaptive.enabled", false);
+                final int maxParallelism = adaptive ? ConcurrencyController.getMax(properties) : parallelism;
+                final int poolMax = getIntProperty(properties, "driver.pool.max", maxParallelism);
+                final WebDriverPool webDriverPool = new WebDriverPool(chromeSessionFactory,
+                        getIntProperty(properties, "driver.pool.min", 0),
+                        adaptive ? Math.max(poolMax, maxParallelism) : poolMax);
+                final ConcurrencyController concurrencyController = adaptive
+                        ? new ConcurrencyController(properties, parallelism, webDriverPool) : null;
+                // 非同步模式: 少量執行緒以接續方式推動所有 session, run.parallelism 代表同時開幾個 session
+                final AsyncStepRunner asyncStepRunner = getBooleanProperty(properties, "run.async.enabled", false)
+                        ? new AsyncStepRunner(Executors.newScheduledThreadPool(getIntProperty(properties,
+                        "run.async.carriers", Runtime.getRuntime().availableProcessors())))
+                        : null;
+                ParallelBlocks.use(webDriverPool, concurrencyController);
+                try {
+                    webDriverPool.prestart();
+                    final RunFileScheduler runFileScheduler = new RunFileScheduler(webDriverPool,
+                            adaptive ? concurrencyController.getMax() : Math.min(parallelism, webDriverPool.getMaxSize()),
+                            getIntProperty(properties, "run.file.timeout.seconds", 0) * 1000L, runReport,
+                            asyncStepRunner, concurrencyController);
+                    if (concurrencyController != null) {
+                        concurrencyController.start();
+                    }
+                    results.addAll(runFileScheduler.runAll(allTasks));
+                } finally {
+                    if (concurrencyController != null) {
+                        concurrencyController.close();
+                        concurrencyController.reportMetrics(runReport);
+                    }
+                    if (asyncStepRunner != null) {
+                        asyncStepRunner.close();
                     }
+                    for (DataDrivenRun dataDrivenRun : dataDrivenRuns) {
+                        IOUtils.closeQuietly(dataDrivenRun);
+                    }
+                    ParallelBlocks.close();
+                    webDriverPool.close();
+                    chromeSessionFactory.close();
+                    FailureArtifacts.flush(getIntProperty(properties, "artifacts.flush.timeout.seconds", 30) * 1000L);
+                    webDriverPool.reportMetrics(runReport);
+                    chromeSessionFactory.reportMetrics(runReport);
+                    LocatorCache.reportMetrics(runReport);
+                    SessionState.reportMetrics(runReport);
+                    FailureArtifacts.reportMetrics(runReport);
+                    ParallelBlocks.reportMetrics(runReport);
+                    DriverResolver.reportMetrics(runReport);
                 }
-            } finally {
-                executorService.shutdown();
             }
+            runReport.addResults(results);
+            if (resultStore != null) {
+                resultStore.update(results);
+                resultStore.save();
+            }
+            try {
+                runReport.write(new File(properties.getProperty("report.dir", "e2e-report")),
+                        getBooleanProperty(properties, "report.prometheus.enabled", false));
+            } catch (IOException e) {
+                LOGGER.error("報告輸出失敗", e);
+            }
+            System.exit(RunFileScheduler.logSummary(results));
         } else {
             LOGGER.debug("file:{} doesn't exist", runPropertiesFile);
         }
 
     }
 
+    // 檔名後面可以加 :行號, 從該行開始執行 (用來接續失敗的長腳本)
+    // 有設定 run.data.檔名 時改成資料驅動執行, 每一筆資料各執行一次
+    static void addRunFile(File eToEResourceRootDir, Properties properties, String runFileEntry,
+                                   List<RunFileTask> tasks, List<DataDrivenRun> dataDrivenRuns,
+                                   List<RunFileResult> results, ResultStore resultStore, boolean changedOnly) {
+        int colonIndex = runFileEntry.lastIndexOf(':');
+        if (colonIndex > 0 && !runFileEntry.substring(colonIndex + 1).trim().matches("\\d+")) {
+            colonIndex = -1;
+        }
+        final String runFileNameTrim = colonIndex > 0 ? runFileEntry.substring(0, colonIndex).trim() : runFileEntry;
+        final int fromLine = colonIndex > 0 ? Integer.parseInt(runFileEntry.substring(colonIndex + 1).trim()) : 1;
+        final File runDir = new File(eToEResourceRootDir, "run");
+        final File runFile = new File(runDir, runFileNameTrim);
+        // 檔名可能來自 daemon 或 coordinator 的請求, 不能用 ../ 讀到 run 目錄以外的檔案
+        if (!runFile.toPath().toAbsolutePath().normalize().startsWith(runDir.toPath().toAbsolutePath().normalize())) {
+            LOGGER.error("runFile:{} 不在 run 目錄內", runFileNameTrim);
+            results.add(RunFileResult.failed(runFileNameTrim,
+                    new IllegalArgumentException("run file 必須在 run 目錄內:" + runFileNameTrim)));
+            return;
+        }
+        if (!runFile.isFile()) {
+            LOGGER.error("runFile:{} 不存在", runFile);
+            results.add(RunFileResult.failed(runFileNameTrim, new FileNotFoundException(runFile.toString())));
+            return;
+        }
+        final int priority = getIntProperty(properties, "run.file.priority." + runFileNameTrim, 0);
+        final String dataFileName = properties.getProperty("run.data." + runFileNameTrim);
+        try {
+            final File dataFile = dataFileName != null && !dataFileName.trim().isEmpty()
+                    ? new File(eToEResourceRootDir, dataFileName.trim()) : null;
+            // 從中間某行接續執行的結果不代表整個檔案, 不查也不記
+            if (resultStore != null && fromLine == 1 && (dataFile == null || dataFile.isFile())) {
+                final String cacheKey = resultStore.key(runFile, dataFile);
+                if (changedOnly && resultStore.passed(runFileNameTrim, cacheKey)) {
+                    LOGGER.info("runFile:{} 內容與環境都沒變且上次成功, 略過", runFileNameTrim);
+                    results.add(RunFileResult.skipped(runFileNameTrim));
+                    return;
+                }
+                resultStore.track(runFileNameTrim, cacheKey);
+            }
+            if (dataFile != null) {
+                final DataSource dataSource = DataSource.open(dataFile);
+                try {
+                    dataDrivenRuns.add(new DataDrivenRun(runFileNameTrim, compileTemplateFile(runFile), dataSource, priority,
+                            fromLine));
+                } catch (RuntimeException e) {
+                    IOUtils.closeQuietly(dataSource);
+                    throw e;
+                }
+                return;
+            }
+            if (runFile.length() > getIntProperty(properties, "run.streaming.threshold.bytes", 10 * 1024 * 1024)) {
+                final boolean waitsForNetworkIdle = StreamingRunner.validate(runFile);
+                final int progressLines = getIntProperty(properties, "run.streaming.progress.lines", 10000);
+                tasks.add(new RunFileTask(runFileNameTrim, priority, runFile.length(), webDriver -> {
+                    if (waitsForNetworkIdle) {
+                        NetworkIdle.register(webDriver);
+                    }
+                    try {
+                        StreamingRunner.run(webDriver, runFile, fromLine, progressLines);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                return;
+            }
+            final CommandPlan commandPlan = compileFile(runFile);
+            if (!commandPlan.getVariables().isEmpty()) {
+                LOGGER.warn("runFile:{} 有變數 {} 但沒有設定 run.data.{}, 會照原字執行", runFile,
+                        commandPlan.getVariables(), runFileNameTrim);
+            }
+            tasks.add(new RunFileTask(runFileNameTrim, null, priority, runFile.length(), commandPlan, fromLine));
+        } catch (IOException e) {
+            LOGGER.error("runFile:{} 讀取失敗", runFile, e);
+            results.add(RunFileResult.failed(runFileNameTrim, e));
+        } catch (RuntimeException e) {
+            LOGGER.error("runFile:{} 語法錯誤\n{}", runFile, e.getMessage());
+            results.add(RunFileResult.failed(runFileNameTrim, e));
+        }
+    }
+
     private static String getRunFileNames(Properties properties) {
         final String runFileNames = properties.getProperty("run.file.names");
         if (runFileNames == null) {
@@ -287,7 +704,28 @@ public class EToE {
         return runFileNamesTrim;
     }
 
+    public static int getIntProperty(Properties properties, String key, int defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    public static boolean getBooleanProperty(Properties properties, String key, boolean defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
     public static void setValue(WebDriver webDriver, List<WebElement> webElements, Object value) {
+        setValue(webDriver, webElements, value, WaitOptions.defaults());
+    }
+
+    public static void setValue(WebDriver webDriver, List<WebElement> webElements, Object value,
+                                WaitOptions waitOptions) {
         if (webElements != null && !webElements.isEmpty()) {
             for (WebElement webElement : webElements) {
                 String tagName = webElement.getTagName();
@@ -295,7 +733,7 @@ public class EToE {
                 switch (tagName) {
                     case "select":
                         // wait option exist
-                        waitElementExist(webDriver, webElement, stringValue);
+                        waitElementExist(webDriver, webElement, stringValue, waitOptions);
                         Select select = new Select(webElement);
                         select.selectByValue(String.valueOf(value));
                         break;
@@ -360,246 +798,114 @@ public class EToE {
     }
 
     public static void waitElementExist(WebDriver webDriver, WebElement webElement, String value) {
-        new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500)).until((input) -> {
+        waitElementExist(webDriver, webElement, value, WaitOptions.defaults());
+    }
+
+    public static void waitElementExist(WebDriver webDriver, WebElement webElement, String value,
+                                        WaitOptions waitOptions) {
+        Waits.until(webDriver, "option[value=\"" + value + "\"] 出現", (input) -> {
             List<WebElement> webElements = webElement.findElements(By.cssSelector("option[value=\"" + value + "\"]"));
             return webElements != null && !webElements.isEmpty();
-        });
+        }, waitOptions);
+    }
+
+    // 非同步執行 set field 前先確認每個 select 都已有要選的 option, 不輸入任何值, 重複檢查也沒有副作用
+    // 只用一次 findElements 加一次 script, 避免逐一 getTagName 的來回
+    public static void waitSelectOptionsExist(WebDriver webDriver, CommandStep step) {
+        final String value = String.valueOf(step.getOption("v"));
+        Waits.until(webDriver, "select option[value=\"" + value + "\"] 出現", (input) -> {
+            List<WebElement> webElements = input.findElements(step.getBy());
+            if (webElements.isEmpty()) {
+                return true;
+            }
+            Object ready = ((JavascriptExecutor) input).executeScript("var value = arguments[1];"
+                    + " return arguments[0].every(function (e) { return e.tagName.toLowerCase() !== 'select'"
+                    + " || Array.prototype.some.call(e.options, function (o) { return o.getAttribute('value') === value; }); });",
+                    webElements, value);
+            return Boolean.TRUE.equals(ready);
+        }, WaitOptions.of(step.getOptions()));
     }
 
     public static void waitLeaveThisPage(WebDriver webDriver, String thisPage) {
+        waitLeaveThisPage(webDriver, thisPage, WaitOptions.defaults());
+    }
+
+    public static void waitLeaveThisPage(WebDriver webDriver, String thisPage, WaitOptions waitOptions) {
         if (thisPage != null) {
-            new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500)).until((input) -> !thisPage.equals(input.getCurrentUrl()));
+            Waits.until(webDriver, "離開 " + thisPage, (input) -> !thisPage.equals(input.getCurrentUrl()), waitOptions);
         }
     }
 
     public static void waitUtilGoTargetPage(WebDriver webDriver, String targetPageUrl) {
+        waitUtilGoTargetPage(webDriver, targetPageUrl, WaitOptions.defaults());
+    }
+
+    public static void waitUtilGoTargetPage(WebDriver webDriver, String targetPageUrl, WaitOptions waitOptions) {
         if (targetPageUrl != null) {
-            new WebDriverWait(webDriver, ofSeconds(30), ofMillis(500)).until((input) -> targetPageUrl.equals(input.getCurrentUrl()));
+            Waits.until(webDriver, "前往 " + targetPageUrl, (input) -> targetPageUrl.equals(input.getCurrentUrl()),
+                    waitOptions);
         }
     }
 
     public static void waitPageLoading(WebDriver driver) {
-        new WebDriverWait(driver, ofSeconds(30), ofMillis(500)).until((input) -> ((JavascriptExecutor) input)
-                .executeScript("return document.readyState").toString().equals("complete"));
+        waitPageLoading(driver, WaitOptions.defaults());
+    }
+
+    public static void waitPageLoading(WebDriver driver, WaitOptions waitOptions) {
+        Waits.until(driver, "document.readyState 為 complete", (input) -> ((JavascriptExecutor) input)
+                .executeScript("return document.readyState").toString().equals("complete"), waitOptions);
     }
 
     public static void waitTargetPageReady(WebDriver webDriver, String targetPageUrl) {
-        waitUtilGoTargetPage(webDriver, targetPageUrl);
-        waitPageLoading(webDriver);
+        waitTargetPageReady(webDriver, targetPageUrl, WaitOptions.defaults());
+    }
+
+    public static void waitTargetPageReady(WebDriver webDriver, String targetPageUrl, WaitOptions waitOptions) {
+        waitUtilGoTargetPage(webDriver, targetPageUrl, waitOptions);
+        waitPageLoading(webDriver, waitOptions);
     }
 
     public static Map<String, String> processCmdDetail(String command) {
-        boolean hasGoDash = false;
-        boolean isAfterOption = false;
-        Character doQuotesChar = null;
-        Stack<Character> stack = new Stack<>();// 左邊
-        Deque<Character> deque = new ArrayDeque<>();// 右邊
-        Map<String, String> outCome = new HashMap<>();
-        char[] commandCharArray = command.toCharArray();
-
-        for (char thisChar : commandCharArray) {
-            switch (thisChar) {
-                case WHITE_SPACE_CHAR:
-                    if (hasGoDash) {// 已經走過-
-                        if (stack.isEmpty()) {// 左邊的堆疊是空的
-                            throw new RuntimeException("不支援- ");
-                        } else if (!isAfterOption) {// 左邊
-                            isAfterOption = true;// 開啟變成右邊
-                        } else if (!deque.isEmpty() || doQuotesChar != null) {// 引號模式或右邊雙向佇列不為空
-                            deque.offer(thisChar);
-                        }
-                    }
-                    break;
-                case DASH_CHAR:
-                    if (!hasGoDash) {// 還沒走過-
-                        hasGoDash = true;
-                    } else if (!isAfterOption) {// 左邊
-                        throw new RuntimeException("不支援--,-X-");
-                    } else if (doQuotesChar != null) {// 右邊雙向佇列是"或'開頭
-                        deque.offer(thisChar);
-                    } else if (!deque.isEmpty() && deque.peekLast() != WHITE_SPACE_CHAR) {// 右邊雙向佇列不是空且最後一個不是空白字元
-                        throw new RuntimeException("不支援-X YYY-");
-                    } else {
-                        do {
-                            char last = stack.pop();
-                            if (!deque.isEmpty()) {
-                                StringBuilder stringBuilder = getDequeToStringBuilder(deque);
-                                String optionContent = stringBuilder.toString().trim();
-                                outCome.put(String.valueOf(last), optionContent);
-                            } else {
-                                outCome.put(String.valueOf(last), EMPTY_STRING);
-                            }
-                        } while (!stack.isEmpty());
-                        isAfterOption = false;// 設定為左邊
-                    }
-                    break;
-                case DOUBLE_QUOTES:
-                case APOSTROPHE:
-                    if (hasGoDash) {// 已走過-
-                        if (!isAfterOption) {// 左邊
-                            throw new RuntimeException("不支援-',-\",-X',-X\"");
-                        } else if (deque.isEmpty() && doQuotesChar == null) {// 右邊佇列是空的
-                            doQuotesChar = thisChar;// 開啟引號模式
-                        } else if (doQuotesChar != null && doQuotesChar == thisChar
-                                && isOpenEvenJump(deque.descendingIterator())) {// 結束引號模式
-                            do {
-                                char last = stack.pop();
-                                if (!deque.isEmpty()) {
-                                    StringBuilder stringBuilder = getDequeToStringBuilder(deque);
-                                    String optionContent = stringBuilder.toString();
-                                    outCome.put(String.valueOf(last), optionContent);
-                                } else {
-                                    outCome.put(String.valueOf(last), EMPTY_STRING);
-                                }
-                            } while (!stack.isEmpty());
-                            hasGoDash = false;// 設定未走過-
-                            isAfterOption = false;// 設定為左邊
-                            doQuotesChar = null;// 關閉引號模式
-                        } else {
-                            deque.offer(thisChar);
-                        }
-                    } else {
-                        throw new RuntimeException("不支援 指令和-中間有'or\"");
-                    }
-                    break;
-                case ESCAPE_CHARACTER:
-                    if (hasGoDash) {// 已走過-
-                        if (!isAfterOption) {// 左邊
-                            throw new RuntimeException("沒有支援-safsa\\");
-                        } else {
-                            deque.offer(thisChar);
-                        }
-                    } else {
-                        throw new RuntimeException("指令有問題");
-                    }
-                    break;
-                default:
-                    if (hasGoDash) {// 已走過-
-                        if (!isAfterOption) {// 左邊
-                            stack.push(thisChar);
-                        } else {
-                            deque.offer(thisChar);
-                        }
-                    } else {
-                        throw new RuntimeException("指令有問題");
-                    }
-                    break;
-            }
-        }
-        while (!stack.isEmpty()) {
-            char last = stack.pop();
-            if (!deque.isEmpty()) {
-                if (doQuotesChar != null) {
-                    Deque<Character> beforeDeque = new ArrayDeque<>();
-                    StringBuilder afterStringBuilder = new StringBuilder();
-                    boolean isWhiteSpace = false;
-                    boolean isAfter = false;
-                    beforeDeque.offer(doQuotesChar);
-                    do {
-                        char element = deque.poll();
-                        if (!isAfter) {
-                            if (!isWhiteSpace) {// 前一個不是' '
-                                if (element == WHITE_SPACE_CHAR) {
-                                    isWhiteSpace = true;
-                                } else if (element == DASH_CHAR) {
-                                    throw new RuntimeException("指令錯誤");
-                                } else {
-                                    beforeDeque.offer(element);
-                                }
-                            } else if (element == DASH_CHAR) {
-                                afterStringBuilder.append(element);
-                                isAfter = true;
-                            } else {
-                                beforeDeque.offer(WHITE_SPACE_CHAR);
-                                beforeDeque.offer(element);
-                                isWhiteSpace = false;
-                            }
-                        } else {
-                            afterStringBuilder.append(element);
-                        }
-                    } while (!deque.isEmpty());
-                    outCome.put(String.valueOf(last), getDequeToStringBuilder(beforeDeque).toString());
-                    outCome.putAll(processCmdDetail(afterStringBuilder.toString()));
-                } else {
-                    StringBuilder stringBuilder = getDequeToStringBuilder(deque);
-                    String optionContent = stringBuilder.toString().trim();
-                    outCome.put(String.valueOf(last), optionContent);
-                }
-            } else if (doQuotesChar != null) {
-                outCome.put(String.valueOf(last), doQuotesChar.toString());
-                doQuotesChar = null;
-            } else {
-                outCome.put(String.valueOf(last), EMPTY_STRING);
-            }
-        }
-        return outCome;
+        return CmdOptionTokenizer.tokenize(command);
     }
 
-    public static boolean isOpenEvenJump(Iterator<Character> iterator) {
-        boolean isEven = true;
-        while (iterator.hasNext() && iterator.next() == ESCAPE_CHARACTER) {
-            isEven = !isEven;
-        }
-        return isEven;
+    public static CommandPlan compileFile(File file) throws IOException {
+        return CommandPlan.compile(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
     }
 
-    public static StringBuilder getDequeToStringBuilder(Deque<Character> deque) {
-        StringBuilder stringBuilder = new StringBuilder();
-        boolean isJump = false;
-        while (!deque.isEmpty()) {
-            char element = deque.poll();
-            if (!isJump) {
-                if (element == ESCAPE_CHARACTER) {
-                    isJump = true;
-                } else {
-                    stringBuilder.append(element);
-                }
-            } else {
-                switch (element) {
-                    case 't':
-                        stringBuilder.append('\t');
-                        break;
-                    case 'n':
-                        stringBuilder.append('\n');
-                        break;
-                    case 'b':
-                        stringBuilder.append('\b');
-                        break;
-                    case 'f':
-                        stringBuilder.append('\f');
-                        break;
-                    case 'r':
-                        stringBuilder.append('\r');
-                        break;
-                    case ESCAPE_CHARACTER:
-                    case DOUBLE_QUOTES:
-                    case APOSTROPHE:
-                        stringBuilder.append(element);
-                        break;
-                    default:
-                        stringBuilder.append(ESCAPE_CHARACTER).append(element);
-                        break;
-                }
-                isJump = false;
-            }
-        }
-        if (isJump) {
-            stringBuilder.append(ESCAPE_CHARACTER);
-        }
-        return stringBuilder;
+    // 資料驅動的檔案, ${變數} 的值等每一列代入後才檢查
+    public static CommandPlan compileTemplateFile(File file) throws IOException {
+        return CommandPlan.compileTemplate(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
     }
 
     public static void runFile(WebDriver webDriver, File file) throws IOException {
-        final String cmd = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
-        runString(webDriver, cmd);
+        runPlan(webDriver, compileFile(file));
     }
 
     public static void runString(WebDriver webDriver, String cmd) {
-        final String[] eachCommands = cmd.split("\r?\n");
-        for (String eachCmd : eachCommands) {
-            final String eachCmdTrim = eachCmd.trim();
-            if (!eachCmdTrim.isEmpty() && !eachCmdTrim.startsWith("--")) {
-                processCmd(webDriver, eachCmdTrim);
+        runPlan(webDriver, CommandPlan.compile(cmd));
+    }
+
+    public static void runPlan(WebDriver webDriver, CommandPlan commandPlan) {
+        runPlan(webDriver, commandPlan, 1);
+    }
+
+    public static void runPlan(WebDriver webDriver, CommandPlan commandPlan, int fromLine) {
+        if (commandPlan.waitsForNetworkIdle()) {
+            NetworkIdle.register(webDriver);
+        }
+        final List<CommandStep> steps = commandPlan.getSteps();
+        for (int i = 0; i < steps.size(); i++) {
+            final CommandStep step = steps.get(i);
+            if (step.getCommand() == Command.PARALLEL) {
+                final int join = ParallelBlocks.findJoin(steps, i);
+                // 從區塊中間接續時整個區塊重新執行
+                if (steps.get(join).getLineNumber() >= fromLine) {
+                    ParallelBlocks.run(webDriver, steps.subList(i, join + 1));
+                }
+                i = join;
+            } else if (step.getLineNumber() >= fromLine) {
+                executeStep(webDriver, step);
             }
         }
     }
@@ -0,0 +1,242 @@
+package e2e;
+
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+// 步驟失敗時留下截圖、DOM、網址與行號, 不用再另外跑一次除錯
+// 執行緒上只做必要的 WebDriver 呼叫, 解碼、壓縮與寫檔交給背景執行緒; 佇列滿或超過容量上限就丟掉並計數
+public final class FailureArtifacts {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailureArtifacts.class);
+
+    private static final Json JSON = new Json();
+    private static final LongAdder CAPTURED = new LongAdder();
+    private static final LongAdder WRITTEN = new LongAdder();
+    private static final LongAdder DROPPED_QUEUE_FULL = new LongAdder();
+    private static final LongAdder DROPPED_SIZE_CAP = new LongAdder();
+    private static final LongAdder WRITE_ERRORS = new LongAdder();
+    private static final AtomicLong WRITTEN_BYTES = new AtomicLong();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean screenshotEnabled = true;
+    private static volatile boolean domEnabled = true;
+    private static volatile int domMaxChars = 2 * 1024 * 1024;
+    private static volatile long maxTotalBytes = 200L * 1024 * 1024;
+    private static volatile File artifactsDir = new File("e2e-report", "artifacts");
+    private static volatile BlockingQueue<Artifact> queue = new ArrayBlockingQueue<>(32);
+    private static Thread writer;
+
+    private FailureArtifacts() {
+    }
+
+    public static void configure(Properties properties) {
+        enabled = EToE.getBooleanProperty(properties, "artifacts.enabled", enabled);
+        screenshotEnabled = EToE.getBooleanProperty(properties, "artifacts.screenshot.enabled", screenshotEnabled);
+        domEnabled = EToE.getBooleanProperty(properties, "artifacts.dom.enabled", domEnabled);
+        domMaxChars = EToE.getIntProperty(properties, "artifacts.dom.max.chars", domMaxChars);
+        maxTotalBytes = EToE.getIntProperty(properties, "artifacts.max.total.mb",
+                (int) (maxTotalBytes / 1024 / 1024)) * 1024L * 1024;
+        artifactsDir = new File(properties.getProperty("artifacts.dir",
+                new File(properties.getProperty("report.dir", "e2e-report"), "artifacts").getPath()).trim());
+        queue = new ArrayBlockingQueue<>(Math.max(1, EToE.getIntProperty(properties, "artifacts.queue.size", 32)));
+    }
+
+    // 在執行步驟的執行緒上呼叫, 不會丟出例外
+    public static void capture(WebDriver webDriver, String runFileName, CommandStep step, Throwable error) {
+        if (!enabled) {
+            return;
+        }
+        // 已經超過容量就不再呼叫 WebDriver, 大量失敗時不拖慢其他步驟
+        if (WRITTEN_BYTES.get() >= maxTotalBytes) {
+            DROPPED_SIZE_CAP.increment();
+            return;
+        }
+        final Artifact artifact = new Artifact(runFileName == null ? "unknown" : runFileName, step, error);
+        try {
+            artifact.url = webDriver.getCurrentUrl();
+        } catch (RuntimeException e) {
+            artifact.captureErrors.append("url: ").append(e.getClass().getSimpleName()).append('\n');
+        }
+        if (screenshotEnabled && webDriver instanceof TakesScreenshot) {
+            try {
+                // 拿 base64 字串, 解碼留到背景執行緒
+                artifact.screenshotBase64 = ((TakesScreenshot) webDriver).getScreenshotAs(OutputType.BASE64);
+            } catch (RuntimeException e) {
+                artifact.captureErrors.append("screenshot: ").append(e.getClass().getSimpleName()).append('\n');
+            }
+        }
+        if (domEnabled) {
+            try {
+                final String pageSource = webDriver.getPageSource();
+                artifact.dom = pageSource != null && pageSource.length() > domMaxChars
+                        ? pageSource.substring(0, domMaxChars) : pageSource;
+                artifact.domTruncated = pageSource != null && pageSource.length() > domMaxChars;
+            } catch (RuntimeException e) {
+                artifact.captureErrors.append("dom: ").append(e.getClass().getSimpleName()).append('\n');
+            }
+        }
+        CAPTURED.increment();
+        startWriter();
+        if (!queue.offer(artifact)) {
+            DROPPED_QUEUE_FULL.increment();
+            // 大量失敗時只警告一次, 其餘看結束時的統計
+            if (DROPPED_QUEUE_FULL.sum() == 1) {
+                LOGGER.warn("[artifacts] 寫入佇列已滿, 丟棄 {} 第{}行的失敗紀錄", artifact.runFileName, step.getLineNumber());
+            }
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer == null) {
+            writer = new Thread(FailureArtifacts::drain, "failure-artifacts");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            final Artifact artifact;
+            try {
+                artifact = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write(artifact);
+            } catch (IOException | RuntimeException e) {
+                WRITE_ERRORS.increment();
+                LOGGER.warn("[artifacts] 寫入 {} 第{}行的失敗紀錄失敗", artifact.runFileName, artifact.lineNumber, e);
+            } finally {
+                synchronized (FailureArtifacts.class) {
+                    FailureArtifacts.class.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void write(Artifact artifact) throws IOException {
+        final byte[] screenshot = artifact.screenshotBase64 == null ? null
+                : Base64.getMimeDecoder().decode(artifact.screenshotBase64);
+        final long estimate = (screenshot == null ? 0 : screenshot.length)
+                + (artifact.dom == null ? 0 : artifact.dom.length() / 4);
+        if (WRITTEN_BYTES.get() + estimate > maxTotalBytes) {
+            DROPPED_SIZE_CAP.increment();
+            return;
+        }
+        final File dir = new File(new File(artifactsDir, sanitize(artifact.runFileName)),
+                "line" + artifact.lineNumber + "-" + artifact.capturedAt + "-" + SEQUENCE.incrementAndGet());
+        FileUtils.forceMkdir(dir);
+        long bytes = 0;
+        if (screenshot != null) {
+            final File screenshotFile = new File(dir, "screenshot.png");
+            FileUtils.writeByteArrayToFile(screenshotFile, screenshot);
+            bytes += screenshotFile.length();
+        }
+        if (artifact.dom != null) {
+            final File domFile = new File(dir, "dom.html.gz");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(domFile.toPath()))) {
+                out.write(artifact.dom.getBytes(StandardCharsets.UTF_8));
+            }
+            bytes += domFile.length();
+        }
+        final Map<String, Object> info = new LinkedHashMap<>();
+        info.put("file", artifact.runFileName);
+        info.put("line", artifact.lineNumber);
+        info.put("step", artifact.stepText);
+        info.put("url", artifact.url);
+        info.put("error", artifact.error);
+        info.put("capturedAt", Instant.ofEpochMilli(artifact.capturedAt).toString());
+        info.put("domTruncated", artifact.domTruncated);
+        if (artifact.captureErrors.length() > 0) {
+            info.put("captureErrors", artifact.captureErrors.toString());
+        }
+        final File infoFile = new File(dir, "info.json");
+        FileUtils.writeStringToFile(infoFile, JSON.toJson(info), StandardCharsets.UTF_8);
+        bytes += infoFile.length();
+        WRITTEN_BYTES.addAndGet(bytes);
+        WRITTEN.increment();
+        LOGGER.info("[artifacts] {} 第{}行的失敗紀錄: {}", artifact.runFileName, artifact.lineNumber, dir.getPath());
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // 結束前等佇列寫完, 最多等 timeoutMillis
+    public static void flush(long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (FailureArtifacts.class) {
+            while (CAPTURED.sum() > WRITTEN.sum() + DROPPED_QUEUE_FULL.sum() + DROPPED_SIZE_CAP.sum()
+                    + WRITE_ERRORS.sum()) {
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    LOGGER.warn("[artifacts] 還有 {} 筆失敗紀錄沒寫完", queue.size());
+                    return;
+                }
+                try {
+                    FailureArtifacts.class.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public static void reportMetrics(RunReport runReport) {
+        runReport.putMetric("artifacts_captured_total", CAPTURED.sum());
+        runReport.putMetric("artifacts_written_total", WRITTEN.sum());
+        runReport.putMetric("artifacts_dropped_queue_full_total", DROPPED_QUEUE_FULL.sum());
+        runReport.putMetric("artifacts_dropped_size_cap_total", DROPPED_SIZE_CAP.sum());
+        runReport.putMetric("artifacts_write_errors_total", WRITE_ERRORS.sum());
+        runReport.putMetric("artifacts_written_bytes", WRITTEN_BYTES.get());
+        if (CAPTURED.sum() + DROPPED_SIZE_CAP.sum() > 0) {
+            LOGGER.info("[artifacts] 擷取:{} 寫入:{} 佇列滿丟棄:{} 超過容量丟棄:{} 寫入失敗:{} 共 {}KB", CAPTURED.sum(),
+                    WRITTEN.sum(), DROPPED_QUEUE_FULL.sum(), DROPPED_SIZE_CAP.sum(), WRITE_ERRORS.sum(),
+                    WRITTEN_BYTES.get() / 1024);
+        }
+    }
+
+    private static final class Artifact {
+        final String runFileName;
+        final int lineNumber;
+        final String stepText;
+        final String error;
+        final long capturedAt = System.currentTimeMillis();
+        final StringBuilder captureErrors = new StringBuilder();
+        String url;
+        String screenshotBase64;
+        String dom;
+        boolean domTruncated;
+
+        Artifact(String runFileName, CommandStep step, Throwable error) {
+            this.runFileName = runFileName;
+            this.lineNumber = step.getLineNumber();
+            this.stepText = step.toString();
+            this.error = error == null ? null : error.getClass().getName() + ": " + error.getMessage();
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package e2e;
+
+import e2e.EToE.Command;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.CookieManager;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// --load 檔名: 把一個 run file 當成使用者旅程, 由 load.users 個虛擬使用者在 load.ramp.up.seconds 內陸續加入並重複執行
+// browser 模式每個使用者一個無頭瀏覽器; http 模式不開瀏覽器, 只以 HTTP 重播 goPage / refresh 的頁面請求
+// 統計每個 goPage / wait page 步驟與整段旅程的吞吐量與百分位數, 輸出到 report.dir/load.json
+public final class LoadRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadRunner.class);
+
+    public static final String MODE_BROWSER = "browser";
+    public static final String MODE_HTTP = "http";
+
+    private static final int MAX_REDIRECTS = 10;
+
+    private final String runFileName;
+    private final CommandPlan commandPlan;
+    private final String mode;
+    private final int users;
+    private final long rampUpMillis;
+    private final long durationMillis;
+    private final int iterations;
+    private final long thinkTimeMillis;
+    private final boolean resetCookies;
+    private final int timeoutMillis;
+    private final LoadReport loadReport = new LoadReport();
+    private final AtomicInteger activeUsers = new AtomicInteger();
+
+    LoadRunner(String runFileName, CommandPlan commandPlan, Properties properties) {
+        if (!commandPlan.getVariables().isEmpty()) {
+            throw new IllegalArgumentException("load 模式不支援含 ${變數} 的檔案:" + runFileName);
+        }
+        this.runFileName = runFileName;
+        this.commandPlan = commandPlan;
+        this.mode = properties.getProperty("load.mode", MODE_BROWSER).trim();
+        if (!MODE_BROWSER.equals(mode) && !MODE_HTTP.equals(mode)) {
+            throw new IllegalArgumentException("不支援的 load.mode:" + mode);
+        }
+        this.users = Math.max(1, EToE.getIntProperty(properties, "load.users", 10));
+        this.rampUpMillis = EToE.getIntProperty(properties, "load.ramp.up.seconds", 0) * 1000L;
+        this.durationMillis = EToE.getIntProperty(properties, "load.duration.seconds", 60) * 1000L;
+        this.iterations = EToE.getIntProperty(properties, "load.iterations", 0);
+        this.thinkTimeMillis = EToE.getIntProperty(properties, "load.think.time.ms", 0);
+        this.resetCookies = EToE.getBooleanProperty(properties, "load.reset.cookies", true);
+        this.timeoutMillis = EToE.getIntProperty(properties, "load.http.timeout.seconds", 30) * 1000;
+    }
+
+    public static int run(File eToEResourceRootDir, Properties properties, String runFileName) {
+        final CommandPlan commandPlan;
+        try {
+            commandPlan = EToE.compileFile(new File(eToEResourceRootDir, "run/" + runFileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException("讀取 run file 失敗:" + runFileName, e);
+        }
+        final LoadRunner loadRunner = new LoadRunner(runFileName, commandPlan, properties);
+        final Map<String, Object> result;
+        if (MODE_HTTP.equals(loadRunner.mode)) {
+            result = loadRunner.run(null);
+        } else {
+            // 壓測預設用無頭瀏覽器, 明確設定 browser.headless=false 時才開視窗
+            final Properties browserProperties = new Properties();
+            browserProperties.putAll(properties);
+            if (!browserProperties.containsKey("browser.headless")) {
+                browserProperties.setProperty("browser.headless", "true");
+            }
+            try (ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(browserProperties)) {
+                result = loadRunner.run(chromeSessionFactory);
+            }
+        }
+        final File reportDir = new File(properties.getProperty("report.dir", "e2e-report"));
+        try {
+            FileUtils.forceMkdir(reportDir);
+            FileUtils.writeStringToFile(new File(reportDir, "load.json"), new Json().toJson(result),
+                    StandardCharsets.UTF_8);
+            LOGGER.info("[load] 已輸出到 {}", new File(reportDir, "load.json").getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.error("[load] 輸出報告失敗", e);
+        }
+        final double maxFailurePercent = Double.parseDouble(properties.getProperty("load.max.failure.percent", "1"));
+        return loadRunner.loadReport.failurePercent() > maxFailurePercent ? 1 : 0;
+    }
+
+    // browser 模式傳入建立 session 的 factory, http 模式傳 null
+    Map<String, Object> run(Supplier<WebDriver> webDriverFactory) {
+        if (webDriverFactory == null) {
+            warnSkippedSteps();
+        }
+        LOGGER.info("[load] {} 模式, {} 個使用者, {}秒內陸續加入, {}", mode, users, rampUpMillis / 1000,
+                iterations > 0 ? "每人執行 " + iterations + " 次" : "持續 " + durationMillis / 1000 + " 秒");
+        final ExecutorService executorService = Executors.newFixedThreadPool(users);
+        final long startNanos = System.nanoTime();
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                final long startDelayNanos = TimeUnit.MILLISECONDS.toNanos(rampUpMillis * i / users);
+                futures.add(executorService.submit(() -> runUser(webDriverFactory, startNanos + startDelayNanos,
+                        deadlineNanos)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    LOGGER.error("[load] 虛擬使用者異常結束", e);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        final Map<String, Object> result = loadReport.toMap(runFileName, mode, users, rampUpMillis,
+                System.nanoTime() - startNanos);
+        loadReport.log();
+        return result;
+    }
+
+    private void runUser(Supplier<WebDriver> webDriverFactory, long startAtNanos, long deadlineNanos) {
+        final long delayNanos = startAtNanos - System.nanoTime();
+        if (delayNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        final VirtualUser virtualUser = webDriverFactory == null ? new HttpUser() : new BrowserUser(webDriverFactory);
+        activeUsers.incrementAndGet();
+        StepTimer.bind(loadReport, runFileName);
+        try {
+            for (int i = 0; iterations > 0 ? i < iterations : System.nanoTime() < deadlineNanos; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final long journeyStartNanos = System.nanoTime();
+                Throwable error = null;
+                CommandStep currentStep = null;
+                try {
+                    virtualUser.startJourney();
+                    for (CommandStep step : commandPlan.getSteps()) {
+                        currentStep = step;
+                        virtualUser.runStep(step);
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                    virtualUser.reset();
+                }
+                loadReport.recordJourney(System.nanoTime() - journeyStartNanos, error == null ? null : currentStep,
+                        error, activeUsers.get());
+                if (thinkTimeMillis > 0) {
+                    Thread.sleep(thinkTimeMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            StepTimer.unbind();
+            activeUsers.decrementAndGet();
+            virtualUser.reset();
+        }
+    }
+
+    private void warnSkippedSteps() {
+        for (CommandStep step : commandPlan.getSteps()) {
+            if (!isHttpReplayable(step.getCommand()) && !step.getCommand().isBlockMarker()) {
+                LOGGER.warn("[load] http 模式略過 {}", step);
+            }
+        }
+    }
+
+    private static boolean isHttpReplayable(Command command) {
+        return command == Command.GO_PAGE || command == Command.REFRESH || command == Command.WAIT_PAGE
+                || command == Command.SLEEP;
+    }
+
+    private interface VirtualUser {
+        // 每段旅程開始前呼叫, 準備 session 或清掉 cookie
+        void startJourney();
+
+        void runStep(CommandStep step);
+
+        // 旅程失敗或結束時清掉狀態, 下一次旅程重新開始
+        void reset();
+    }
+
+    // 每個使用者自己一個瀏覽器, 旅程之間保留 session, 失敗時關掉下次重開
+    private final class BrowserUser implements VirtualUser {
+        private final Supplier<WebDriver> webDriverFactory;
+        private WebDriver webDriver;
+
+        BrowserUser(Supplier<WebDriver> webDriverFactory) {
+            this.webDriverFactory = webDriverFactory;
+        }
+
+        @Override
+        public void startJourney() {
+            if (webDriver == null) {
+                final long start = System.nanoTime();
+                webDriver = webDriverFactory.get();
+                loadReport.sessionStart.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                if (commandPlan.waitsForNetworkIdle()) {
+                    NetworkIdle.register(webDriver);
+                }
+            } else if (resetCookies) {
+                webDriver.manage().deleteAllCookies();
+            }
+        }
+
+        @Override
+        public void runStep(CommandStep step) {
+            EToE.executeStep(webDriver, step);
+        }
+
+        @Override
+        public void reset() {
+            if (webDriver != null) {
+                try {
+                    webDriver.quit();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("[load] 關閉瀏覽器失敗", e);
+                }
+                webDriver = null;
+            }
+        }
+    }
+
+    // 不開瀏覽器, goPage / refresh 只送出頁面本身的請求 (不含頁面內的 JS/CSS/XHR), 每個使用者自己的 cookie
+    private final class HttpUser implements VirtualUser {
+        private CookieManager cookieManager = new CookieManager();
+        private String currentUrl;
+
+        @Override
+        public void startJourney() {
+            if (resetCookies) {
+                cookieManager = new CookieManager();
+            }
+        }
+
+        @Override
+        public void runStep(CommandStep step) {
+            if (!isHttpReplayable(step.getCommand())) {
+                return;
+            }
+            final long startNanos = StepTimer.beginStep();
+            RuntimeException error = null;
+            try {
+                execute(step);
+            } catch (RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                StepTimer.endStep(step, startNanos, error);
+            }
+        }
+
+        private void execute(CommandStep step) {
+            final String page = step.getOption("p");
+            switch (step.getCommand()) {
+                case GO_PAGE:
+                    currentUrl = fetch(page);
+                    break;
+                case REFRESH:
+                    if (currentUrl != null) {
+                        currentUrl = fetch(currentUrl);
+                    }
+                    break;
+                case WAIT_PAGE:
+                    // 沒有瀏覽器可以等, 只檢查最後一次請求 (含轉址) 停在哪個網址
+                    if (page != null && !"*".equals(page)) {
+                        final boolean atPage = page.equals(currentUrl);
+                        if (step.hasOption("l") == atPage) {
+                            throw new RuntimeException(String.format("%s 不成立, 目前網址:%s", step, currentUrl));
+                        }
+                    }
+                    break;
+                case SLEEP:
+                    try {
+                        Thread.sleep(Command.getSleepTime(step.getOptions()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("執行已取消", e);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // 依序跟著轉址, 回傳最後停留的網址
+        private String fetch(String url) {
+            String location = url;
+            try {
+                for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+                    final URI uri = new URI(location);
+                    final HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+                    connection.setInstanceFollowRedirects(false);
+                    connection.setUseCaches(false);
+                    connection.setConnectTimeout(timeoutMillis);
+                    connection.setReadTimeout(timeoutMillis);
+                    for (Map.Entry<String, List<String>> cookie : cookieManager.get(uri,
+                            Collections.<String, List<String>>emptyMap()).entrySet()) {
+                        for (String value : cookie.getValue()) {
+                            connection.addRequestProperty(cookie.getKey(), value);
+                        }
+                    }
+                    final int status = connection.getResponseCode();
+                    cookieManager.put(uri, connection.getHeaderFields());
+                    try (InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                        if (body != null) {
+                            IOUtils.skip(body, Long.MAX_VALUE);
+                        }
+                    }
+                    final String redirect = connection.getHeaderField("Location");
+                    if (status >= 300 && status < 400 && redirect != null) {
+                        location = uri.resolve(redirect).toString();
+                        continue;
+                    }
+                    if (status >= 400) {
+                        throw new RuntimeException("HTTP " + status + ":" + location);
+                    }
+                    return location;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("請求失敗:" + location, e);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("網址格式錯誤:" + location, e);
+            }
+            throw new RuntimeException("轉址超過 " + MAX_REDIRECTS + " 次:" + url);
+        }
+
+        @Override
+        public void reset() {
+            currentUrl = null;
+        }
+    }
+
+    // 只收 goPage / wait page 的步驟, 依行號分開統計; 整段旅程另外統計, 並記錄每秒完成的旅程數
+    static final class LoadReport extends RunReport {
+        private final ConcurrentMap<Integer, StepStats> steps = new ConcurrentSkipListMap<>();
+        private final Histogram journeys = new ConcurrentHistogram(3);
+        private final Histogram sessionStart = new ConcurrentHistogram(3);
+        private final LongAdder journeyFailures = new LongAdder();
+        // 以例外類別加上失敗的行號分組, 訊息裡的等待毫秒數等每次都不同, 只另外留幾個樣本
+        private final Map<String, ErrorStats> errors = new ConcurrentSkipListMap<>();
+        private final ConcurrentMap<Long, long[]> timeline = new ConcurrentSkipListMap<>();
+        private final long startMillis = System.currentTimeMillis();
+
+        LoadReport() {
+            super(0);
+        }
+
+        @Override
+        public void record(StepTiming stepTiming) {
+            if (stepTiming.getCommand() == Command.GO_PAGE || stepTiming.getCommand() == Command.WAIT_PAGE) {
+                steps.computeIfAbsent(stepTiming.getLineNumber(), line -> new StepStats(stepTiming))
+                        .record(stepTiming);
+            }
+        }
+
+        // failedStep 是失敗的步驟, 開 session 就失敗時是 null
+        void recordJourney(long durationNanos, CommandStep failedStep, Throwable error, int activeUsers) {
+            journeys.recordValue(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+            if (error != null) {
+                journeyFailures.increment();
+                // 依行號排序, 開 session 就失敗的排最前面
+                final String key = String.format("%08d %s", failedStep == null ? 0 : failedStep.getLineNumber(),
+                        error.getClass().getName());
+                errors.computeIfAbsent(key, k -> new ErrorStats(failedStep, error)).record(error);
+            }
+            final long second = (System.currentTimeMillis() - startMillis) / 1000;
+            final long[] bucket = timeline.computeIfAbsent(second, key -> new long[3]);
+            synchronized (bucket) {
+                bucket[0]++;
+                bucket[1] += error == null ? 0 : 1;
+                bucket[2] = Math.max(bucket[2], activeUsers);
+            }
+        }
+
+        double failurePercent() {
+            final long total = journeys.getTotalCount();
+            return total == 0 ? 0 : journeyFailures.sum() * 100d / total;
+        }
+
+        Map<String, Object> toMap(String runFileName, String mode, int users, long rampUpMillis, long elapsedNanos) {
+            final double elapsedSeconds = elapsedNanos / 1_000_000_000d;
+            final Map<String, Object> root = new LinkedHashMap<>();
+            root.put("generatedAt", Instant.now().toString());
+            root.put("file", runFileName);
+            root.put("mode", mode);
+            root.put("users", users);
+            root.put("rampUpSeconds", rampUpMillis / 1000d);
+            root.put("elapsedSeconds", elapsedSeconds);
+            final Map<String, Object> journey = new LinkedHashMap<>();
+            journey.put("count", journeys.getTotalCount());
+            journey.put("failures", journeyFailures.sum());
+            journey.put("throughputPerSecond", journeys.getTotalCount() / elapsedSeconds);
+            journey.put("durationMs", RunReport.percentiles(journeys));
+            root.put("journey", journey);
+            if (sessionStart.getTotalCount() > 0) {
+                root.put("sessionStartMs", RunReport.percentiles(sessionStart));
+            }
+            final List<Map<String, Object>> stepList = new ArrayList<>();
+            steps.forEach((line, stats) -> stepList.add(stats.toMap(elapsedSeconds)));
+            root.put("steps", stepList);
+            final List<Map<String, Object>> errorList = new ArrayList<>();
+            errors.forEach((key, stats) -> errorList.add(stats.toMap()));
+            root.put("errors", errorList);
+            final List<Map<String, Object>> seconds = new ArrayList<>();
+            timeline.forEach((second, bucket) -> {
+                final Map<String, Object> point = new LinkedHashMap<>();
+                synchronized (bucket) {
+                    point.put("second", second);
+                    point.put("journeys", bucket[0]);
+                    point.put("failures", bucket[1]);
+                    point.put("activeUsers", bucket[2]);
+                }
+                seconds.add(point);
+            });
+            root.put("timeline", seconds);
+            return root;
+        }
+
+        void log() {
+            LOGGER.info("[load] 旅程 {} 次, 失敗 {} 次, p50/p90/p99 = {}/{}/{} ms", journeys.getTotalCount(),
+                    journeyFailures.sum(), millis(journeys, 50), millis(journeys, 90), millis(journeys, 99));
+            steps.forEach((line, stats) -> LOGGER.info("[load] {} 共 {} 次, 失敗 {} 次, p50/p90/p99 = {}/{}/{} ms",
+                    stats.label, stats.duration.getTotalCount(), stats.failures.sum(), millis(stats.duration, 50),
+                    millis(stats.duration, 90), millis(stats.duration, 99)));
+        }
+
+        private static String millis(Histogram histogram, double percentile) {
+            return String.format("%.1f", histogram.getValueAtPercentile(percentile) / 1000d);
+        }
+    }
+
+    private static final class ErrorStats {
+        // 每組最多保留的不同訊息數
+        private static final int MAX_SAMPLES = 3;
+
+        final Integer lineNumber;
+        final String step;
+        final String type;
+        final LongAdder count = new LongAdder();
+        final Set<String> samples = new LinkedHashSet<>();
+
+        ErrorStats(CommandStep failedStep, Throwable error) {
+            this.lineNumber = failedStep == null ? null : failedStep.getLineNumber();
+            this.step = failedStep == null ? null : failedStep.toString();
+            this.type = error.getClass().getName();
+        }
+
+        void record(Throwable error) {
+            count.increment();
+            synchronized (samples) {
+                if (samples.size() < MAX_SAMPLES) {
+                    samples.add(String.valueOf(error.getMessage()));
+                }
+            }
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("line", lineNumber);
+            map.put("step", step);
+            map.put("type", type);
+            map.put("count", count.sum());
+            synchronized (samples) {
+                map.put("samples", new ArrayList<>(samples));
+            }
+            return map;
+        }
+    }
+
+    private static final class StepStats {
+        final String label;
+        final int lineNumber;
+        final Histogram duration = new ConcurrentHistogram(3);
+        final LongAdder failures = new LongAdder();
+
+        StepStats(StepTiming stepTiming) {
+            this.lineNumber = stepTiming.getLineNumber();
+            final String page = stepTiming.getOptions().get("p");
+            this.label = "第" + lineNumber + "行 " + stepTiming.getCommand().getCmdString()
+                    + (page == null ? "" : " " + page);
+        }
+
+        void record(StepTiming stepTiming) {
+            duration.recordValue(TimeUnit.NANOSECONDS.toMicros(stepTiming.getDurationNanos()));
+            if (!stepTiming.isSuccess()) {
+                failures.increment();
+            }
+        }
+
+        Map<String, Object> toMap(double elapsedSeconds) {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("line", lineNumber);
+            map.put("step", label);
+            map.put("count", duration.getTotalCount());
+            map.put("failures", failures.sum());
+            map.put("throughputPerSecond", duration.getTotalCount() / elapsedSeconds);
+            map.put("durationMs", RunReport.percentiles(duration));
+            return map;
+        }
+    }
+}
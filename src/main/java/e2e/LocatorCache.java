@@ -0,0 +1,110 @@
+package e2e;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 每個 session 一份的元素快取, key 是 (byType, selector, 換頁序號)
+// wait element 找到的元素可以直接給後面的 click / set field 用, 換頁、重整或元素 stale 時失效
+public final class LocatorCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocatorCache.class);
+
+    private static final Map<WebDriver, LocatorCache> CACHES = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder STALES = new LongAdder();
+
+    private static volatile boolean enabled = true;
+
+    private final Map<String, List<WebElement>> elements = new ConcurrentHashMap<>();
+    private volatile long navigationId;
+
+    private LocatorCache() {
+    }
+
+    public static void configure(Properties properties) {
+        enabled = EToE.getBooleanProperty(properties, "locator.cache.enabled", enabled);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static LocatorCache of(WebDriver webDriver) {
+        return CACHES.computeIfAbsent(webDriver, key -> new LocatorCache());
+    }
+
+    // 沒有快取時回傳 null
+    public static List<WebElement> get(WebDriver webDriver, String byType, String search) {
+        if (!enabled) {
+            return null;
+        }
+        final LocatorCache locatorCache = CACHES.get(webDriver);
+        final List<WebElement> cached = locatorCache == null ? null
+                : locatorCache.elements.get(locatorCache.key(byType, search));
+        if (cached == null) {
+            MISSES.increment();
+        } else {
+            HITS.increment();
+        }
+        return cached;
+    }
+
+    public static void put(WebDriver webDriver, String byType, String search, List<WebElement> webElements) {
+        if (enabled && webElements != null) {
+            final LocatorCache locatorCache = of(webDriver);
+            locatorCache.elements.put(locatorCache.key(byType, search), Collections.unmodifiableList(webElements));
+        }
+    }
+
+    // 先查快取, 沒有才 findElements 並放進快取
+    public static List<WebElement> find(WebDriver webDriver, String byType, String search, By by) {
+        final List<WebElement> cached = get(webDriver, byType, search);
+        if (cached != null) {
+            return cached;
+        }
+        final List<WebElement> webElements = webDriver.findElements(by);
+        put(webDriver, byType, search, webElements);
+        return webElements;
+    }
+
+    // 換頁、重整、DOM 可能被改掉或發現 stale 時呼叫
+    public static void invalidate(WebDriver webDriver) {
+        final LocatorCache locatorCache = CACHES.get(webDriver);
+        if (locatorCache != null) {
+            locatorCache.navigationId++;
+            locatorCache.elements.clear();
+        }
+    }
+
+    public static void markStale(WebDriver webDriver) {
+        STALES.increment();
+        LOGGER.debug("[locator cache] 元素已 stale, 清除快取");
+        invalidate(webDriver);
+    }
+
+    public static void remove(WebDriver webDriver) {
+        CACHES.remove(webDriver);
+    }
+
+    private String key(String byType, String search) {
+        return navigationId + "\u0000" + byType + "\u0000" + search;
+    }
+
+    public static void reportMetrics(RunReport runReport) {
+        runReport.putMetric("locator_cache_hit_total", HITS.sum());
+        runReport.putMetric("locator_cache_miss_total", MISSES.sum());
+        runReport.putMetric("locator_cache_stale_total", STALES.sum());
+        LOGGER.info("[locator cache] 命中:{} 未命中:{} stale:{}", HITS.sum(), MISSES.sum(), STALES.sum());
+    }
+}
@@ -0,0 +1,107 @@
+package e2e;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chromium.HasCdp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+// wait page -n: 頁面載入完成後, 等到沒有進行中的 XHR/fetch (開啟時也包含待執行的 requestAnimationFrame), 且安靜超過 quiet 毫秒
+// 腳本裡有 wait page -n 時, 執行前透過 CDP 把追蹤腳本註冊成這個 session 每個新文件最先執行的腳本, 才能算到頁面一開始就送出的請求;
+// 沒用到 -n 的腳本不包裝頁面的 XHR/fetch. 開啟 wait.idle.tracker.enabled 時改成 session 建立時就註冊.
+// 不支援 CDP (例如遠端 Grid) 時只能在第一次等待時補裝, 看不到那之前已送出還沒回應的請求
+public final class NetworkIdle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkIdle.class);
+
+    public static final String IDLE_OPTION = "n";
+    public static final String QUIET_OPTION = "q";
+
+    // 包裝 XMLHttpRequest.send / fetch / requestAnimationFrame, 記錄進行中的數量與最後一次活動時間
+    static final String TRACKER_SCRIPT = "(function(){if(window.__e2eIdle){return;}"
+            + "var s=window.__e2eIdle={requests:0,frames:{},frameCount:0,last:Date.now()};"
+            + "function begin(){s.requests++;s.last=Date.now();}"
+            + "function end(){s.requests=Math.max(0,s.requests-1);s.last=Date.now();}"
+            + "var proto=window.XMLHttpRequest&&XMLHttpRequest.prototype;"
+            + "if(proto){var send=proto.send;proto.send=function(){var xhr=this,ended=false;"
+            + "function once(){if(!ended){ended=true;end();}}"
+            + "begin();xhr.addEventListener('loadend',once);"
+            + "try{return send.apply(xhr,arguments);}catch(e){once();throw e;}};}"
+            + "if(window.fetch){var fetch=window.fetch;window.fetch=function(){begin();var p;"
+            + "try{p=fetch.apply(this,arguments);}catch(e){end();throw e;}"
+            + "return p.then(function(r){end();return r;},function(e){end();throw e;});};}"
+            + "var raf=window.requestAnimationFrame,caf=window.cancelAnimationFrame;"
+            + "if(raf){window.requestAnimationFrame=function(cb){var id=raf.call(window,function(t){"
+            + "if(s.frames[id]){delete s.frames[id];s.frameCount--;}s.last=Date.now();return cb(t);});"
+            + "s.frames[id]=true;s.frameCount++;return id;};"
+            + "window.cancelAnimationFrame=function(id){if(s.frames[id]){delete s.frames[id];s.frameCount--;}"
+            + "return caf.call(window,id);};}"
+            + "})();";
+    // 沒有預先註冊時 (不支援 CDP 或追蹤已關閉) 才在這裡補裝, 之前已送出的請求改用 Resource Timing 的結束時間估計
+    private static final String CHECK_SCRIPT = "var quiet=arguments[0],frames=arguments[1];"
+            + "if(document.readyState!=='complete'){return false;}"
+            + "var s=window.__e2eIdle;if(!s){" + TRACKER_SCRIPT + "s=window.__e2eIdle;s.late=true;}"
+            + "if(s.requests>0||(frames&&s.frameCount>0)){return false;}"
+            + "var last=s.last;"
+            + "if(s.late&&window.performance&&performance.getEntriesByType){"
+            + "var entries=performance.getEntriesByType('resource'),origin=performance.timeOrigin||performance.timing.navigationStart;"
+            + "for(var i=0;i<entries.length;i++){last=Math.max(last,origin+entries[i].responseEnd);}}"
+            + "return Date.now()-last>=quiet;";
+
+    private static volatile long defaultQuietMillis = 500;
+    // 持續用 requestAnimationFrame 畫面的頁面永遠不會閒置, 預設不算
+    private static volatile boolean trackAnimationFrames = false;
+    private static volatile boolean trackerEnabled = false;
+    // 已註冊追蹤腳本的 session, 同一個 session 換檔案執行時不重複註冊
+    private static final Map<WebDriver, Boolean> REGISTERED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private NetworkIdle() {
+    }
+
+    public static void configure(Properties properties) {
+        defaultQuietMillis = EToE.getIntProperty(properties, "wait.idle.quiet.millis", (int) defaultQuietMillis);
+        trackAnimationFrames = EToE.getBooleanProperty(properties, "wait.idle.animation.enabled", trackAnimationFrames);
+        trackerEnabled = EToE.getBooleanProperty(properties, "wait.idle.tracker.enabled", trackerEnabled);
+    }
+
+    // session 建立時呼叫, 開啟 wait.idle.tracker.enabled 時每個 session 都註冊
+    public static void install(WebDriver webDriver) {
+        if (trackerEnabled) {
+            register(webDriver);
+        }
+    }
+
+    public static boolean isUsedBy(CommandStep step) {
+        return step.getCommand() == EToE.Command.WAIT_PAGE && step.hasOption(IDLE_OPTION);
+    }
+
+    // 開始執行用到 -n 的步驟前呼叫, 之後這個 session 每次換頁都會先執行追蹤腳本
+    public static void register(WebDriver webDriver) {
+        if (!(webDriver instanceof HasCdp) || REGISTERED.putIfAbsent(webDriver, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            ((HasCdp) webDriver).executeCdpCommand("Page.addScriptToEvaluateOnNewDocument",
+                    Collections.singletonMap("source", TRACKER_SCRIPT));
+        } catch (RuntimeException e) {
+            REGISTERED.remove(webDriver);
+            LOGGER.debug("[network idle] 註冊追蹤腳本失敗, 等待時再補裝", e);
+        }
+    }
+
+    public static long quietMillis(String quietOption) {
+        return quietOption == null || quietOption.isEmpty() ? defaultQuietMillis : Long.parseLong(quietOption);
+    }
+
+    public static void waitIdle(WebDriver webDriver, long quietMillis, WaitOptions waitOptions) {
+        // 輪詢間隔不超過安靜時間的一半, 安靜時間一到就能發現
+        final WaitOptions idleOptions = waitOptions.withMaxPollMillis(Math.max(1, quietMillis / 2));
+        Waits.until(webDriver, "網路閒置 " + quietMillis + "ms",
+                (input) -> Boolean.TRUE.equals(((JavascriptExecutor) input).executeScript(CHECK_SCRIPT, quietMillis,
+                        trackAnimationFrames)), idleOptions);
+    }
+}
@@ -0,0 +1,317 @@
+package e2e;
+
+import e2e.EToE.Command;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// parallel / branch / join 區塊: 各分支在不同的 session 同時執行, 全部結束後才繼續下一行, 區塊耗時約等於最慢的分支
+// 第一個分支用原本的 session; 其他分支向 driver pool 借已經開好的閒置 session (不為分支新開瀏覽器),
+// 先複製原本 session 的 cookie 與 storage (共用登入狀態).
+// 借不到時 (沒有閒置的 session、pool 已滿或沒有 pool) 改在第一個分支結束後用原本的 session 依序執行, 不會因為互相等待 session 卡住
+public final class ParallelBlocks {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelBlocks.class);
+
+    private static final LongAdder BLOCKS = new LongAdder();
+    private static final LongAdder BRANCHES = new LongAdder();
+    private static final LongAdder SEQUENTIAL_BRANCHES = new LongAdder();
+    private static final LongAdder FAILED_BRANCHES = new LongAdder();
+    private static final LongAdder SAVED_NANOS = new LongAdder();
+
+    private static volatile boolean enabled = true;
+    private static volatile int maxSessions = 4;
+    private static volatile WebDriverPool webDriverPool;
+    private static volatile ConcurrencyController concurrencyController;
+    private static volatile ExecutorService executor;
+
+    private ParallelBlocks() {
+    }
+
+    public static void configure(Properties properties) {
+        enabled = EToE.getBooleanProperty(properties, "parallel.enabled", enabled);
+        maxSessions = Math.max(0, EToE.getIntProperty(properties, "parallel.max.sessions", maxSessions));
+    }
+
+    // 分支要用的 session 從這個 pool 借, 沒設定時所有分支都在原本的 session 依序執行; 結束時呼叫 close
+    public static void use(WebDriverPool pool) {
+        use(pool, null);
+    }
+
+    // controller 不是 null 時, 分支另外借的 session 也算在同時執行數內, 已達上限時該分支依序執行
+    public static synchronized void use(WebDriverPool pool, ConcurrencyController controller) {
+        webDriverPool = pool;
+        concurrencyController = controller;
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "parallel-branch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // 停止分支的執行緒並放開 pool, 之後的 parallel 區塊都在原本的 session 依序執行
+    public static synchronized void close() {
+        webDriverPool = null;
+        concurrencyController = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    // 編譯時檢查區塊結構, 錯誤附上行號加到 errors
+    static void validate(List<CommandStep> steps, StringBuilder errors) {
+        CommandStep open = null;
+        for (CommandStep step : steps) {
+            final Command command = step.getCommand();
+            if (command == Command.PARALLEL) {
+                if (open != null) {
+                    appendError(errors, step, "parallel 區塊不能巢狀, 上一個 parallel 在第" + open.getLineNumber() + "行");
+                }
+                open = step;
+            } else if (command == Command.BRANCH && open == null) {
+                appendError(errors, step, "branch 必須在 parallel 與 join 之間");
+            } else if (command == Command.JOIN) {
+                if (open == null) {
+                    appendError(errors, step, "join 前面沒有對應的 parallel");
+                }
+                open = null;
+            }
+        }
+        if (open != null) {
+            appendError(errors, open, "parallel 區塊缺少 join");
+        }
+    }
+
+    private static void appendError(StringBuilder errors, CommandStep step, String message) {
+        errors.append(step).append(" : ").append(message).append('\n');
+    }
+
+    // steps 在 parallelIndex 是 parallel, 回傳對應 join 的位置 (編譯時已確認存在)
+    static int findJoin(List<CommandStep> steps, int parallelIndex) {
+        for (int i = parallelIndex + 1; i < steps.size(); i++) {
+            if (steps.get(i).getCommand() == Command.JOIN) {
+                return i;
+            }
+        }
+        throw new IllegalStateException(steps.get(parallelIndex) + " 缺少 join");
+    }
+
+    // block 從 parallel 到 join (含), 以 branch 切成各分支; 沒有步驟的分支不算
+    static List<List<CommandStep>> branches(List<CommandStep> block) {
+        final List<List<CommandStep>> branches = new ArrayList<>();
+        List<CommandStep> current = new ArrayList<>();
+        for (CommandStep step : block.subList(1, block.size() - 1)) {
+            if (step.getCommand() == Command.BRANCH) {
+                if (!current.isEmpty()) {
+                    branches.add(current);
+                }
+                current = new ArrayList<>();
+            } else {
+                current.add(step);
+            }
+        }
+        if (!current.isEmpty()) {
+            branches.add(current);
+        }
+        return branches;
+    }
+
+    public static void run(WebDriver webDriver, List<CommandStep> block) {
+        final CommandStep parallel = block.get(0);
+        final List<List<CommandStep>> branches = branches(block);
+        if (branches.isEmpty()) {
+            return;
+        }
+        BLOCKS.increment();
+        BRANCHES.add(branches.size());
+        final long start = System.nanoTime();
+        final ExecutorService branchExecutor = executor;
+        final WebDriverPool pool = enabled && branchExecutor != null ? webDriverPool : null;
+        final ConcurrencyController controller = concurrencyController;
+        final List<List<CommandStep>> local = new ArrayList<>();
+        local.add(branches.get(0));
+        final List<Branch> remote = new ArrayList<>();
+        final List<Future<Long>> futures = new ArrayList<>();
+        final List<RuntimeException> errors = new ArrayList<>();
+        long branchNanos = 0;
+        try {
+            SessionState.Snapshot snapshot = null;
+            for (List<CommandStep> branch : branches.subList(1, branches.size())) {
+                final WebDriver branchDriver = pool == null || futures.size() >= maxSessions ? null
+                        : borrow(pool, controller);
+                if (branchDriver == null) {
+                    SEQUENTIAL_BRANCHES.increment();
+                    local.add(branch);
+                    continue;
+                }
+                try {
+                    if (snapshot == null) {
+                        snapshot = SessionState.capture(webDriver);
+                    }
+                } catch (RuntimeException e) {
+                    giveBack(pool, controller, branchDriver);
+                    throw e;
+                }
+                final Branch remoteBranch = new Branch(pool, controller, branchDriver, snapshot, branch,
+                        StepTimer.fork());
+                remote.add(remoteBranch);
+                futures.add(branchExecutor.submit(remoteBranch));
+            }
+            LOGGER.debug("[parallel] {} 共 {} 個分支, {} 個在其他 session 同時執行", parallel, branches.size(),
+                    futures.size());
+            // 原本的 session 上的分支依序執行, 失敗後這個 session 的狀態不確定, 剩下的分支不再執行
+            for (List<CommandStep> branch : local) {
+                final long branchStart = System.nanoTime();
+                try {
+                    runSteps(webDriver, branch);
+                } catch (RuntimeException e) {
+                    errors.add(e);
+                    FAILED_BRANCHES.increment();
+                    break;
+                } finally {
+                    branchNanos += System.nanoTime() - branchStart;
+                }
+            }
+            for (Future<Long> future : futures) {
+                try {
+                    branchNanos += future.get();
+                } catch (ExecutionException e) {
+                    FAILED_BRANCHES.increment();
+                    errors.add(e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                            : new RuntimeException(e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("執行已取消", e);
+        } finally {
+            // 逾時或中斷時其他分支也跟著停止; 正常結束時這裡都已完成
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            for (Branch remoteBranch : remote) {
+                remoteBranch.releaseIfNotStarted();
+            }
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        SAVED_NANOS.add(Math.max(0, branchNanos - elapsedNanos));
+        if (!errors.isEmpty()) {
+            final RuntimeException failure = new RuntimeException(String.format("%s 有 %d 個分支失敗: %s", parallel,
+                    errors.size(), errors.get(0).getMessage()), errors.get(0));
+            for (RuntimeException error : errors.subList(1, errors.size())) {
+                failure.addSuppressed(error);
+            }
+            throw failure;
+        }
+        LOGGER.debug("[parallel] {} 完成, 耗時 {}ms, 分支合計 {}ms", parallel,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), TimeUnit.NANOSECONDS.toMillis(branchNanos));
+    }
+
+    // 先向 controller 佔一個同時執行數再借閒置的 session, 任一個拿不到就回傳 null
+    private static WebDriver borrow(WebDriverPool pool, ConcurrencyController controller) {
+        if (controller != null && !controller.tryAcquire()) {
+            return null;
+        }
+        WebDriver webDriver = null;
+        try {
+            webDriver = pool.tryBorrowIdle();
+            return webDriver;
+        } finally {
+            if (webDriver == null && controller != null) {
+                controller.release();
+            }
+        }
+    }
+
+    private static void giveBack(WebDriverPool pool, ConcurrencyController controller, WebDriver webDriver) {
+        try {
+            pool.release(webDriver);
+        } finally {
+            if (controller != null) {
+                controller.release();
+            }
+        }
+    }
+
+    // 在借來的 session 執行一個分支, 回傳耗時; 步驟記錄到原本檔案的報告
+    private static final class Branch implements Callable<Long> {
+        private final WebDriverPool pool;
+        private final ConcurrencyController controller;
+        private final WebDriver webDriver;
+        private final SessionState.Snapshot snapshot;
+        private final List<CommandStep> steps;
+        private final StepTimer stepTimer;
+        // 開始執行或被取消時設成 true, 確保 session 只歸還一次
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Branch(WebDriverPool pool, ConcurrencyController controller, WebDriver webDriver,
+               SessionState.Snapshot snapshot, List<CommandStep> steps, StepTimer stepTimer) {
+            this.pool = pool;
+            this.controller = controller;
+            this.webDriver = webDriver;
+            this.snapshot = snapshot;
+            this.steps = steps;
+            this.stepTimer = stepTimer;
+        }
+
+        @Override
+        public Long call() {
+            if (!claimed.compareAndSet(false, true)) {
+                return 0L;
+            }
+            final long branchStart = System.nanoTime();
+            StepTimer.attach(stepTimer);
+            try {
+                SessionState.copy(snapshot, webDriver);
+                if (steps.stream().anyMatch(NetworkIdle::isUsedBy)) {
+                    NetworkIdle.register(webDriver);
+                }
+                runSteps(webDriver, steps);
+                return System.nanoTime() - branchStart;
+            } finally {
+                StepTimer.unbind();
+                giveBack(pool, controller, webDriver);
+            }
+        }
+
+        // 還沒開始就被取消時由呼叫端歸還 session
+        void releaseIfNotStarted() {
+            if (claimed.compareAndSet(false, true)) {
+                giveBack(pool, controller, webDriver);
+            }
+        }
+    }
+
+    private static void runSteps(WebDriver webDriver, List<CommandStep> steps) {
+        for (CommandStep step : steps) {
+            EToE.executeStep(webDriver, step);
+        }
+    }
+
+    public static void reportMetrics(RunReport runReport) {
+        runReport.putMetric("parallel_blocks_total", BLOCKS.sum());
+        runReport.putMetric("parallel_branches_total", BRANCHES.sum());
+        runReport.putMetric("parallel_branches_sequential_total", SEQUENTIAL_BRANCHES.sum());
+        runReport.putMetric("parallel_branches_failed_total", FAILED_BRANCHES.sum());
+        runReport.putMetric("parallel_saved_seconds", SAVED_NANOS.sum() / 1_000_000_000d);
+        if (BLOCKS.sum() > 0) {
+            LOGGER.info("[parallel] 區塊:{} 分支:{} 依序執行的分支:{} 失敗分支:{} 節省 {} 秒", BLOCKS.sum(),
+                    BRANCHES.sum(), SEQUENTIAL_BRANCHES.sum(), FAILED_BRANCHES.sum(),
+                    String.format("%.1f", SAVED_NANOS.sum() / 1_000_000_000d));
+        }
+    }
+}
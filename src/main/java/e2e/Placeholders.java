@@ -0,0 +1,49 @@
+package e2e;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// run file 裡的 ${變數}, 由資料檔每一列的欄位代入
+public final class Placeholders {
+    private static final String PREFIX = "${";
+    private static final Pattern PATTERN = Pattern.compile("\\$\\{([^}]+)}");
+
+    private Placeholders() {
+    }
+
+    public static boolean contains(String value) {
+        return value != null && value.contains(PREFIX) && PATTERN.matcher(value).find();
+    }
+
+    public static Set<String> names(String value) {
+        final Set<String> names = new LinkedHashSet<>();
+        if (value != null) {
+            final Matcher matcher = PATTERN.matcher(value);
+            while (matcher.find()) {
+                names.add(matcher.group(1).trim());
+            }
+        }
+        return names;
+    }
+
+    public static String resolve(String value, Map<String, String> variables) {
+        if (!contains(value)) {
+            return value;
+        }
+        final Matcher matcher = PATTERN.matcher(value);
+        final StringBuffer resolved = new StringBuffer();
+        while (matcher.find()) {
+            final String name = matcher.group(1).trim();
+            final String variable = variables.get(name);
+            if (variable == null) {
+                throw new RuntimeException("資料沒有變數:" + name);
+            }
+            matcher.appendReplacement(resolved, Matcher.quoteReplacement(variable));
+        }
+        matcher.appendTail(resolved);
+        return resolved.toString();
+    }
+}
@@ -0,0 +1,191 @@
+package e2e;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.Status;
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// 記錄每個 run file 上次的執行結果, 以檔案內容 (含資料檔) 與環境指紋的雜湊當 key
+// --changed-only 跳過同一個 key 上次已成功的檔案, --failed-first 把上次失敗的檔案排到最前面
+public final class ResultStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultStore.class);
+
+    private static final Json JSON = new Json();
+    // 每個檔案最多保留幾組 key 的結果 (切換環境再切回來時仍然有效)
+    private static final int KEYS_PER_FILE = 20;
+
+    private final File storeFile;
+    private final String fingerprint;
+    // 檔名 -> key -> 結果
+    private final Map<String, Map<String, Entry>> entries = new TreeMap<>();
+    // 這次要執行的檔案與對應的 key, 執行完才寫回
+    private final Map<String, String> pendingKeys = new HashMap<>();
+
+    private ResultStore(File storeFile, String fingerprint) {
+        this.storeFile = storeFile;
+        this.fingerprint = fingerprint;
+    }
+
+    // 和 report.dir 一樣相對於工作目錄, 不放在 classpath 的 e2e 目錄 (target/classes) 底下, mvn clean 不會清掉
+    public static ResultStore load(Properties properties) {
+        final File file = new File(properties.getProperty("run.cache.file", ".e2e-results.json").trim());
+        final ResultStore resultStore = new ResultStore(file, fingerprint(properties));
+        if (file.isFile()) {
+            try {
+                resultStore.read(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+            } catch (IOException | RuntimeException e) {
+                // 紀錄壞掉只代表這次全部重跑
+                LOGGER.warn("[result store] 讀取 {} 失敗, 忽略舊紀錄", file, e);
+                resultStore.entries.clear();
+            }
+        }
+        return resultStore;
+    }
+
+    // run.cache.fingerprint 列出的名稱依序從系統屬性、環境變數、run.properties 取值, 例如 e2e.base.url,BUILD_ID
+    static String fingerprint(Properties properties) {
+        final StringBuilder fingerprint = new StringBuilder();
+        for (String name : properties.getProperty("run.cache.fingerprint", "").split(",")) {
+            final String key = name.trim();
+            if (key.isEmpty()) {
+                continue;
+            }
+            String value = System.getProperty(key);
+            if (value == null) {
+                value = System.getenv(key);
+            }
+            if (value == null) {
+                value = properties.getProperty(key, "");
+            }
+            fingerprint.append(key).append('=').append(value).append('\n');
+        }
+        return fingerprint.toString();
+    }
+
+    public String key(File runFile, File dataFile) throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(fingerprint, StandardCharsets.UTF_8);
+        hasher.putBytes(Files.asByteSource(runFile).hash(Hashing.sha256()).asBytes());
+        if (dataFile != null) {
+            hasher.putString(dataFile.getName(), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.asByteSource(dataFile).hash(Hashing.sha256()).asBytes());
+        }
+        return hasher.hash().toString();
+    }
+
+    public synchronized boolean passed(String runFileName, String key) {
+        final Map<String, Entry> keys = entries.get(runFileName);
+        final Entry entry = keys == null ? null : keys.get(key);
+        return entry != null && entry.status == Status.SUCCESS;
+    }
+
+    // 最近一次執行 (不論 key) 是否失敗
+    public synchronized boolean lastFailed(String runFileName) {
+        final Map<String, Entry> keys = entries.get(runFileName);
+        if (keys == null || keys.isEmpty()) {
+            return false;
+        }
+        final Entry latest = keys.values().stream().max(Comparator.comparingLong(entry -> entry.finishedAt)).get();
+        return latest.status != Status.SUCCESS;
+    }
+
+    public synchronized void track(String runFileName, String key) {
+        pendingKeys.put(runFileName, key);
+    }
+
+    // 資料驅動的檔案任何一列失敗就算失敗
+    public synchronized void update(List<RunFileResult> results) {
+        final Map<String, Status> statuses = new HashMap<>();
+        final Map<String, Long> elapsed = new HashMap<>();
+        for (RunFileResult result : results) {
+            final String runFileName = result.getGroup() == null ? result.getName() : result.getGroup();
+            if (!pendingKeys.containsKey(runFileName) || result.getStatus() == Status.SKIPPED) {
+                continue;
+            }
+            statuses.merge(runFileName, result.getStatus(),
+                    (left, right) -> left == Status.SUCCESS ? right : left);
+            elapsed.merge(runFileName, result.getElapsedMillis(), Long::sum);
+        }
+        final long now = System.currentTimeMillis();
+        statuses.forEach((runFileName, status) -> {
+            final Map<String, Entry> keys = entries.computeIfAbsent(runFileName, name -> new LinkedHashMap<>());
+            final String key = pendingKeys.get(runFileName);
+            keys.remove(key);
+            keys.put(key, new Entry(status, elapsed.get(runFileName), now));
+            while (keys.size() > KEYS_PER_FILE) {
+                keys.remove(keys.keySet().iterator().next());
+            }
+        });
+        pendingKeys.clear();
+    }
+
+    public synchronized void save() {
+        final Map<String, Object> root = new LinkedHashMap<>();
+        entries.forEach((runFileName, keys) -> {
+            final Map<String, Object> file = new LinkedHashMap<>();
+            keys.forEach((key, entry) -> file.put(key, entry.toMap()));
+            root.put(runFileName, file);
+        });
+        try {
+            // 先寫暫存檔再換名, 中途中斷也不會留下寫一半的紀錄
+            final File tempFile = new File(storeFile.getPath() + ".tmp");
+            FileUtils.writeStringToFile(tempFile, JSON.toJson(root), StandardCharsets.UTF_8);
+            FileUtils.deleteQuietly(storeFile);
+            FileUtils.moveFile(tempFile, storeFile);
+        } catch (IOException e) {
+            LOGGER.warn("[result store] 寫入 {} 失敗", storeFile, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void read(String content) {
+        final Map<String, Object> root = JSON.toType(content, Json.MAP_TYPE);
+        root.forEach((runFileName, value) -> {
+            final Map<String, Entry> fileEntries = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> key : ((Map<String, Object>) value).entrySet()) {
+                final Map<String, Object> entry = (Map<String, Object>) key.getValue();
+                fileEntries.put(key.getKey(), new Entry(Status.valueOf(String.valueOf(entry.get("status"))),
+                        ((Number) entry.get("elapsedMs")).longValue(),
+                        Instant.parse(String.valueOf(entry.get("finishedAt"))).toEpochMilli()));
+            }
+            entries.put(runFileName, fileEntries);
+        });
+    }
+
+    private static final class Entry {
+        final Status status;
+        final long elapsedMillis;
+        final long finishedAt;
+
+        Entry(Status status, long elapsedMillis, long finishedAt) {
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+            this.finishedAt = finishedAt;
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", status.name());
+            map.put("elapsedMs", elapsedMillis);
+            map.put("finishedAt", Instant.ofEpochMilli(finishedAt).toString());
+            return map;
+        }
+    }
+}
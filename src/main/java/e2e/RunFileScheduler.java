@@ -0,0 +1,443 @@
+package e2e;
+
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class RunFileScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunFileScheduler.class);
+
+    public enum Status {
+        SUCCESS, FAILED, TIMEOUT,
+        // --changed-only 時內容與環境都沒變且上次成功, 這次沒有執行
+        SKIPPED
+    }
+
+    public static final class RunFileTask {
+        private final String name;
+        private final String group;
+        private final int priority;
+        private final long weight;
+        private final Consumer<WebDriver> action;
+        // 有編譯好的執行計畫時才能用非同步模式執行
+        private final CommandPlan commandPlan;
+        private final int fromLine;
+
+        public RunFileTask(String name, int priority, long weight, Consumer<WebDriver> action) {
+            this(name, null, priority, weight, action);
+        }
+
+        // group 是資料驅動執行時所屬的 run file, 步驟耗時會統計在 group 底下
+        public RunFileTask(String name, String group, int priority, long weight, Consumer<WebDriver> action) {
+            this(name, group, priority, weight, action, null, 1);
+        }
+
+        public RunFileTask(String name, String group, int priority, long weight, CommandPlan commandPlan,
+                           int fromLine) {
+            this(name, group, priority, weight, webDriver -> EToE.runPlan(webDriver, commandPlan, fromLine),
+                    commandPlan, fromLine);
+        }
+
+        private RunFileTask(String name, String group, int priority, long weight, Consumer<WebDriver> action,
+                            CommandPlan commandPlan, int fromLine) {
+            this.name = name;
+            this.group = group;
+            this.priority = priority;
+            this.weight = weight;
+            this.action = action;
+            this.commandPlan = commandPlan;
+            this.fromLine = fromLine;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    public static final class RunFileResult {
+        private final String name;
+        private final String group;
+        private final Status status;
+        private final long elapsedMillis;
+        private final Throwable error;
+
+        public RunFileResult(String name, Status status, long elapsedMillis, Throwable error) {
+            this(name, null, status, elapsedMillis, error);
+        }
+
+        public RunFileResult(String name, String group, Status status, long elapsedMillis, Throwable error) {
+            this.name = name;
+            this.group = group;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        public static RunFileResult failed(String name, Throwable error) {
+            return new RunFileResult(name, Status.FAILED, 0, error);
+        }
+
+        public static RunFileResult skipped(String name) {
+            return new RunFileResult(name, Status.SKIPPED, 0, null);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.SUCCESS || status == Status.SKIPPED;
+        }
+    }
+
+    // 單一檔案的執行狀態, 檔案結束與逾時處理以 CAS 搶先, 只有一方會動作
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int TIMED_OUT = 2;
+
+    // 優先權高的先跑, 同優先權時較長的腳本先開始, 整批才會早點結束
+    public static final Comparator<RunFileTask> TASK_ORDER = Comparator
+            .comparingInt(RunFileTask::getPriority).reversed()
+            .thenComparing(Comparator.comparingLong(RunFileTask::getWeight).reversed());
+
+    private final WebDriverPool webDriverPool;
+    private final int parallelism;
+    private final long timeoutMillis;
+    private final RunReport runReport;
+    private final AsyncStepRunner asyncStepRunner;
+    private final ConcurrencyController concurrencyController;
+
+    public RunFileScheduler(WebDriverPool webDriverPool, int parallelism, long timeoutMillis, RunReport runReport) {
+        this(webDriverPool, parallelism, timeoutMillis, runReport, null);
+    }
+
+    // asyncStepRunner 不是 null 時, 有執行計畫的檔案改成非同步執行, parallelism 代表同時執行的 session 數而不是執行緒數
+    public RunFileScheduler(WebDriverPool webDriverPool, int parallelism, long timeoutMillis, RunReport runReport,
+                            AsyncStepRunner asyncStepRunner) {
+        this(webDriverPool, parallelism, timeoutMillis, runReport, asyncStepRunner, null);
+    }
+
+    // concurrencyController 不是 null 時, 同時執行的檔案數由它動態決定, parallelism 只是上限
+    public RunFileScheduler(WebDriverPool webDriverPool, int parallelism, long timeoutMillis, RunReport runReport,
+                            AsyncStepRunner asyncStepRunner, ConcurrencyController concurrencyController) {
+        this.webDriverPool = webDriverPool;
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+        this.runReport = concurrencyController == null ? runReport : concurrencyController.observe(runReport);
+        this.asyncStepRunner = asyncStepRunner;
+        this.concurrencyController = concurrencyController;
+    }
+
+    public List<RunFileResult> runAll(List<RunFileTask> tasks) {
+        final List<RunFileTask> sortedTasks = new ArrayList<>(tasks);
+        sortedTasks.sort(TASK_ORDER);
+        return runAll(sortedTasks.iterator());
+    }
+
+    // 依 iterator 的順序執行, 尚未完成的工作最多 parallelism 的兩倍, 資料驅動的列要執行到才會讀進來
+    public List<RunFileResult> runAll(Iterator<RunFileTask> tasks) {
+        final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        final Semaphore inFlight = new Semaphore(parallelism * 2);
+        try {
+            final List<CompletableFuture<RunFileResult>> futures = new ArrayList<>();
+            while (tasks.hasNext()) {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("等待執行空位時被中斷", e);
+                }
+                final RunFileTask task;
+                try {
+                    task = tasks.next();
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                final CompletableFuture<RunFileResult> future = asyncStepRunner != null && task.commandPlan != null
+                        ? runAsync(task, executorService)
+                        : CompletableFuture.supplyAsync(() -> run(task, watchdog), executorService);
+                futures.add(future.whenComplete((result, error) -> inFlight.release()));
+            }
+            final List<RunFileResult> results = new ArrayList<>();
+            for (CompletableFuture<RunFileResult> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        } finally {
+            executorService.shutdown();
+            watchdog.shutdownNow();
+            awaitTermination(executorService);
+        }
+    }
+
+    private RunFileResult run(RunFileTask task, ScheduledExecutorService watchdog) {
+        try {
+            acquireSlot();
+        } catch (RuntimeException e) {
+            return new RunFileResult(task.getName(), task.getGroup(), Status.FAILED, 0, e);
+        }
+        final long start = System.currentTimeMillis();
+        final WebDriver webDriver;
+        try {
+            webDriver = webDriverPool.borrow();
+        } catch (RuntimeException e) {
+            releaseSlot();
+            LOGGER.error("runFile:{} 取得 WebDriver 失敗", task.getName(), e);
+            return new RunFileResult(task.getName(), task.getGroup(), Status.FAILED, System.currentTimeMillis() - start, e);
+        }
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        final Thread worker = Thread.currentThread();
+        ScheduledFuture<?> timeoutFuture = null;
+        if (timeoutMillis > 0) {
+            // 逾時直接關掉瀏覽器, 讓卡在 WebDriver 呼叫或 sleep 的步驟盡快中斷;
+            // 檔案已經結束時不動作, 不會中斷到同一執行緒的下一個檔案, 也不會關掉已歸還的瀏覽器
+            timeoutFuture = watchdog.schedule(() -> {
+                if (!state.compareAndSet(RUNNING, TIMED_OUT)) {
+                    return;
+                }
+                worker.interrupt();
+                try {
+                    webDriver.quit();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("[timeout] 關閉 session 發生錯誤", e);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        StepTimer.bind(runReport, task.getGroup() == null ? task.getName() : task.getGroup());
+        try {
+            task.action.accept(webDriver);
+            if (!state.compareAndSet(RUNNING, DONE)) {
+                SessionState.failed(webDriver);
+                return timeout(task, start, null);
+            }
+            LOGGER.info("runFile:{} 執行成功, 花費 {}ms", task.getName(), System.currentTimeMillis() - start);
+            return new RunFileResult(task.getName(), task.getGroup(), Status.SUCCESS, System.currentTimeMillis() - start,
+                    null);
+        } catch (RuntimeException e) {
+            SessionState.failed(webDriver);
+            if (!state.compareAndSet(RUNNING, DONE)) {
+                return timeout(task, start, e);
+            }
+            LOGGER.error("runFile:{} e2e 發生錯誤！", task.getName(), e);
+            return new RunFileResult(task.getName(), task.getGroup(), Status.FAILED, System.currentTimeMillis() - start, e);
+        } finally {
+            StepTimer.unbind();
+            state.compareAndSet(RUNNING, DONE);
+            final boolean timedOut = state.get() == TIMED_OUT;
+            if (timedOut) {
+                awaitWatchdog(timeoutFuture);
+            } else if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+            }
+            // watchdog 已經做完, 這時清掉它留下的中斷狀態才不會再被設回來
+            Thread.interrupted();
+            if (timedOut) {
+                webDriverPool.invalidate(webDriver);
+            } else {
+                webDriverPool.release(webDriver);
+            }
+            releaseSlot();
+        }
+    }
+
+    // 逾時處理已經開始 (不能 cancel, 否則 get 不會等它做完), 等它中斷執行緒與關閉瀏覽器
+    private static void awaitWatchdog(Future<?> timeoutFuture) {
+        while (true) {
+            try {
+                timeoutFuture.get();
+                return;
+            } catch (InterruptedException e) {
+                // watchdog 自己送來的中斷, 繼續等
+            } catch (ExecutionException | CancellationException e) {
+                return;
+            }
+        }
+    }
+
+    private void acquireSlot() {
+        if (concurrencyController != null) {
+            try {
+                concurrencyController.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("等待執行空位時被中斷", e);
+            }
+        }
+    }
+
+    private void releaseSlot() {
+        if (concurrencyController != null) {
+            concurrencyController.release();
+        }
+    }
+
+    // 只有借/還瀏覽器用到 executorService, 步驟本身在 asyncStepRunner 的執行緒上接續執行
+    private CompletableFuture<RunFileResult> runAsync(RunFileTask task, ExecutorService executorService) {
+        final long start = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            acquireSlot();
+            try {
+                return webDriverPool.borrow();
+            } catch (RuntimeException e) {
+                releaseSlot();
+                throw e;
+            }
+        }, executorService).handle((webDriver, borrowError) -> {
+            if (borrowError != null) {
+                LOGGER.error("runFile:{} 取得 WebDriver 失敗", task.getName(), borrowError);
+                return CompletableFuture.completedFuture(new RunFileResult(task.getName(), task.getGroup(),
+                        Status.FAILED, System.currentTimeMillis() - start, unwrap(borrowError)));
+            }
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            final AtomicInteger state = new AtomicInteger(RUNNING);
+            final StepTimer stepTimer = StepTimer.create(runReport,
+                    task.getGroup() == null ? task.getName() : task.getGroup());
+            final CompletableFuture<Void> execution = asyncStepRunner.run(webDriver, task.commandPlan, task.fromLine,
+                    stepTimer, cancelled);
+            ScheduledFuture<?> timeoutFuture = null;
+            if (timeoutMillis > 0) {
+                // 逾時不用等排好的 sleep/輪詢到期, 直接結束這次執行, 之後排到的接續看到 cancelled 就不再動作
+                timeoutFuture = asyncStepRunner.getCarriers().schedule(() -> {
+                    if (!state.compareAndSet(RUNNING, TIMED_OUT)) {
+                        return;
+                    }
+                    cancelled.set(true);
+                    try {
+                        webDriver.quit();
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("[timeout] 關閉 session 發生錯誤", e);
+                    }
+                    execution.completeExceptionally(new RuntimeException("執行已取消"));
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            final ScheduledFuture<?> scheduledTimeout = timeoutFuture;
+            return execution
+                    .handle((ignored, error) -> {
+                        final boolean timedOut = !state.compareAndSet(RUNNING, DONE);
+                        if (scheduledTimeout != null && !timedOut) {
+                            scheduledTimeout.cancel(false);
+                        }
+                        final Throwable cause = error == null ? null : unwrap(error);
+                        if (timedOut || cause != null) {
+                            SessionState.failed(webDriver);
+                        }
+                        final RunFileResult result;
+                        if (timedOut) {
+                            result = timeout(task, start, cause);
+                        } else if (cause != null) {
+                            LOGGER.error("runFile:{} e2e 發生錯誤！", task.getName(), cause);
+                            result = new RunFileResult(task.getName(), task.getGroup(), Status.FAILED,
+                                    System.currentTimeMillis() - start, cause);
+                        } else {
+                            LOGGER.info("runFile:{} 執行成功, 花費 {}ms", task.getName(), System.currentTimeMillis() - start);
+                            result = new RunFileResult(task.getName(), task.getGroup(), Status.SUCCESS,
+                                    System.currentTimeMillis() - start, null);
+                        }
+                        return result;
+                    })
+                    .thenApplyAsync(result -> {
+                        // 不能排回 executorService: 那裡的執行緒可能都卡在 borrow 等這個瀏覽器
+                        // 逾時的瀏覽器已被關掉 (或正在關), 不放回 pool
+                        if (state.get() == TIMED_OUT) {
+                            webDriverPool.invalidate(webDriver);
+                        } else {
+                            webDriverPool.release(webDriver);
+                        }
+                        releaseSlot();
+                        return result;
+                    }, asyncStepRunner.getCarriers());
+        }).thenCompose(result -> result);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private RunFileResult timeout(RunFileTask task, long start, Throwable cause) {
+        LOGGER.error("runFile:{} 超過 {}ms 未完成", task.getName(), timeoutMillis);
+        if (concurrencyController != null) {
+            concurrencyController.onFileTimeout();
+        }
+        return new RunFileResult(task.getName(), task.getGroup(), Status.TIMEOUT, System.currentTimeMillis() - start,
+                cause);
+    }
+
+    private static void awaitTermination(ExecutorService executorService) {
+        try {
+            if (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static int logSummary(List<RunFileResult> results) {
+        int failed = 0;
+        int skipped = 0;
+        for (RunFileResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+            } else if (result.getStatus() == Status.SKIPPED) {
+                skipped++;
+            }
+            // 資料驅動的列可能很多, 只列出沒成功的
+            if (result.getGroup() == null || !result.isSuccess()) {
+                LOGGER.info("[summary] {} {} {}ms", result.getStatus(), result.getName(), result.getElapsedMillis());
+            }
+        }
+        LOGGER.info("[summary] 共 {} 個檔案, 成功 {} 個, 失敗 {} 個, 略過 {} 個", results.size(),
+                results.size() - failed - skipped, failed, skipped);
+        return failed == 0 ? 0 : 1;
+    }
+}
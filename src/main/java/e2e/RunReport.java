@@ -0,0 +1,327 @@
+package e2e;
+
+import e2e.EToE.Command;
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.Status;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 彙整每個步驟的耗時, 依 run file 與指令種類分別統計百分位數, 輸出 JSON / JUnit XML / Prometheus 文字格式
+public class RunReport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunReport.class);
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final int stepLimit;
+    private final ConcurrentMap<Command, Stats> commandStats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FileStats> fileStats = new ConcurrentSkipListMap<>();
+    private final Map<String, Number> metrics = new ConcurrentSkipListMap<>();
+
+    public RunReport(int stepLimit) {
+        this.stepLimit = stepLimit;
+    }
+
+    public void record(StepTiming stepTiming) {
+        commandStats.computeIfAbsent(stepTiming.getCommand(), command -> new Stats()).record(stepTiming);
+        final FileStats stats = fileStats.computeIfAbsent(stepTiming.getRunFileName(), name -> new FileStats());
+        stats.record(stepTiming);
+        synchronized (stats.steps) {
+            // 明細只留前 stepLimit 筆, 但失敗的步驟一定保留
+            if (stats.steps.size() < stepLimit || !stepTiming.isSuccess()) {
+                stats.steps.add(stepTiming);
+            }
+        }
+    }
+
+    public void addResult(RunFileResult result) {
+        if (result.getGroup() == null) {
+            fileStats.computeIfAbsent(result.getName(), name -> new FileStats()).result = result;
+            return;
+        }
+        // 資料驅動的每一列掛在所屬的 run file 底下, 不另外建統計
+        final FileStats stats = fileStats.computeIfAbsent(result.getGroup(), name -> new FileStats());
+        synchronized (stats.rows) {
+            stats.rows.add(result);
+        }
+    }
+
+    public void addResults(List<RunFileResult> results) {
+        for (RunFileResult result : results) {
+            addResult(result);
+        }
+    }
+
+    // 其他元件的數值 (pool/cache 等), 會一起輸出
+    public void putMetric(String name, Number value) {
+        metrics.put(name, value);
+    }
+
+    public void write(File reportDir, boolean prometheus) throws IOException {
+        FileUtils.forceMkdir(reportDir);
+        FileUtils.writeStringToFile(new File(reportDir, "report.json"), new Json().toJson(toMap()),
+                StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(reportDir, "junit.xml"), toJUnitXml(), StandardCharsets.UTF_8);
+        if (prometheus) {
+            FileUtils.writeStringToFile(new File(reportDir, "metrics.prom"), toPrometheus(), StandardCharsets.UTF_8);
+        }
+        LOGGER.info("[report] 已輸出到 {}", reportDir.getAbsolutePath());
+    }
+
+    public Map<String, Object> toMap() {
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("generatedAt", Instant.now().toString());
+        final Map<String, Object> commands = new LinkedHashMap<>();
+        for (Command command : Command.values()) {
+            final Stats stats = commandStats.get(command);
+            if (stats != null) {
+                commands.put(command.name(), stats.toMap());
+            }
+        }
+        root.put("commands", commands);
+        final List<Map<String, Object>> files = new ArrayList<>();
+        for (Map.Entry<String, FileStats> entry : fileStats.entrySet()) {
+            final FileStats stats = entry.getValue();
+            final Map<String, Object> file = new LinkedHashMap<>();
+            file.put("name", entry.getKey());
+            if (stats.result != null) {
+                file.put("status", stats.result.getStatus().name());
+                file.put("elapsedMs", stats.result.getElapsedMillis());
+                if (stats.result.getError() != null) {
+                    file.put("error", String.valueOf(stats.result.getError().getMessage()));
+                }
+            }
+            synchronized (stats.rows) {
+                if (!stats.rows.isEmpty()) {
+                    final List<Map<String, Object>> rows = new ArrayList<>();
+                    int failedRows = 0;
+                    for (RunFileResult row : stats.rows) {
+                        final Map<String, Object> rowMap = new LinkedHashMap<>();
+                        rowMap.put("name", row.getName());
+                        rowMap.put("status", row.getStatus().name());
+                        rowMap.put("elapsedMs", row.getElapsedMillis());
+                        if (!row.isSuccess()) {
+                            failedRows++;
+                            if (row.getError() != null) {
+                                rowMap.put("error", String.valueOf(row.getError().getMessage()));
+                            }
+                        }
+                        rows.add(rowMap);
+                    }
+                    file.put("rowCount", rows.size());
+                    file.put("failedRows", failedRows);
+                    file.put("rows", rows);
+                }
+            }
+            file.put("stats", stats.toMap());
+            final List<Map<String, Object>> steps = new ArrayList<>();
+            synchronized (stats.steps) {
+                for (StepTiming stepTiming : stats.steps) {
+                    steps.add(toMap(stepTiming));
+                }
+            }
+            file.put("steps", steps);
+            files.add(file);
+        }
+        root.put("files", files);
+        root.put("metrics", metrics);
+        return root;
+    }
+
+    public static Map<String, Object> toMap(StepTiming stepTiming) {
+        final Map<String, Object> step = new LinkedHashMap<>();
+        step.put("file", stepTiming.getRunFileName());
+        step.put("line", stepTiming.getLineNumber());
+        step.put("command", stepTiming.getCommand().name());
+        step.put("options", stepTiming.getOptions());
+        step.put("durationMs", toMillis(stepTiming.getDurationNanos()));
+        step.put("waitMs", toMillis(stepTiming.getWaitNanos()));
+        step.put("actionMs", toMillis(stepTiming.getActionNanos()));
+        step.put("retries", stepTiming.getRetries());
+        step.put("outcome", stepTiming.isSuccess() ? "SUCCESS" : "FAILED");
+        if (!stepTiming.isSuccess()) {
+            step.put("error", stepTiming.getError());
+        }
+        return step;
+    }
+
+    private String toJUnitXml() {
+        int tests = 0;
+        int failures = 0;
+        int skipped = 0;
+        long totalMillis = 0;
+        final StringBuilder testCases = new StringBuilder();
+        for (Map.Entry<String, FileStats> entry : fileStats.entrySet()) {
+            final List<RunFileResult> results = new ArrayList<>();
+            if (entry.getValue().result != null) {
+                results.add(entry.getValue().result);
+            }
+            synchronized (entry.getValue().rows) {
+                results.addAll(entry.getValue().rows);
+            }
+            for (RunFileResult result : results) {
+                tests++;
+                totalMillis += result.getElapsedMillis();
+                // 資料驅動的列以 run file 當 classname
+                testCases.append("    <testcase classname=\"")
+                        .append(escapeXml(result.getGroup() == null ? "e2e" : result.getGroup()))
+                        .append("\" name=\"").append(escapeXml(result.getName()))
+                        .append("\" time=\"").append(toSeconds(result.getElapsedMillis())).append('"');
+                if (result.getStatus() == Status.SKIPPED) {
+                    skipped++;
+                    testCases.append(">\n      <skipped message=\"內容與環境未變更, 上次執行成功\"/>\n    </testcase>\n");
+                } else if (result.isSuccess()) {
+                    testCases.append("/>\n");
+                } else {
+                    failures++;
+                    final String message = result.getError() == null ? result.getStatus().name()
+                            : String.valueOf(result.getError().getMessage());
+                    testCases.append(">\n      <failure type=\"").append(result.getStatus().name())
+                            .append("\" message=\"").append(escapeXml(message)).append("\"/>\n    </testcase>\n");
+                }
+            }
+        }
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuites tests=\"" + tests + "\" failures=\"" + failures + "\" skipped=\"" + skipped + "\" time=\"" + toSeconds(totalMillis) + "\">\n"
+                + "  <testsuite name=\"e2e\" tests=\"" + tests + "\" failures=\"" + failures + "\" skipped=\"" + skipped + "\" time=\"" + toSeconds(totalMillis) + "\">\n"
+                + testCases
+                + "  </testsuite>\n</testsuites>\n";
+    }
+
+    private String toPrometheus() {
+        final StringBuilder out = new StringBuilder();
+        out.append("# TYPE e2e_step_duration_seconds summary\n");
+        commandStats.forEach((command, stats) -> stats.appendSummary(out, "e2e_step_duration_seconds",
+                "command=\"" + command.name() + "\"", stats.duration, stats.durationNanos));
+        out.append("# TYPE e2e_step_wait_seconds summary\n");
+        commandStats.forEach((command, stats) -> stats.appendSummary(out, "e2e_step_wait_seconds",
+                "command=\"" + command.name() + "\"", stats.wait, stats.waitNanos));
+        out.append("# TYPE e2e_step_failures_total counter\n");
+        commandStats.forEach((command, stats) -> out.append("e2e_step_failures_total{command=\"")
+                .append(command.name()).append("\"} ").append(stats.failures.sum()).append('\n'));
+        out.append("# TYPE e2e_step_retries_total counter\n");
+        commandStats.forEach((command, stats) -> out.append("e2e_step_retries_total{command=\"")
+                .append(command.name()).append("\"} ").append(stats.retries.sum()).append('\n'));
+        out.append("# TYPE e2e_run_file_duration_seconds gauge\n");
+        fileStats.forEach((name, stats) -> {
+            if (stats.result != null) {
+                out.append("e2e_run_file_duration_seconds{file=\"").append(escapeLabel(name)).append("\",status=\"")
+                        .append(stats.result.getStatus().name()).append("\"} ")
+                        .append(toSeconds(stats.result.getElapsedMillis())).append('\n');
+            }
+        });
+        out.append("# TYPE e2e_data_rows_total counter\n");
+        fileStats.forEach((name, stats) -> {
+            final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+            synchronized (stats.rows) {
+                for (RunFileResult row : stats.rows) {
+                    counts.merge(row.getStatus(), 1, Integer::sum);
+                }
+            }
+            counts.forEach((status, count) -> out.append("e2e_data_rows_total{file=\"").append(escapeLabel(name))
+                    .append("\",status=\"").append(status.name()).append("\"} ").append(count).append('\n'));
+        });
+        metrics.forEach((name, value) -> out.append("# TYPE e2e_").append(name).append(" gauge\ne2e_")
+                .append(name).append(' ').append(value).append('\n'));
+        return out.toString();
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("\n", "&#10;");
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+
+    private static String toSeconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000d);
+    }
+
+    // 以微秒記錄的 histogram 轉成毫秒的平均、百分位數與最大值
+    static Map<String, Object> percentiles(Histogram histogram) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        if (histogram.getTotalCount() == 0) {
+            return map;
+        }
+        map.put("mean", histogram.getMean() / 1000d);
+        for (double percentile : PERCENTILES) {
+            map.put("p" + (int) percentile, histogram.getValueAtPercentile(percentile) / 1000d);
+        }
+        map.put("max", histogram.getMaxValue() / 1000d);
+        return map;
+    }
+
+    private static class Stats {
+        // 以微秒記錄
+        final Histogram duration = new ConcurrentHistogram(3);
+        final Histogram wait = new ConcurrentHistogram(3);
+        final LongAdder durationNanos = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder retries = new LongAdder();
+
+        void record(StepTiming stepTiming) {
+            duration.recordValue(TimeUnit.NANOSECONDS.toMicros(stepTiming.getDurationNanos()));
+            wait.recordValue(TimeUnit.NANOSECONDS.toMicros(stepTiming.getWaitNanos()));
+            durationNanos.add(stepTiming.getDurationNanos());
+            waitNanos.add(stepTiming.getWaitNanos());
+            retries.add(stepTiming.getRetries());
+            if (!stepTiming.isSuccess()) {
+                failures.increment();
+            }
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", duration.getTotalCount());
+            map.put("failures", failures.sum());
+            map.put("retries", retries.sum());
+            map.put("durationMs", percentiles(duration));
+            map.put("waitMs", percentiles(wait));
+            return map;
+        }
+
+        void appendSummary(StringBuilder out, String metricName, String labels, Histogram histogram, LongAdder sumNanos) {
+            for (double percentile : PERCENTILES) {
+                out.append(metricName).append('{').append(labels).append(",quantile=\"")
+                        .append(percentile / 100).append("\"} ")
+                        .append(histogram.getValueAtPercentile(percentile) / 1_000_000d).append('\n');
+            }
+            out.append(metricName).append("_sum{").append(labels).append("} ")
+                    .append(sumNanos.sum() / 1_000_000_000d).append('\n');
+            out.append(metricName).append("_count{").append(labels).append("} ")
+                    .append(histogram.getTotalCount()).append('\n');
+        }
+    }
+
+    private static class FileStats extends Stats {
+        final List<StepTiming> steps = new ArrayList<>();
+        final List<RunFileResult> rows = new ArrayList<>();
+        volatile RunFileResult result;
+    }
+}
@@ -0,0 +1,418 @@
+package e2e;
+
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// save state -k / load state -k: 登入後的 cookie、localStorage、sessionStorage 存一份, 其他 session 直接還原
+// load state 還原成功時略過之後到同 key 的 save state 為止的步驟 (也就是登入流程)
+// 同一個 key 同時只讓一個 session 登入, 其他 session 等它存好再還原
+public final class SessionState {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionState.class);
+
+    public static final String KEY_OPTION = "k";
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+    private static final Json JSON = new Json();
+    private static final String READ_STORAGE_SCRIPT = "function dump(s){var o={};if(!s){return o;}"
+            + "for(var i=0;i<s.length;i++){var k=s.key(i);o[k]=s.getItem(k);}return o;}"
+            + "try{return JSON.stringify({local:dump(window.localStorage),session:dump(window.sessionStorage)});}"
+            + "catch(e){return '{}';}";
+    private static final String WRITE_STORAGE_SCRIPT = "var data=JSON.parse(arguments[0]);"
+            + "function load(s,o){if(!s||!o){return;}s.clear();for(var k in o){s.setItem(k,o[k]);}}"
+            + "try{load(window.localStorage,data.local);load(window.sessionStorage,data.session);}catch(e){}";
+
+    // 狀態檔內含登入 cookie, 支援 POSIX 權限時只讓執行者本人讀寫
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private static final Map<String, Snapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    // 正在登入的 key, 其他 session 等這個結果
+    private static final Map<String, CompletableFuture<Snapshot>> PENDING = new ConcurrentHashMap<>();
+    private static final Map<WebDriver, Session> SESSIONS = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder INVALIDATIONS = new LongAdder();
+
+    private static volatile long ttlMillis = TimeUnit.MINUTES.toMillis(30);
+    private static volatile File stateDir = new File("e2e-state");
+    private static volatile boolean diskEnabled = true;
+    private static volatile long waitMillis = 30000;
+
+    private SessionState() {
+    }
+
+    public static void configure(Properties properties) {
+        ttlMillis = TimeUnit.SECONDS.toMillis(EToE.getIntProperty(properties, "state.ttl.seconds",
+                (int) TimeUnit.MILLISECONDS.toSeconds(ttlMillis)));
+        stateDir = new File(properties.getProperty("state.dir", stateDir.getPath()).trim());
+        diskEnabled = EToE.getBooleanProperty(properties, "state.disk.enabled", diskEnabled);
+        waitMillis = EToE.getIntProperty(properties, "wait.timeout.millis", (int) waitMillis);
+    }
+
+    public static void validateKey(String key) {
+        if (key != null && !key.isEmpty() && !KEY_PATTERN.matcher(key).matches()) {
+            throw new RuntimeException("state 的 key 只能有英數字與 . _ -:" + key);
+        }
+    }
+
+    // 編譯時檢查: load state 之後一定要有同 key 的 save state, 不然還原成功時之後的步驟會全部略過
+    static void validate(List<CommandStep> steps, StringBuilder errors) {
+        final List<CommandStep> pendingLoads = new ArrayList<>();
+        for (CommandStep step : steps) {
+            if (step.getCommand() == EToE.Command.LOAD_STATE) {
+                pendingLoads.add(step);
+            } else if (step.getCommand() == EToE.Command.SAVE_STATE) {
+                final String key = step.getOption(KEY_OPTION);
+                pendingLoads.removeIf(load -> key.equals(load.getOption(KEY_OPTION)));
+            }
+        }
+        for (CommandStep load : pendingLoads) {
+            errors.append(load).append(" : 之後沒有 save state -k ").append(load.getOption(KEY_OPTION))
+                    .append(", 還原成功時之後的步驟會全部略過").append('\n');
+        }
+    }
+
+    public static void save(WebDriver webDriver, String key) {
+        final Session session = session(webDriver);
+        final Snapshot snapshot = capture(webDriver);
+        SNAPSHOTS.put(key, snapshot);
+        if (diskEnabled) {
+            write(key, snapshot);
+        }
+        synchronized (session) {
+            session.loaded.add(key);
+            session.owned.remove(key);
+        }
+        final CompletableFuture<Snapshot> pending = PENDING.remove(key);
+        if (pending != null) {
+            pending.complete(snapshot);
+        }
+        LOGGER.info("[state] 已儲存 {} ({} 個 cookie)", key, snapshot.cookies.size());
+    }
+
+    // 還原成功時, 到同 key 的 save state 為止的步驟都略過; 沒有可用的狀態時由這個 session 負責登入
+    public static void load(WebDriver webDriver, String key) {
+        final CompletableFuture<Snapshot> other = tryLoad(webDriver, key);
+        if (other == null) {
+            return;
+        }
+        final Snapshot snapshot = await(key, other);
+        if (snapshot == null) {
+            MISSES.increment();
+            LOGGER.info("[state] 等不到其他 session 儲存 {}, 自己執行登入流程", key);
+            return;
+        }
+        restore(webDriver, key, snapshot);
+    }
+
+    // 不等待的版本 (非同步執行用): 已還原或改由這個 session 登入時回傳 null, 其他 session 正在登入時回傳它的結果
+    static CompletableFuture<Snapshot> tryLoad(WebDriver webDriver, String key) {
+        final Snapshot snapshot = find(key);
+        if (snapshot != null) {
+            restore(webDriver, key, snapshot);
+            return null;
+        }
+        final CompletableFuture<Snapshot> other = PENDING.putIfAbsent(key, new CompletableFuture<>());
+        if (other != null) {
+            LOGGER.info("[state] 其他 session 正在登入 {}, 等待結果", key);
+            return other;
+        }
+        MISSES.increment();
+        final Session session = session(webDriver);
+        synchronized (session) {
+            session.owned.add(key);
+        }
+        LOGGER.info("[state] {} 沒有可用的狀態, 由這個 session 執行登入流程", key);
+        return null;
+    }
+
+    // 執行每個步驟前呼叫, 回傳 true 代表這步因為已還原狀態而略過
+    public static boolean skip(WebDriver webDriver, CommandStep step) {
+        final Session session = SESSIONS.get(webDriver);
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            if (session.skipUntil == null) {
+                return false;
+            }
+            if (step.getCommand() == EToE.Command.SAVE_STATE
+                    && session.skipUntil.equals(step.getOption(KEY_OPTION))) {
+                session.skipUntil = null;
+            }
+            return true;
+        }
+    }
+
+    // 檔案執行失敗: 這個 session 用過或存過的狀態可能已經失效 (例如伺服器端登出), 下次重新登入
+    public static void failed(WebDriver webDriver) {
+        final Session session = SESSIONS.get(webDriver);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            for (String key : session.loaded) {
+                invalidate(key);
+            }
+            session.loaded.clear();
+        }
+    }
+
+    public static void invalidate(String key) {
+        if (SNAPSHOTS.remove(key) != null) {
+            INVALIDATIONS.increment();
+            LOGGER.info("[state] {} 已失效", key);
+        }
+        if (diskEnabled) {
+            FileUtils.deleteQuietly(stateFile(key));
+        }
+    }
+
+    // session 還回 pool 或丟棄時呼叫: 還沒存的登入讓給其他 session 做
+    public static void remove(WebDriver webDriver) {
+        final Session session = SESSIONS.remove(webDriver);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            for (String key : session.owned) {
+                final CompletableFuture<Snapshot> pending = PENDING.remove(key);
+                if (pending != null) {
+                    pending.complete(null);
+                }
+            }
+        }
+    }
+
+    private static Session session(WebDriver webDriver) {
+        return SESSIONS.computeIfAbsent(webDriver, key -> new Session());
+    }
+
+    private static Snapshot find(String key) {
+        Snapshot snapshot = SNAPSHOTS.get(key);
+        if (snapshot == null && diskEnabled) {
+            snapshot = read(key);
+            if (snapshot != null) {
+                SNAPSHOTS.putIfAbsent(key, snapshot);
+            }
+        }
+        if (snapshot != null && snapshot.isExpired()) {
+            LOGGER.info("[state] {} 已超過 {} 秒, 重新登入", key, TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+            invalidate(key);
+            return null;
+        }
+        return snapshot;
+    }
+
+    private static Snapshot await(String key, CompletableFuture<Snapshot> pending) {
+        try {
+            return pending.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    // 目前頁面網域的 cookie 與 localStorage / sessionStorage
+    static Snapshot capture(WebDriver webDriver) {
+        return new Snapshot(System.currentTimeMillis(), webDriver.getCurrentUrl(),
+                new ArrayList<>(webDriver.manage().getCookies()),
+                String.valueOf(((JavascriptExecutor) webDriver).executeScript(READ_STORAGE_SCRIPT)));
+    }
+
+    // 把另一個 session 的登入狀態複製過來 (parallel 區塊用), 還在空白頁等非 http 頁面時沒有狀態可複製
+    static void copy(Snapshot snapshot, WebDriver webDriver) {
+        if (snapshot.url != null && snapshot.url.startsWith("http")) {
+            apply(webDriver, snapshot);
+        }
+    }
+
+    private static void restore(WebDriver webDriver, String key, Snapshot snapshot) {
+        HITS.increment();
+        apply(webDriver, snapshot);
+        final Session session = session(webDriver);
+        synchronized (session) {
+            session.loaded.add(key);
+            session.skipUntil = key;
+        }
+        LOGGER.info("[state] 已還原 {}, 略過到 save state -k {} 為止的步驟", key, key);
+    }
+
+    // cookie 只能加在同網域的頁面上, 先回到存檔時的網址
+    private static void apply(WebDriver webDriver, Snapshot snapshot) {
+        webDriver.get(snapshot.url);
+        webDriver.manage().deleteAllCookies();
+        for (Cookie cookie : snapshot.cookies) {
+            webDriver.manage().addCookie(cookie);
+        }
+        ((JavascriptExecutor) webDriver).executeScript(WRITE_STORAGE_SCRIPT, snapshot.storage);
+        webDriver.get(snapshot.url);
+        LocatorCache.invalidate(webDriver);
+    }
+
+    private static File stateFile(String key) {
+        return new File(stateDir, key + ".json");
+    }
+
+    // 暫存檔建立時就是 rw-------, 寫完再搬過去, 內容不會有任何時候對其他使用者可讀
+    private static void write(String key, Snapshot snapshot) {
+        final Path file = stateFile(key).toPath();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (!Files.isDirectory(stateDir.toPath())) {
+                Files.createDirectories(stateDir.toPath(), ownerOnly("rwx------"));
+            }
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp, ownerOnly("rw-------"));
+            Files.write(tmp, JSON.toJson(snapshot.toMap()).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("[state] 寫入 {} 失敗", file, e);
+            FileUtils.deleteQuietly(tmp.toFile());
+        }
+    }
+
+    private static FileAttribute<?>[] ownerOnly(String permissions) {
+        return POSIX ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString(permissions))} : new FileAttribute<?>[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Snapshot read(String key) {
+        final File file = stateFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final Map<String, Object> map = JSON.toType(FileUtils.readFileToString(file, StandardCharsets.UTF_8),
+                    Json.MAP_TYPE);
+            final List<Cookie> cookies = new ArrayList<>();
+            for (Object cookie : (List<Object>) map.get("cookies")) {
+                cookies.add(toCookie((Map<String, Object>) cookie));
+            }
+            return new Snapshot(((Number) map.get("savedAt")).longValue(), String.valueOf(map.get("url")), cookies,
+                    String.valueOf(map.get("storage")));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("[state] 讀取 {} 失敗, 重新登入", file, e);
+            return null;
+        }
+    }
+
+    private static Cookie toCookie(Map<String, Object> map) {
+        final Cookie.Builder builder = new Cookie.Builder(String.valueOf(map.get("name")),
+                String.valueOf(map.get("value")))
+                .path(String.valueOf(map.get("path")))
+                .isSecure(Boolean.TRUE.equals(map.get("secure")))
+                .isHttpOnly(Boolean.TRUE.equals(map.get("httpOnly")));
+        if (map.get("domain") != null) {
+            builder.domain(String.valueOf(map.get("domain")));
+        }
+        if (map.get("expiry") != null) {
+            builder.expiresOn(new Date(((Number) map.get("expiry")).longValue()));
+        }
+        if (map.get("sameSite") != null) {
+            builder.sameSite(String.valueOf(map.get("sameSite")));
+        }
+        return builder.build();
+    }
+
+    public static void reportMetrics(RunReport runReport) {
+        runReport.putMetric("state_hits_total", HITS.sum());
+        runReport.putMetric("state_misses_total", MISSES.sum());
+        runReport.putMetric("state_invalidations_total", INVALIDATIONS.sum());
+        if (HITS.sum() + MISSES.sum() > 0) {
+            LOGGER.info("[state] 還原:{} 重新登入:{} 失效:{}", HITS.sum(), MISSES.sum(), INVALIDATIONS.sum());
+        }
+    }
+
+    private static final class Session {
+        // 這個 session 還原過或存過的 key, 檔案失敗時一起失效
+        final Set<String> loaded = new HashSet<>();
+        // 這個 session 負責登入但還沒存的 key
+        final Set<String> owned = new HashSet<>();
+        String skipUntil;
+    }
+
+    static final class Snapshot {
+        final long savedAt;
+        final String url;
+        final List<Cookie> cookies;
+        // localStorage / sessionStorage 的 JSON
+        final String storage;
+
+        Snapshot(long savedAt, String url, List<Cookie> cookies, String storage) {
+            this.savedAt = savedAt;
+            this.url = url;
+            this.cookies = cookies;
+            this.storage = storage;
+        }
+
+        boolean isExpired() {
+            if (System.currentTimeMillis() - savedAt > ttlMillis) {
+                return true;
+            }
+            // 任何一個 cookie 過期就當作登入已失效
+            final Date now = new Date();
+            for (Cookie cookie : cookies) {
+                if (cookie.getExpiry() != null && cookie.getExpiry().before(now)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("savedAt", savedAt);
+            map.put("url", url);
+            final List<Map<String, Object>> cookieMaps = new ArrayList<>();
+            for (Cookie cookie : cookies) {
+                final Map<String, Object> cookieMap = new LinkedHashMap<>();
+                cookieMap.put("name", cookie.getName());
+                cookieMap.put("value", cookie.getValue());
+                cookieMap.put("domain", cookie.getDomain());
+                cookieMap.put("path", cookie.getPath());
+                cookieMap.put("expiry", cookie.getExpiry() == null ? null : cookie.getExpiry().getTime());
+                cookieMap.put("secure", cookie.isSecure());
+                cookieMap.put("httpOnly", cookie.isHttpOnly());
+                cookieMap.put("sameSite", cookie.getSameSite());
+                cookieMaps.add(cookieMap);
+            }
+            map.put("cookies", cookieMaps);
+            map.put("storage", storage);
+            return map;
+        }
+    }
+}
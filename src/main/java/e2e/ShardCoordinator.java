@@ -0,0 +1,335 @@
+package e2e;
+
+import e2e.RunFileScheduler.RunFileResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// --coordinator: 把 run file 分給多個 worker 行程 (同一台或其他機器) 執行, 合併結果與步驟耗時成一份報告
+// 檔案依大小先平均分到每個 worker 的佇列 (大的先排), worker 做完自己的就從剩最多的佇列偷最大的一個
+public final class ShardCoordinator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    private final Properties properties;
+    private final RunReport runReport;
+    private final int expectedWorkers;
+    private final int maxRequeues;
+    // 沒有任何 worker 連線超過這個時間就放棄剩下的檔案, 0 代表一直等
+    private final long workerWaitNanos;
+    // 每個 worker 一個佇列, 依 worker 連上來的順序對應
+    private final List<Deque<Entry>> queues = new ArrayList<>();
+    private final Map<String, Deque<Entry>> workerQueues = new LinkedHashMap<>();
+    private final Map<String, WorkerStats> workerStats = new LinkedHashMap<>();
+    // worker 中斷時沒做完的檔案, 所有 worker 優先領取
+    private final Deque<Entry> requeued = new ArrayDeque<>();
+    private final List<RunFileResult> results = new ArrayList<>();
+    private int pendingEntries;
+    private int activeConnections;
+    // 最後一次變成沒有任何連線的時間
+    private long idleSince;
+    private int steals;
+    private int requeues;
+
+    public ShardCoordinator(Properties properties, RunReport runReport) {
+        this.properties = properties;
+        this.runReport = runReport;
+        final int localWorkers = EToE.getIntProperty(properties, "shard.workers.local", 0);
+        this.expectedWorkers = Math.max(1, EToE.getIntProperty(properties, "shard.workers.expected", localWorkers));
+        this.maxRequeues = EToE.getIntProperty(properties, "shard.requeue.max", 1);
+        this.workerWaitNanos = TimeUnit.SECONDS.toNanos(Math.max(0, EToE.getIntProperty(properties,
+                "shard.worker.wait.seconds", 300)));
+    }
+
+    // entries 是 run.file.names 裡的項目 (可帶 :行號), weight 用來決定先後與分配
+    public List<RunFileResult> run(Map<String, Long> entries) throws IOException {
+        final List<Entry> sorted = new ArrayList<>();
+        entries.forEach((name, weight) -> sorted.add(new Entry(name, weight)));
+        sorted.sort(Comparator.comparingLong((Entry entry) -> entry.weight).reversed());
+        final long[] queueWeights = new long[expectedWorkers];
+        for (int i = 0; i < expectedWorkers; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+        // 依序放進目前總量最少的佇列
+        for (Entry entry : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < expectedWorkers; i++) {
+                if (queueWeights[i] < queueWeights[lightest]) {
+                    lightest = i;
+                }
+            }
+            queues.get(lightest).addLast(entry);
+            queueWeights[lightest] += entry.weight;
+        }
+        pendingEntries = sorted.size();
+        final long start = System.nanoTime();
+        final InetAddress bindAddress = InetAddress.getByName(properties.getProperty("shard.bind.address",
+                "127.0.0.1").trim());
+        try (ServerSocket serverSocket = new ServerSocket(EToE.getIntProperty(properties, "shard.port", 0), 50,
+                bindAddress)) {
+            final String address = bindAddress.getHostAddress() + ":" + serverSocket.getLocalPort();
+            LOGGER.info("[coordinator] 在 {} 等待 worker, 共 {} 個檔案", address, sorted.size());
+            final Thread acceptor = new Thread(() -> accept(serverSocket), "shard-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            final List<Process> processes = startLocalWorkers(serverSocket.getLocalPort());
+            try {
+                awaitCompletion(processes);
+            } finally {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+            }
+        }
+        reportMetrics(System.nanoTime() - start);
+        synchronized (this) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    activeConnections++;
+                }
+                final Thread handler = new Thread(() -> handle(socket), "shard-" + socket.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("[coordinator] 接受連線失敗", e);
+            }
+        }
+    }
+
+    // 本機 worker 用同一個 classpath 另開 JVM, 用來量測在一台機器上加 worker 的擴充效率
+    private List<Process> startLocalWorkers(int port) throws IOException {
+        final int localWorkers = EToE.getIntProperty(properties, "shard.workers.local", 0);
+        final List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < localWorkers; i++) {
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            for (String arg : properties.getProperty("shard.worker.jvm.args", "").split(" ")) {
+                if (!arg.trim().isEmpty()) {
+                    command.add(arg.trim());
+                }
+            }
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), EToE.class.getName(),
+                    EToE.WORKER_ARG, "127.0.0.1:" + port));
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        if (localWorkers > 0) {
+            LOGGER.info("[coordinator] 已啟動 {} 個本機 worker", localWorkers);
+        }
+        return processes;
+    }
+
+    private synchronized void awaitCompletion(List<Process> processes) {
+        idleSince = System.nanoTime();
+        while (pendingEntries > 0) {
+            // 本機 worker 都結束了、也沒有其他連線, 剩下的檔案沒人做
+            if (!processes.isEmpty() && activeConnections == 0
+                    && processes.stream().noneMatch(Process::isAlive)) {
+                LOGGER.error("[coordinator] 所有 worker 都已結束, 還有 {} 個檔案沒有執行", pendingEntries);
+                failRemaining();
+                break;
+            }
+            // 沒有本機 worker 時只能等其他機器連進來, 一直沒有連線 (或全部斷線) 就不再等
+            if (workerWaitNanos > 0 && activeConnections == 0 && System.nanoTime() - idleSince >= workerWaitNanos) {
+                LOGGER.error("[coordinator] {} 秒內沒有任何 worker 連線, 還有 {} 個檔案沒有執行",
+                        TimeUnit.NANOSECONDS.toSeconds(workerWaitNanos), pendingEntries);
+                failRemaining();
+                break;
+            }
+            try {
+                wait(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void failRemaining() {
+        final List<Entry> remaining = new ArrayList<>(requeued);
+        requeued.clear();
+        for (Deque<Entry> queue : queues) {
+            remaining.addAll(queue);
+            queue.clear();
+        }
+        for (Entry entry : remaining) {
+            results.add(RunFileResult.failed(entry.name, new IllegalStateException("沒有 worker 可以執行")));
+        }
+        pendingEntries = 0;
+    }
+
+    private void handle(Socket socket) {
+        String workerId = String.valueOf(socket.getRemoteSocketAddress());
+        Entry current = null;
+        long currentStart = 0;
+        final List<RunFileResult> currentResults = new ArrayList<>();
+        try (Socket closing = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(closing.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(closing.getOutputStream(), StandardCharsets.UTF_8)) {
+            Map<String, Object> message;
+            while ((message = ShardProtocol.read(reader)) != null) {
+                final Object type = message.get(ShardProtocol.TYPE);
+                if (ShardProtocol.HELLO.equals(type)) {
+                    workerId = String.valueOf(message.get("worker"));
+                    register(workerId);
+                } else if (ShardProtocol.STEP.equals(type)) {
+                    runReport.record(ShardProtocol.toStepTiming(message));
+                } else if (ShardProtocol.RESULT.equals(type)) {
+                    currentResults.add(ShardProtocol.toResult(message));
+                } else if (ShardProtocol.FINISHED.equals(type) && current != null) {
+                    finish(workerId, current, currentResults, System.nanoTime() - currentStart);
+                    current = null;
+                    currentResults.clear();
+                } else if (ShardProtocol.NEXT.equals(type)) {
+                    current = take(workerId);
+                    if (current == null) {
+                        ShardProtocol.send(writer, ShardProtocol.message(ShardProtocol.DONE));
+                    } else {
+                        currentStart = System.nanoTime();
+                        final Map<String, Object> task = ShardProtocol.message(ShardProtocol.TASK);
+                        task.put("entry", current.name);
+                        ShardProtocol.send(writer, task);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("[coordinator] 與 worker {} 的連線中斷", workerId, e);
+        } finally {
+            disconnected(workerId, current);
+        }
+    }
+
+    private synchronized void register(String workerId) {
+        if (!workerQueues.containsKey(workerId)) {
+            // 多出來的 worker 沒有自己的佇列, 只靠偷
+            workerQueues.put(workerId, workerQueues.size() < queues.size() ? queues.get(workerQueues.size())
+                    : new ArrayDeque<>());
+            workerStats.put(workerId, new WorkerStats());
+            LOGGER.info("[coordinator] worker {} 已連線", workerId);
+        }
+    }
+
+    // 沒有檔案可以做時回傳 null (可能還有其他 worker 在做, 但已經不會再分出新的)
+    private synchronized Entry take(String workerId) {
+        register(workerId);
+        Entry entry = requeued.pollFirst();
+        if (entry == null) {
+            entry = workerQueues.get(workerId).pollFirst();
+        }
+        if (entry == null) {
+            // 偷剩下總量最多的佇列裡最大的檔案, 避免最後只剩一個長檔案卡住整批
+            Deque<Entry> victim = null;
+            long victimWeight = 0;
+            for (Deque<Entry> queue : queues) {
+                final long weight = queue.stream().mapToLong(candidate -> candidate.weight).sum();
+                if (!queue.isEmpty() && (victim == null || weight > victimWeight)) {
+                    victim = queue;
+                    victimWeight = weight;
+                }
+            }
+            if (victim != null) {
+                entry = victim.pollFirst();
+                steals++;
+                workerStats.get(workerId).steals++;
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void finish(String workerId, Entry entry, List<RunFileResult> entryResults, long nanos) {
+        results.addAll(entryResults);
+        final WorkerStats stats = workerStats.get(workerId);
+        stats.files++;
+        stats.busyNanos += nanos;
+        pendingEntries--;
+        notifyAll();
+    }
+
+    // 做到一半斷線的檔案重新排隊, 已經回傳的步驟耗時仍會算在報告裡
+    private synchronized void disconnected(String workerId, Entry current) {
+        if (--activeConnections == 0) {
+            idleSince = System.nanoTime();
+        }
+        if (current != null) {
+            if (current.requeues < maxRequeues) {
+                current.requeues++;
+                requeues++;
+                requeued.addFirst(current);
+                LOGGER.warn("[coordinator] worker {} 中斷, {} 重新排隊", workerId, current.name);
+            } else {
+                results.add(RunFileResult.failed(current.name,
+                        new IllegalStateException("worker " + workerId + " 執行中斷")));
+                pendingEntries--;
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void reportMetrics(long wallNanos) {
+        long busyNanos = 0;
+        for (Map.Entry<String, WorkerStats> entry : workerStats.entrySet()) {
+            final WorkerStats stats = entry.getValue();
+            busyNanos += stats.busyNanos;
+            LOGGER.info("[coordinator] worker {} 執行 {} 個檔案, 忙碌 {}ms, 偷了 {} 個", entry.getKey(), stats.files,
+                    TimeUnit.NANOSECONDS.toMillis(stats.busyNanos), stats.steals);
+        }
+        final int workers = Math.max(1, workerStats.size());
+        // 所有 slot 加總的忙碌時間 / (worker 數 x 總時間); slot 多於 1 時可能超過 1
+        final double efficiency = wallNanos == 0 ? 0 : busyNanos / (double) (workers * wallNanos);
+        LOGGER.info("[coordinator] {} 個 worker, 總時間 {}ms, 偷取 {} 次, 重新排隊 {} 次, 每個 worker 平均忙碌比例 {}",
+                workerStats.size(), TimeUnit.NANOSECONDS.toMillis(wallNanos), steals, requeues,
+                String.format("%.2f", efficiency));
+        runReport.putMetric("shard_workers", workerStats.size());
+        runReport.putMetric("shard_wall_seconds", wallNanos / 1_000_000_000d);
+        runReport.putMetric("shard_busy_seconds", busyNanos / 1_000_000_000d);
+        runReport.putMetric("shard_efficiency", efficiency);
+        runReport.putMetric("shard_steals_total", steals);
+        runReport.putMetric("shard_requeues_total", requeues);
+    }
+
+    private static final class Entry {
+        final String name;
+        final long weight;
+        int requeues;
+
+        Entry(String name, long weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private static final class WorkerStats {
+        int files;
+        long busyNanos;
+        int steals;
+    }
+}
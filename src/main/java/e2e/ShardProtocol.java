@@ -0,0 +1,102 @@
+package e2e;
+
+import e2e.EToE.Command;
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.Status;
+import org.openqa.selenium.json.Json;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// coordinator 與 worker 之間的訊息: 每行一個 JSON 物件, type 欄位區分種類
+// worker -> coordinator: hello / next / step / result / finished
+// coordinator -> worker: task / done
+// daemon 也用同樣的格式: client -> daemon: run / shutdown, daemon -> client: step / result / done / error
+final class ShardProtocol {
+    static final String TYPE = "type";
+    static final String HELLO = "hello";
+    static final String NEXT = "next";
+    static final String STEP = "step";
+    static final String RESULT = "result";
+    static final String FINISHED = "finished";
+    static final String TASK = "task";
+    static final String DONE = "done";
+    static final String RUN = "run";
+    static final String SHUTDOWN = "shutdown";
+    static final String ERROR = "error";
+
+    private static final Json JSON = new Json();
+
+    private ShardProtocol() {
+    }
+
+    static Map<String, Object> message(String type) {
+        final Map<String, Object> message = new LinkedHashMap<>();
+        message.put(TYPE, type);
+        return message;
+    }
+
+    static void send(Writer writer, Map<String, Object> message) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        JSON.newOutput(line).setPrettyPrint(false).write(message);
+        synchronized (writer) {
+            writer.write(line.append('\n').toString());
+            writer.flush();
+        }
+    }
+
+    // 連線關閉時回傳 null
+    static Map<String, Object> read(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && line.trim().isEmpty());
+        return line == null ? null : JSON.toType(line, Json.MAP_TYPE);
+    }
+
+    static Map<String, Object> toMessage(StepTiming stepTiming) {
+        final Map<String, Object> message = message(STEP);
+        message.put("file", stepTiming.getRunFileName());
+        message.put("line", stepTiming.getLineNumber());
+        message.put("command", stepTiming.getCommand().name());
+        message.put("options", stepTiming.getOptions());
+        message.put("durationNanos", stepTiming.getDurationNanos());
+        message.put("waitNanos", stepTiming.getWaitNanos());
+        message.put("retries", stepTiming.getRetries());
+        message.put("error", stepTiming.getError());
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    static StepTiming toStepTiming(Map<String, Object> message) {
+        final Map<String, String> options = new LinkedHashMap<>();
+        ((Map<String, Object>) message.get("options")).forEach((key, value) -> options.put(key,
+                value == null ? null : String.valueOf(value)));
+        return new StepTiming((String) message.get("file"), ((Number) message.get("line")).intValue(),
+                Command.valueOf((String) message.get("command")), options,
+                ((Number) message.get("durationNanos")).longValue(), ((Number) message.get("waitNanos")).longValue(),
+                ((Number) message.get("retries")).intValue(), (String) message.get("error"));
+    }
+
+    static Map<String, Object> toMessage(RunFileResult result) {
+        final Map<String, Object> message = message(RESULT);
+        message.put("name", result.getName());
+        message.put("group", result.getGroup());
+        message.put("status", result.getStatus().name());
+        message.put("elapsedMs", result.getElapsedMillis());
+        if (result.getError() != null) {
+            message.put("error", result.getError().getClass().getSimpleName() + ": " + result.getError().getMessage());
+        }
+        return message;
+    }
+
+    static RunFileResult toResult(Map<String, Object> message) {
+        final Object error = message.get("error");
+        return new RunFileResult((String) message.get("name"), (String) message.get("group"),
+                Status.valueOf((String) message.get("status")), ((Number) message.get("elapsedMs")).longValue(),
+                error == null ? null : new RuntimeException(String.valueOf(error)));
+    }
+}
@@ -0,0 +1,167 @@
+package e2e;
+
+import com.google.common.collect.Iterators;
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.RunFileTask;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+// --worker host:port: 連到 coordinator 領取 run file 執行, 步驟耗時與結果即時回傳
+// 每個 slot 一條連線, 一次執行一個檔案, 所有 slot 共用同一個 WebDriver pool
+public final class ShardWorker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardWorker.class);
+
+    private ShardWorker() {
+    }
+
+    public static int run(File eToEResourceRootDir, Properties properties, String coordinatorAddress) {
+        final int separator = coordinatorAddress.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("coordinator 位址格式必須是 host:port:" + coordinatorAddress);
+        }
+        final String host = coordinatorAddress.substring(0, separator);
+        final int port = Integer.parseInt(coordinatorAddress.substring(separator + 1));
+        try (ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(properties)) {
+            return run(eToEResourceRootDir, properties, host, port, chromeSessionFactory);
+        }
+    }
+
+    static int run(File eToEResourceRootDir, Properties properties, String host, int port,
+                   Supplier<WebDriver> webDriverFactory) {
+        final int parallelism = EToE.getIntProperty(properties, "run.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        final int slots = EToE.getIntProperty(properties, "shard.worker.slots", parallelism);
+        final String workerId = properties.getProperty("shard.worker.id", workerId());
+        final WebDriverPool webDriverPool = new WebDriverPool(webDriverFactory,
+                EToE.getIntProperty(properties, "driver.pool.min", 0),
+                EToE.getIntProperty(properties, "driver.pool.max", parallelism));
+        ParallelBlocks.use(webDriverPool);
+        final ExecutorService executorService = Executors.newFixedThreadPool(slots);
+        int failedSlots = 0;
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < slots; i++) {
+                futures.add(executorService.submit(() -> runSlot(eToEResourceRootDir, properties, host, port,
+                        workerId, webDriverPool)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    failedSlots++;
+                    LOGGER.error("[worker] slot 中斷", e);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            FailureArtifacts.flush(EToE.getIntProperty(properties, "artifacts.flush.timeout.seconds", 30) * 1000L);
+            webDriverPool.close();
+        }
+        LOGGER.info("[worker] {} 結束", workerId);
+        return failedSlots == 0 ? 0 : 1;
+    }
+
+    private static void runSlot(File eToEResourceRootDir, Properties properties, String host, int port,
+                                String workerId, WebDriverPool webDriverPool) {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            final Map<String, Object> hello = ShardProtocol.message(ShardProtocol.HELLO);
+            hello.put("worker", workerId);
+            ShardProtocol.send(writer, hello);
+            final RunReport forwardingReport = new ForwardingReport(writer);
+            final RunFileScheduler runFileScheduler = new RunFileScheduler(webDriverPool, webDriverPool.getMaxSize(),
+                    EToE.getIntProperty(properties, "run.file.timeout.seconds", 0) * 1000L, forwardingReport);
+            while (true) {
+                ShardProtocol.send(writer, ShardProtocol.message(ShardProtocol.NEXT));
+                final Map<String, Object> reply = ShardProtocol.read(reader);
+                if (reply == null || ShardProtocol.DONE.equals(reply.get(ShardProtocol.TYPE))) {
+                    return;
+                }
+                final String entry = (String) reply.get("entry");
+                LOGGER.info("[worker] {} 開始執行 {}", workerId, entry);
+                for (RunFileResult result : runEntry(eToEResourceRootDir, properties, entry, runFileScheduler)) {
+                    ShardProtocol.send(writer, ShardProtocol.toMessage(result));
+                }
+                final Map<String, Object> finished = ShardProtocol.message(ShardProtocol.FINISHED);
+                finished.put("entry", entry);
+                ShardProtocol.send(writer, finished);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("與 coordinator " + host + ":" + port + " 的連線中斷", e);
+        }
+    }
+
+    // entry 是 run.file.names 的一項 (可含 :行號), 資料驅動的檔案也會展開成每一列
+    static List<RunFileResult> runEntry(File eToEResourceRootDir, Properties properties, String entry,
+                                        RunFileScheduler runFileScheduler) {
+        final List<RunFileResult> results = new ArrayList<>();
+        final List<RunFileTask> tasks = new ArrayList<>();
+        final List<DataDrivenRun> dataDrivenRuns = new ArrayList<>();
+        EToE.addRunFile(eToEResourceRootDir, properties, entry, tasks, dataDrivenRuns, results, null, false);
+        try {
+            if (!tasks.isEmpty() || !dataDrivenRuns.isEmpty()) {
+                results.addAll(runFileScheduler.runAll(Iterators.concat(tasks.iterator(),
+                        Iterators.concat(dataDrivenRuns.iterator()))));
+            }
+        } finally {
+            for (DataDrivenRun dataDrivenRun : dataDrivenRuns) {
+                IOUtils.closeQuietly(dataDrivenRun);
+            }
+        }
+        return results;
+    }
+
+    private static String workerId() {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            hostName = "unknown";
+        }
+        return hostName + ":" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    }
+
+    // 步驟耗時不在本機統計, 每筆直接以一行 JSON 轉送出去 (coordinator 或 daemon 的 client)
+    static final class ForwardingReport extends RunReport {
+        private final Writer writer;
+
+        ForwardingReport(Writer writer) {
+            super(0);
+            this.writer = writer;
+        }
+
+        @Override
+        public void record(StepTiming stepTiming) {
+            try {
+                ShardProtocol.send(writer, ShardProtocol.toMessage(stepTiming));
+            } catch (IOException e) {
+                // 不影響步驟本身的結果, 連線真的斷了會在回傳檔案結果時發現
+                LOGGER.debug("回傳步驟耗時失敗", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package e2e;
+
+// 綁在執行緒上的步驟計時器, 沒有綁定時所有方法都不做事
+public final class StepTimer {
+    private static final ThreadLocal<StepTimer> CURRENT = new ThreadLocal<>();
+
+    private final RunReport runReport;
+    private final String runFileName;
+    private long waitNanos;
+    private int retries;
+
+    private StepTimer(RunReport runReport, String runFileName) {
+        this.runReport = runReport;
+        this.runFileName = runFileName;
+    }
+
+    public static void bind(RunReport runReport, String runFileName) {
+        if (runReport != null) {
+            CURRENT.set(new StepTimer(runReport, runFileName));
+        }
+    }
+
+    // 非同步執行時一個檔案會在不同執行緒之間接續, 每次接續前 attach 到目前執行緒, 結束後 unbind
+    public static StepTimer create(RunReport runReport, String runFileName) {
+        return runReport == null ? null : new StepTimer(runReport, runFileName);
+    }
+
+    public static void attach(StepTimer stepTimer) {
+        if (stepTimer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(stepTimer);
+        }
+    }
+
+    // 同一個檔案的步驟分到其他執行緒執行時 (parallel 區塊) 使用, 記錄到同一份報告; 沒有綁定時回傳 null
+    public static StepTimer fork() {
+        final StepTimer stepTimer = CURRENT.get();
+        return stepTimer == null ? null : new StepTimer(stepTimer.runReport, stepTimer.runFileName);
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    public static StepTimer current() {
+        return CURRENT.get();
+    }
+
+    // 目前執行緒正在執行的 run file, 沒有綁定時回傳 null
+    public static String currentRunFileName() {
+        final StepTimer stepTimer = CURRENT.get();
+        return stepTimer == null ? null : stepTimer.runFileName;
+    }
+
+    // Waits 每次等待結束時呼叫, polls 是條件檢查的次數
+    public static void recordWait(long waitNanos, int polls) {
+        final StepTimer stepTimer = CURRENT.get();
+        if (stepTimer != null) {
+            stepTimer.waitNanos += waitNanos;
+            stepTimer.retries += Math.max(0, polls - 1);
+        }
+    }
+
+    public static long beginStep() {
+        final StepTimer stepTimer = CURRENT.get();
+        if (stepTimer != null) {
+            stepTimer.waitNanos = 0;
+            stepTimer.retries = 0;
+        }
+        return System.nanoTime();
+    }
+
+    public static StepTiming endStep(CommandStep step, long startNanos, Throwable error) {
+        final long durationNanos = System.nanoTime() - startNanos;
+        final StepTimer stepTimer = CURRENT.get();
+        if (stepTimer == null) {
+            return null;
+        }
+        final StepTiming stepTiming = new StepTiming(stepTimer.runFileName, step, durationNanos,
+                stepTimer.waitNanos, stepTimer.retries, error);
+        stepTimer.runReport.record(stepTiming);
+        return stepTiming;
+    }
+}
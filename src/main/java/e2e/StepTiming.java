@@ -0,0 +1,77 @@
+package e2e;
+
+import e2e.EToE.Command;
+
+import java.util.Map;
+
+// 單一步驟的執行紀錄
+public final class StepTiming {
+    private final String runFileName;
+    private final int lineNumber;
+    private final Command command;
+    private final Map<String, String> options;
+    private final long durationNanos;
+    private final long waitNanos;
+    private final int retries;
+    private final String error;
+
+    public StepTiming(String runFileName, CommandStep step, long durationNanos, long waitNanos, int retries,
+                      Throwable error) {
+        // 報告、shard 連線都只看得到遮過的選項
+        this(runFileName, step.getLineNumber(), step.getCommand(), step.getDisplayOptions(), durationNanos, waitNanos,
+                retries, error == null ? null : String.valueOf(error.getMessage()));
+    }
+
+    // 由其他行程傳回來的紀錄還原
+    StepTiming(String runFileName, int lineNumber, Command command, Map<String, String> options, long durationNanos,
+               long waitNanos, int retries, String error) {
+        this.runFileName = runFileName;
+        this.lineNumber = lineNumber;
+        this.command = command;
+        this.options = options;
+        this.durationNanos = durationNanos;
+        this.waitNanos = Math.min(waitNanos, durationNanos);
+        this.retries = retries;
+        this.error = error;
+    }
+
+    public String getRunFileName() {
+        return runFileName;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getActionNanos() {
+        return durationNanos - waitNanos;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,116 @@
+package e2e;
+
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// 超大的 run file 一行一行讀, 邊編譯邊執行, 記憶體用量和檔案大小無關
+public final class StreamingRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingRunner.class);
+
+    // 語法錯誤最多列出的筆數, 避免錯誤訊息本身吃光記憶體
+    private static final int MAX_ERRORS = 100;
+
+    private StreamingRunner() {
+    }
+
+    // 開瀏覽器前先掃過整個檔案檢查語法, 不保留編譯結果; 回傳是否用到 wait page -n, 要在執行前註冊追蹤腳本
+    // 跨步驟的檢查和 CommandPlan 相同, 只留下檢查需要的 parallel/branch/join 與 load/save state 步驟
+    public static boolean validate(File file) throws IOException {
+        final StringBuilder errors = new StringBuilder();
+        final List<CommandStep> crossSteps = new ArrayList<>();
+        boolean waitsForNetworkIdle = false;
+        int errorCount = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final StringBuilder buffer = new StringBuilder();
+            String line;
+            while ((line = readLine(reader, buffer)) != null) {
+                lineNumber++;
+                final String lineTrim = line.trim();
+                if (isCommand(lineTrim)) {
+                    try {
+                        final CommandStep step = CommandStep.compile(lineTrim, lineNumber);
+                        waitsForNetworkIdle |= NetworkIdle.isUsedBy(step);
+                        if (step.getCommand().isBlockMarker() || step.getCommand() == EToE.Command.LOAD_STATE
+                                || step.getCommand() == EToE.Command.SAVE_STATE) {
+                            crossSteps.add(step);
+                        }
+                    } catch (RuntimeException e) {
+                        if (++errorCount <= MAX_ERRORS) {
+                            errors.append("第").append(lineNumber).append("行 ").append(lineTrim)
+                                    .append(" : ").append(e.getMessage()).append('\n');
+                        }
+                    }
+                }
+            }
+        }
+        if (errorCount > MAX_ERRORS) {
+            errors.append("... 共 ").append(errorCount).append(" 個錯誤").append('\n');
+        }
+        ParallelBlocks.validate(crossSteps, errors);
+        SessionState.validate(crossSteps, errors);
+        if (errors.length() > 0) {
+            throw new RuntimeException(errors.toString().trim());
+        }
+        return waitsForNetworkIdle;
+    }
+
+    public static void run(WebDriver webDriver, File file, int fromLine, int progressLines) throws IOException {
+        final long start = System.currentTimeMillis();
+        int lineNumber = 0;
+        int executed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final StringBuilder buffer = new StringBuilder();
+            String line;
+            while ((line = readLine(reader, buffer)) != null) {
+                lineNumber++;
+                if (lineNumber < fromLine) {
+                    continue;
+                }
+                final String lineTrim = line.trim();
+                if (isCommand(lineTrim)) {
+                    EToE.executeStep(webDriver, CommandStep.compile(lineTrim, lineNumber));
+                    executed++;
+                }
+                if (progressLines > 0 && lineNumber % progressLines == 0) {
+                    LOGGER.info("[streaming] {} 已執行到第 {} 行, 共 {} 個步驟, 花費 {}ms", file.getName(), lineNumber,
+                            executed, System.currentTimeMillis() - start);
+                }
+            }
+        }
+        LOGGER.info("[streaming] {} 執行完畢, 共 {} 行 {} 個步驟, 花費 {}ms", file.getName(), lineNumber, executed,
+                System.currentTimeMillis() - start);
+    }
+
+    // 和 CommandPlan 的 split("\r?\n") 相同: 只有 \n 換行, 單獨的 \r 留在行內 (trim 會去掉行尾的),
+    // BufferedReader.readLine 會把單獨的 \r 也當成換行, 兩種模式的行號與 :行號 接續位置就會不同
+    static String readLine(Reader reader, StringBuilder buffer) throws IOException {
+        buffer.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                final int length = buffer.length();
+                if (length > 0 && buffer.charAt(length - 1) == '\r') {
+                    buffer.setLength(length - 1);
+                }
+                return buffer.toString();
+            }
+            buffer.append((char) c);
+        }
+        return buffer.length() == 0 ? null : buffer.toString();
+    }
+
+    private static boolean isCommand(String lineTrim) {
+        return !lineTrim.isEmpty() && !lineTrim.startsWith(CommandPlan.COMMENT_PREFIX);
+    }
+}
@@ -0,0 +1,83 @@
+package e2e;
+
+import java.util.Map;
+import java.util.Properties;
+
+// 等待的逾時與輪詢設定, 預設值來自 run.properties, 單一指令可用 -w (逾時毫秒) / -i (最長輪詢間隔毫秒) 覆寫
+public final class WaitOptions {
+    public static final String TIMEOUT_OPTION = "w";
+    public static final String POLL_OPTION = "i";
+
+    private static volatile WaitOptions defaults = new WaitOptions(30000, 10, 500, true);
+
+    private final long timeoutMillis;
+    private final long minPollMillis;
+    private final long maxPollMillis;
+    private final boolean eventDriven;
+
+    public WaitOptions(long timeoutMillis, long minPollMillis, long maxPollMillis, boolean eventDriven) {
+        this.timeoutMillis = timeoutMillis;
+        this.minPollMillis = Math.max(1, minPollMillis);
+        this.maxPollMillis = Math.max(this.minPollMillis, maxPollMillis);
+        this.eventDriven = eventDriven;
+    }
+
+    public static void configure(Properties properties) {
+        final WaitOptions current = defaults;
+        defaults = new WaitOptions(
+                EToE.getIntProperty(properties, "wait.timeout.millis", (int) current.timeoutMillis),
+                EToE.getIntProperty(properties, "wait.poll.min.millis", (int) current.minPollMillis),
+                EToE.getIntProperty(properties, "wait.poll.max.millis", (int) current.maxPollMillis),
+                EToE.getBooleanProperty(properties, "wait.event.enabled", current.eventDriven));
+    }
+
+    public static WaitOptions defaults() {
+        return defaults;
+    }
+
+    public static WaitOptions of(Map<String, String> cmdOptions) {
+        final WaitOptions base = defaults;
+        final String timeout = cmdOptions.get(TIMEOUT_OPTION);
+        final String poll = cmdOptions.get(POLL_OPTION);
+        if (isEmpty(timeout) && isEmpty(poll)) {
+            return base;
+        }
+        final long maxPollMillis = isEmpty(poll) ? base.maxPollMillis : Long.parseLong(poll);
+        return new WaitOptions(isEmpty(timeout) ? base.timeoutMillis : Long.parseLong(timeout),
+                Math.min(base.minPollMillis, maxPollMillis), maxPollMillis, base.eventDriven);
+    }
+
+    // 最長輪詢間隔不超過 maxPollMillis
+    public WaitOptions withMaxPollMillis(long maxPollMillis) {
+        if (maxPollMillis >= this.maxPollMillis) {
+            return this;
+        }
+        return new WaitOptions(timeoutMillis, Math.min(minPollMillis, maxPollMillis), maxPollMillis, eventDriven);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMinPollMillis() {
+        return minPollMillis;
+    }
+
+    public long getMaxPollMillis() {
+        return maxPollMillis;
+    }
+
+    public boolean isEventDriven() {
+        return eventDriven;
+    }
+
+    @Override
+    public String toString() {
+        return "timeout=" + timeoutMillis + "ms, poll=" + minPollMillis + "~" + maxPollMillis + "ms"
+                + (eventDriven ? ", event" : "");
+    }
+}
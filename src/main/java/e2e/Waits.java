@@ -0,0 +1,125 @@
+package e2e;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NotFoundException;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// 取代固定 500ms 輪詢的 WebDriverWait
+// 條件一成立就回傳, 沒成立時由頁面上的 MutationObserver/load/hashchange 事件喚醒, 沒事件就逐步拉長間隔
+public final class Waits {
+    private static final String WAKE_UP_SCRIPT = "var done=arguments[arguments.length-1],finished=false,timer;"
+            + "var events=['load','hashchange','popstate'];"
+            + "function finish(){if(finished){return;}finished=true;clearTimeout(timer);"
+            + "try{observer.disconnect();}catch(e){}"
+            + "events.forEach(function(n){window.removeEventListener(n,finish);});"
+            + "document.removeEventListener('readystatechange',finish);done(true);}"
+            + "var observer=new MutationObserver(finish);"
+            + "observer.observe(document,{childList:true,subtree:true,attributes:true,characterData:true});"
+            + "events.forEach(function(n){window.addEventListener(n,finish);});"
+            + "document.addEventListener('readystatechange',finish);"
+            + "timer=setTimeout(finish,arguments[0]);";
+
+    // 非同步執行時只檢查一次條件, 不成立就丟出 NOT_READY 讓呼叫端排程下一次檢查, 不佔用執行緒等待
+    private static final ThreadLocal<Boolean> PROBE = new ThreadLocal<>();
+    private static final NotReadyException NOT_READY = new NotReadyException();
+
+    private Waits() {
+    }
+
+    public static final class NotReadyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private NotReadyException() {
+            super("條件尚未成立", null, false, false);
+        }
+    }
+
+    // action 裡的等待都只檢查一次
+    public static void probe(Runnable action) {
+        PROBE.set(Boolean.TRUE);
+        try {
+            action.run();
+        } finally {
+            PROBE.remove();
+        }
+    }
+
+    public static <T> T until(WebDriver webDriver, Function<? super WebDriver, T> condition, WaitOptions waitOptions) {
+        return until(webDriver, String.valueOf(condition), condition, waitOptions);
+    }
+
+    public static <T> T until(WebDriver webDriver, String description, Function<? super WebDriver, T> condition,
+                              WaitOptions waitOptions) {
+        if (PROBE.get() != null) {
+            return probeOnce(webDriver, condition);
+        }
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitOptions.getTimeoutMillis());
+        long pollMillis = waitOptions.getMinPollMillis();
+        RuntimeException lastException = null;
+        int polls = 0;
+        try {
+            while (true) {
+                polls++;
+                try {
+                    final T value = condition.apply(webDriver);
+                    if (value != null && !Boolean.FALSE.equals(value)) {
+                        return value;
+                    }
+                } catch (NotFoundException | StaleElementReferenceException e) {
+                    lastException = e;
+                }
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new TimeoutException(String.format("等待逾時: %s (等了 %d ms, 檢查 %d 次)", description,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), polls), lastException);
+                }
+                pause(webDriver, Math.min(pollMillis, remainingMillis), waitOptions);
+                pollMillis = Math.min(waitOptions.getMaxPollMillis(), Math.max(pollMillis + 1, pollMillis * 3 / 2));
+            }
+        } finally {
+            StepTimer.recordWait(System.nanoTime() - start, polls);
+        }
+    }
+
+    private static <T> T probeOnce(WebDriver webDriver, Function<? super WebDriver, T> condition) {
+        try {
+            final T value = condition.apply(webDriver);
+            if (value != null && !Boolean.FALSE.equals(value)) {
+                return value;
+            }
+        } catch (NotFoundException | StaleElementReferenceException e) {
+            // 和一般等待一樣當成還沒成立
+        }
+        throw NOT_READY;
+    }
+
+    private static void pause(WebDriver webDriver, long millis, WaitOptions waitOptions) {
+        long sleepMillis = millis;
+        if (waitOptions.isEventDriven() && webDriver instanceof JavascriptExecutor) {
+            final long start = System.nanoTime();
+            try {
+                ((JavascriptExecutor) webDriver).executeAsyncScript(WAKE_UP_SCRIPT, millis);
+            } catch (WebDriverException e) {
+                // 換頁中腳本會被中斷, 這本身就是狀態改變, 只稍等一下就重新檢查
+            }
+            // 頁面一直在變動時至少間隔 minPoll, 避免連續打 chromedriver
+            sleepMillis = waitOptions.getMinPollMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (sleepMillis <= 0) {
+                return;
+            }
+        }
+        try {
+            Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("等待時被中斷", e);
+        }
+    }
+}
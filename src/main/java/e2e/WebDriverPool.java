@@ -0,0 +1,329 @@
+package e2e;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chromium.HasCdp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public class WebDriverPool implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebDriverPool.class);
+
+    public static final String BLANK_PAGE = "about:blank";
+
+    private final Supplier<WebDriver> webDriverFactory;
+    private final int minSize;
+    private final int maxSize;
+    // 閒置中的 session, 後進先出讓最近用過的 session 優先被借出
+    private final BlockingDeque<WebDriver> idleWebDrivers = new LinkedBlockingDeque<>();
+    private final Set<WebDriver> allWebDrivers = ConcurrentHashMap.newKeySet();
+    // 借出中的 session, 重複歸還時不會多還一個 permit
+    private final Set<WebDriver> borrowedWebDrivers = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private volatile boolean closed;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong createNanos = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+
+    public WebDriverPool(Supplier<WebDriver> webDriverFactory, int minSize, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("driver pool 最大數量必須大於 0");
+        }
+        this.webDriverFactory = webDriverFactory;
+        this.maxSize = maxSize;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // 預先平行建立 minSize 個 session
+    public void prestart() {
+        final int missing = minSize - allWebDrivers.size();
+        if (missing <= 0) {
+            return;
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(missing);
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < missing; i++) {
+                futures.add(CompletableFuture.runAsync(() -> idleWebDrivers.offerFirst(createWebDriver()), executorService));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executorService.shutdown();
+        }
+        LOGGER.debug("[prestart] 已預先建立 {} 個 session", missing);
+    }
+
+    public WebDriver borrow() {
+        if (closed) {
+            throw new IllegalStateException("driver pool 已關閉");
+        }
+        final long waitStart = System.nanoTime();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("等待 WebDriver 時被中斷", e);
+        }
+        final long waited = System.nanoTime() - waitStart;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return take();
+    }
+
+    // 不等待的版本, 沒有空位時回傳 null
+    public WebDriver tryBorrow() {
+        if (closed || !permits.tryAcquire()) {
+            return null;
+        }
+        return take();
+    }
+
+    // 只借已經開好的閒置 session, 沒有時不新開瀏覽器, 回傳 null
+    public WebDriver tryBorrowIdle() {
+        if (closed || !permits.tryAcquire()) {
+            return null;
+        }
+        try {
+            final WebDriver webDriver = pollIdle();
+            if (webDriver == null) {
+                permits.release();
+                return null;
+            }
+            borrowCount.incrementAndGet();
+            return webDriver;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private WebDriver take() {
+        borrowCount.incrementAndGet();
+        try {
+            WebDriver webDriver = pollIdle();
+            if (webDriver == null) {
+                webDriver = createWebDriver();
+                borrowedWebDrivers.add(webDriver);
+            }
+            return webDriver;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // 取出一個還能用的閒置 session, 壞掉的順便丟掉; 沒有時回傳 null
+    private WebDriver pollIdle() {
+        WebDriver webDriver;
+        while ((webDriver = idleWebDrivers.pollFirst()) != null) {
+            if (isHealthy(webDriver)) {
+                reuseCount.incrementAndGet();
+                borrowedWebDrivers.add(webDriver);
+                return webDriver;
+            }
+            discard(webDriver);
+        }
+        return null;
+    }
+
+    public void release(WebDriver webDriver) {
+        if (!checkIn(webDriver)) {
+            return;
+        }
+        try {
+            if (!closed && allWebDrivers.contains(webDriver) && reset(webDriver)) {
+                idleWebDrivers.offerFirst(webDriver);
+            } else {
+                discard(webDriver);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // 同時執行數調降後呼叫, 關掉多出來的閒置 session, 總數最多留 maxTotal 個 (不少於 minSize)
+    public void trimIdle(int maxTotal) {
+        WebDriver webDriver;
+        while (allWebDrivers.size() > Math.max(maxTotal, minSize) && (webDriver = idleWebDrivers.pollLast()) != null) {
+            discard(webDriver);
+        }
+    }
+
+    // session 已確定壞掉時使用, 直接關閉不放回
+    public void invalidate(WebDriver webDriver) {
+        if (!checkIn(webDriver)) {
+            return;
+        }
+        try {
+            discard(webDriver);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // 不是借出中的 session (已歸還過或不是這個 pool 借出的) 回傳 false, 呼叫端直接忽略
+    private boolean checkIn(WebDriver webDriver) {
+        if (webDriver == null) {
+            return false;
+        }
+        if (!borrowedWebDrivers.remove(webDriver)) {
+            LOGGER.warn("[release] session 不是借出中的狀態, 忽略重複歸還");
+            return false;
+        }
+        return true;
+    }
+
+    private WebDriver createWebDriver() {
+        final long start = System.nanoTime();
+        final WebDriver webDriver = webDriverFactory.get();
+        createNanos.addAndGet(System.nanoTime() - start);
+        createCount.incrementAndGet();
+        allWebDrivers.add(webDriver);
+        return webDriver;
+    }
+
+    // close() 時還借出中的 session 已經關掉, 之後才歸還時不再 quit 一次, 也不重複計數
+    private void discard(WebDriver webDriver) {
+        if (!allWebDrivers.remove(webDriver)) {
+            return;
+        }
+        LocatorCache.remove(webDriver);
+        SessionState.remove(webDriver);
+        discardCount.incrementAndGet();
+        try {
+            webDriver.quit();
+        } catch (RuntimeException e) {
+            LOGGER.debug("[discard] 關閉 session 發生錯誤", e);
+        }
+    }
+
+    private static boolean isHealthy(WebDriver webDriver) {
+        try {
+            webDriver.getWindowHandle();
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.debug("[isHealthy] session 已失效", e);
+            return false;
+        }
+    }
+
+    // 清掉 cookie / storage / 多開的分頁, 再回到空白頁
+    private static boolean reset(WebDriver webDriver) {
+        try {
+            final Set<String> windowHandles = webDriver.getWindowHandles();
+            if (windowHandles.size() > 1) {
+                final String keepHandle = windowHandles.iterator().next();
+                for (String windowHandle : windowHandles) {
+                    if (!keepHandle.equals(windowHandle)) {
+                        webDriver.switchTo().window(windowHandle).close();
+                    }
+                }
+                webDriver.switchTo().window(keepHandle);
+            }
+            ((JavascriptExecutor) webDriver).executeScript(
+                    "try{window.localStorage.clear();window.sessionStorage.clear();}catch(e){}");
+            if (webDriver instanceof HasCdp) {
+                ((HasCdp) webDriver).executeCdpCommand("Network.clearBrowserCookies", Collections.emptyMap());
+            } else {
+                webDriver.manage().deleteAllCookies();
+            }
+            webDriver.get(BLANK_PAGE);
+            LocatorCache.invalidate(webDriver);
+            SessionState.remove(webDriver);
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.debug("[reset] 重置 session 失敗", e);
+            return false;
+        }
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    public long getCreateNanos() {
+        return createNanos.get();
+    }
+
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    public void logMetrics() {
+        final long borrows = borrowCount.get();
+        final long creates = createCount.get();
+        LOGGER.info("[driver pool] 借出:{} 重用:{} 建立:{} 丟棄:{} 平均等待:{}ms 最長等待:{}ms 平均建立:{}ms",
+                borrows, reuseCount.get(), creates, discardCount.get(),
+                borrows == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / borrows),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()),
+                creates == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(createNanos.get() / creates));
+    }
+
+    public void reportMetrics(RunReport runReport) {
+        runReport.putMetric("driver_pool_borrow_total", borrowCount.get());
+        runReport.putMetric("driver_pool_reuse_total", reuseCount.get());
+        runReport.putMetric("driver_pool_create_total", createCount.get());
+        runReport.putMetric("driver_pool_discard_total", discardCount.get());
+        runReport.putMetric("driver_pool_wait_seconds_total", waitNanos.get() / 1_000_000_000d);
+        runReport.putMetric("driver_pool_wait_seconds_max", maxWaitNanos.get() / 1_000_000_000d);
+        runReport.putMetric("driver_pool_create_seconds_total", createNanos.get() / 1_000_000_000d);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        WebDriver webDriver;
+        while ((webDriver = idleWebDrivers.pollFirst()) != null) {
+            discard(webDriver);
+        }
+        for (WebDriver remaining : new ArrayList<>(allWebDrivers)) {
+            discard(remaining);
+        }
+        logMetrics();
+    }
+}
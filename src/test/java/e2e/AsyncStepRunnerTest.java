@@ -0,0 +1,105 @@
+package e2e;
+
+import junit.framework.TestCase;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncStepRunnerTest extends TestCase {
+
+    // 只有一個執行緒: option 要靠同一個執行緒上的另一個工作才會出現, set field 佔住執行緒等待就一定逾時
+    public void testSetFieldWaitsForSelectOptionWithoutBlockingCarrier() throws Exception {
+        final AtomicBoolean ready = new AtomicBoolean();
+        final AtomicInteger clicks = new AtomicInteger();
+        final WebDriver webDriver = fakeDriver(ready, clicks);
+        try (AsyncStepRunner runner = new AsyncStepRunner(Executors.newScheduledThreadPool(1))) {
+            final ScheduledExecutorService carriers = runner.getCarriers();
+            final CompletableFuture<Void> done = runner.run(webDriver,
+                    CommandPlan.compile("set field -b id -s city -v tpe -w 2000"), 0, null, new AtomicBoolean());
+            carriers.schedule(() -> ready.set(true), 100, TimeUnit.MILLISECONDS);
+            done.get(5, TimeUnit.SECONDS);
+            assertEquals("option 出現後只選一次", 1, clicks.get());
+        }
+    }
+
+    public void testSetFieldTimesOutWithoutTouchingTheSelect() throws Exception {
+        final AtomicInteger clicks = new AtomicInteger();
+        final WebDriver webDriver = fakeDriver(new AtomicBoolean(), clicks);
+        try (AsyncStepRunner runner = new AsyncStepRunner(Executors.newScheduledThreadPool(1))) {
+            final CompletableFuture<Void> done = runner.run(webDriver,
+                    CommandPlan.compile("set field -b id -s city -v tpe -w 100"), 0, null, new AtomicBoolean());
+            try {
+                done.get(5, TimeUnit.SECONDS);
+                fail("option 一直沒出現要逾時");
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(0, clicks.get());
+        }
+    }
+
+    // 頁面上只有一個 select, ready 之後才有 value 相符的 option
+    private static WebDriver fakeDriver(AtomicBoolean ready, AtomicInteger clicks) {
+        final WebElement option = (WebElement) Proxy.newProxyInstance(AsyncStepRunnerTest.class.getClassLoader(),
+                new Class<?>[]{WebElement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isEnabled":
+                            return true;
+                        case "isSelected":
+                            return false;
+                        case "click":
+                            clicks.incrementAndGet();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+        final WebElement select = (WebElement) Proxy.newProxyInstance(AsyncStepRunnerTest.class.getClassLoader(),
+                new Class<?>[]{WebElement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTagName":
+                            return "select";
+                        case "isEnabled":
+                            return true;
+                        case "findElements":
+                            return ready.get() ? Collections.singletonList(option) : Collections.emptyList();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+        return (WebDriver) Proxy.newProxyInstance(AsyncStepRunnerTest.class.getClassLoader(),
+                new Class<?>[]{WebDriver.class, JavascriptExecutor.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findElements":
+                            return Collections.singletonList(select);
+                        case "executeScript":
+                            return ready.get();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,179 @@
+package e2e;
+
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// 比較 default 與 trimmed 兩種瀏覽器設定: 同時開 N 個 session 各跑 M 次內建腳本, 印出啟動時間、每 GB 可開的 session 數與每秒步驟數
+// 用法: java e2e.BrowserBenchmark [session 數, 預設 4] [每個 session 執行次數, 預設 20]
+public final class BrowserBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrowserBenchmark.class);
+
+    private static final long ONE_GB = 1024L * 1024 * 1024;
+    // 不需要網路的內建頁面: 輸入框、按鈕與結果欄位
+    private static final String BENCHMARK_PAGE = "data:text/html,<input%20id=q><button%20id=b%20"
+            + "onclick=r.textContent=q.value>go</button><p%20id=r></p>";
+    private static final String BENCHMARK_SCRIPT = "goPage -p " + BENCHMARK_PAGE + "\n"
+            + "wait element -b id -s q -c visible\n"
+            + "set field -b id -s q -v benchmark\n"
+            + "click -b id -s b\n"
+            // <p id=r> 一開始就存在, 要等到結果文字出現才算點擊完成
+            + "wait element -b xpath -s //p[@id='r'][text()='benchmark'] -c exist\n";
+
+    private BrowserBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final List<Result> results = new ArrayList<>();
+        for (String mode : new String[]{ChromeSessionFactory.MODE_DEFAULT, ChromeSessionFactory.MODE_TRIMMED}) {
+            results.add(run(mode, sessions, iterations));
+        }
+        LOGGER.info("[benchmark] {} 個 session, 每個執行 {} 次", sessions, iterations);
+        for (Result result : results) {
+            LOGGER.info("[benchmark] {}", result);
+        }
+    }
+
+    private static Result run(String mode, int sessions, int iterations) {
+        final Properties properties = new Properties();
+        properties.setProperty("browser.mode", mode);
+        final CommandPlan commandPlan = CommandPlan.compile(BENCHMARK_SCRIPT);
+        final ExecutorService executorService = Executors.newFixedThreadPool(sessions);
+        final List<WebDriver> webDrivers = new ArrayList<>();
+        try (ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(properties)) {
+            final long startupStart = System.nanoTime();
+            final List<CompletableFuture<WebDriver>> startups = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                startups.add(CompletableFuture.supplyAsync(chromeSessionFactory, executorService));
+            }
+            for (CompletableFuture<WebDriver> startup : startups) {
+                webDrivers.add(startup.join());
+            }
+            final long startupMillis = (System.nanoTime() - startupStart) / 1_000_000;
+
+            final long runStart = System.nanoTime();
+            final List<CompletableFuture<Void>> runs = new ArrayList<>();
+            for (WebDriver webDriver : webDrivers) {
+                runs.add(CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        EToE.runPlan(webDriver, commandPlan);
+                    }
+                }, executorService));
+            }
+            CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).join();
+            final long runNanos = System.nanoTime() - runStart;
+            // 腳本跑完、session 都還開著時量記憶體
+            final long memoryBytes = childProcessMemoryBytes();
+            final long steps = (long) sessions * iterations * commandPlan.size();
+            return new Result(mode, startupMillis, memoryBytes, sessions, steps * 1_000_000_000d / runNanos);
+        } finally {
+            for (WebDriver webDriver : webDrivers) {
+                try {
+                    webDriver.quit();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("[benchmark] 關閉 session 發生錯誤", e);
+                }
+            }
+            executorService.shutdown();
+        }
+    }
+
+    // 這個 JVM 底下所有子孫行程 (chromedriver 與 Chrome 各行程) 的記憶體, 有 Pss 時用 Pss 避免共用記憶體重複計算
+    // 只支援 Linux, 讀不到時回傳 -1
+    static long childProcessMemoryBytes() {
+        final File proc = new File("/proc");
+        final String[] pids = proc.list((dir, name) -> name.chars().allMatch(Character::isDigit));
+        if (pids == null) {
+            return -1;
+        }
+        final Map<String, List<String>> children = new HashMap<>();
+        for (String pid : pids) {
+            final String parent = readParentPid(new File(proc, pid + "/stat"));
+            if (parent != null) {
+                children.computeIfAbsent(parent, key -> new ArrayList<>()).add(pid);
+            }
+        }
+        final String self = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        long totalKb = 0;
+        final Deque<String> pending = new ArrayDeque<>(children.getOrDefault(self, new ArrayList<>()));
+        while (!pending.isEmpty()) {
+            final String pid = pending.poll();
+            totalKb += Math.max(0, readMemoryKb(new File(proc, pid)));
+            pending.addAll(children.getOrDefault(pid, new ArrayList<>()));
+        }
+        return totalKb * 1024;
+    }
+
+    private static String readParentPid(File statFile) {
+        try {
+            final String stat = new String(Files.readAllBytes(statFile.toPath()), StandardCharsets.UTF_8);
+            // 行程名稱可能有空白, 從最後一個 ')' 之後開始算: state ppid ...
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return fields.length > 1 ? fields[1] : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long readMemoryKb(File processDir) {
+        final long pss = readKb(new File(processDir, "smaps_rollup"), "Pss:");
+        return pss >= 0 ? pss : readKb(new File(processDir, "status"), "VmRSS:");
+    }
+
+    private static long readKb(File file, String prefix) {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return Long.parseLong(line.substring(prefix.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    private static final class Result {
+        final String mode;
+        final long startupMillis;
+        final long memoryBytes;
+        final int sessions;
+        final double stepsPerSecond;
+
+        Result(String mode, long startupMillis, long memoryBytes, int sessions, double stepsPerSecond) {
+            this.mode = mode;
+            this.startupMillis = startupMillis;
+            this.memoryBytes = memoryBytes;
+            this.sessions = sessions;
+            this.stepsPerSecond = stepsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            final String memory = memoryBytes <= 0 ? "記憶體: 無法取得"
+                    : String.format("記憶體: %.1fMB, 每 GB 可開 %.1f 個 session",
+                    memoryBytes / 1024d / 1024d, sessions * (double) ONE_GB / memoryBytes);
+            return String.format("%-8s 啟動: %dms, %s, 每秒 %.1f 個步驟", mode, startupMillis, memory, stepsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package e2e;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingProxyTest extends TestCase {
+    private static final int LARGE_BODY = 400 * 1024;
+
+    private final Map<String, AtomicInteger> upstreamHits = new ConcurrentHashMap<>();
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private CachingProxy cachingProxy;
+    private Proxy proxy;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/", this::serve);
+        server.start();
+        final Properties properties = new Properties();
+        // 記憶體上限 1MB: 兩個 400KB 的回應放得下, 第三個進來就要依 LRU 丟掉一個
+        properties.setProperty("proxy.cache.memory.mb", "1");
+        properties.setProperty("proxy.cache.disk.mb", "0");
+        cachingProxy = new CachingProxy(properties);
+        final String[] address = cachingProxy.getAddress().split(":");
+        proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+    }
+
+    @Override
+    protected void tearDown() {
+        cachingProxy.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    // 路徑決定回應的標頭, body 帶上第幾次向受測系統要, 命中快取時 body 不會變
+    private void serve(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final int count = upstreamHits.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+        if (path.startsWith("/slow")) {
+            try {
+                releaseSlow.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (path.startsWith("/no-store")) {
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+        } else if (path.startsWith("/private")) {
+            exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60");
+        } else if (path.startsWith("/cookie")) {
+            exchange.getResponseHeaders().add("Set-Cookie", "sid=" + count);
+        } else {
+            exchange.getResponseHeaders().add("Cache-Control", "public, max-age=60");
+        }
+        byte[] body = (path + "#" + count).getBytes(StandardCharsets.UTF_8);
+        if (path.startsWith("/large")) {
+            final byte[] large = Arrays.copyOf(body, LARGE_BODY);
+            Arrays.fill(large, body.length, large.length, (byte) 'x');
+            body = large;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public void testSecondRequestIsServedFromCache() throws IOException {
+        final String[] first = get("/app.js");
+        final String[] second = get("/app.js");
+        assertEquals("MISS", first[0]);
+        assertEquals("HIT", second[0]);
+        assertEquals("/app.js#1", second[1]);
+        assertEquals(1, upstreamHits.get("/app.js").get());
+    }
+
+    public void testPathsOutsidePatternsAreNotCached() throws IOException {
+        assertEquals("BYPASS", get("/page.html")[0]);
+        assertEquals("BYPASS", get("/page.html")[0]);
+        assertEquals(2, upstreamHits.get("/page.html").get());
+    }
+
+    public void testNoStorePrivateAndSetCookieAreNotCached() throws IOException {
+        for (String path : new String[]{"/no-store.js", "/private.js", "/cookie.js"}) {
+            assertEquals(path, "MISS", get(path)[0]);
+            final String[] again = get(path);
+            assertEquals(path, "MISS", again[0]);
+            assertEquals(path + "#2", again[1]);
+            assertEquals(path, 2, upstreamHits.get(path).get());
+        }
+    }
+
+    public void testLeastRecentlyUsedEntryIsEvicted() throws IOException {
+        get("/large-a.js");
+        get("/large-b.js");
+        // a 剛用過, 放進 c 時丟掉的是 b
+        assertEquals("HIT", get("/large-a.js")[0]);
+        get("/large-c.js");
+        assertEquals("HIT", get("/large-a.js")[0]);
+        assertEquals("HIT", get("/large-c.js")[0]);
+        assertEquals("MISS", get("/large-b.js")[0]);
+        assertEquals(1, upstreamHits.get("/large-a.js").get());
+        assertEquals(2, upstreamHits.get("/large-b.js").get());
+        assertEquals(1, upstreamHits.get("/large-c.js").get());
+    }
+
+    // 受測系統還沒回應時同時來的請求都等同一次下載
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        final int clients = 8;
+        final ExecutorService executorService = Executors.newFixedThreadPool(clients);
+        try {
+            final List<Future<String[]>> responses = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                responses.add(executorService.submit(() -> get("/slow.js")));
+            }
+            // 第一個請求到了受測系統之後再多等一下, 讓其他請求都排在同一次下載後面
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!upstreamHits.containsKey("/slow.js") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(300);
+            releaseSlow.countDown();
+            int misses = 0;
+            for (Future<String[]> response : responses) {
+                final String[] result = response.get(10, TimeUnit.SECONDS);
+                assertEquals("/slow.js#1", result[1]);
+                if ("MISS".equals(result[0])) {
+                    misses++;
+                }
+            }
+            assertEquals(1, misses);
+            assertEquals(1, upstreamHits.get("/slow.js").get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // 回傳 {X-E2E-Cache, body}, 大回應只取補上 x 之前的 路徑#次數
+    private String[] get(String path) throws IOException {
+        final URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+        connection.setUseCaches(false);
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(200, connection.getResponseCode());
+            final String body = IOUtils.toString(in, StandardCharsets.UTF_8);
+            final int end = body.indexOf('x');
+            return new String[]{connection.getHeaderField("X-E2E-Cache"), end < 0 ? body : body.substring(0, end)};
+        }
+    }
+}
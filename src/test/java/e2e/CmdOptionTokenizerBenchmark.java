@@ -0,0 +1,62 @@
+package e2e;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.function.Function;
+
+// 比較舊版 Stack/Deque 解析器與 CmdOptionTokenizer 的每行耗時
+// mvn test-compile 後執行: java -cp target/test-classes:target/classes:<依賴> e2e.CmdOptionTokenizerBenchmark [秒數]
+public final class CmdOptionTokenizerBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmdOptionTokenizerBenchmark.class);
+
+    private static final String TYPICAL = " -b cssSelector -s \"#login form input[name='user']\" -v 'some \\'quoted\\' value' -w 5000";
+
+    private CmdOptionTokenizerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+        final StringBuilder longValue = new StringBuilder(" -v \"");
+        for (int i = 0; i < 50_000; i++) {
+            longValue.append(i % 64 == 0 ? "\\\"" : "x");
+        }
+        final String longQuoted = longValue.append("\" -b id -s a").toString();
+        measure("typical", TYPICAL, seconds);
+        measure("50k quoted", longQuoted, seconds);
+    }
+
+    private static void measure(String name, String line, long seconds) {
+        if (!LegacyCmdOptionParser.processCmdDetail(line).equals(CmdOptionTokenizer.tokenize(line))) {
+            throw new IllegalStateException(name + " 兩個解析器結果不同");
+        }
+        final double legacy = nanosPerOp(LegacyCmdOptionParser::processCmdDetail, line, seconds);
+        final double tokenizer = nanosPerOp(CmdOptionTokenizer::tokenize, line, seconds);
+        LOGGER.info("[benchmark] {} legacy {} ns/op, tokenizer {} ns/op, {}x", name, String.format("%,.0f", legacy),
+                String.format("%,.0f", tokenizer), String.format("%.2f", legacy / tokenizer));
+    }
+
+    private static double nanosPerOp(Function<String, Map<String, String>> parser, String line, long seconds) {
+        // 前一半時間暖機
+        run(parser, line, seconds * 500_000_000L);
+        final long[] result = run(parser, line, seconds * 1_000_000_000L);
+        return (double) result[0] / result[1];
+    }
+
+    // 回傳 {耗時 ns, 次數, 結果大小合計 (避免被最佳化掉)}
+    private static long[] run(Function<String, Map<String, String>> parser, String line, long budgetNanos) {
+        long operations = 0;
+        long sink = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 100; i++) {
+                sink += parser.apply(line).size();
+            }
+            operations += 100;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budgetNanos);
+        return new long[]{elapsed, operations, sink};
+    }
+}
@@ -0,0 +1,102 @@
+package e2e;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+// CmdOptionTokenizer 必須和舊版 Stack/Deque 解析器 (LegacyCmdOptionParser) 的結果與錯誤訊息完全相同
+public class CmdOptionTokenizerTest extends TestCase {
+    private static final String[] FRAGMENTS = {" ", " ", "-", "-b", "-v", "-bs", "\"", "'", "\\", "\\\"", "\\'",
+            "\\\\", "\\n", "\\t", "\\x", "a", "id", "x y", "中文", "\t", "--"};
+
+    public void testGoldenCorpus() {
+        assertOptions(" -b id -s submit", "b", "id", "s", "submit");
+        assertOptions(" -v \"a -b c\" -s x", "v", "a -b c", "s", "x");
+        assertOptions(" -v 'it\\'s'", "v", "it's");
+        assertOptions(" -v \"  padded  \"", "v", "  padded  ");
+        assertOptions(" -v   trimmed   ", "v", "trimmed");
+        assertOptions(" -v a\\tb\\n\\\\\\q", "v", "a\tb\n\\\\q");
+        assertOptions(" -bs x", "b", "", "s", "x");
+        assertOptions(" -n -p *", "n", "", "p", "*");
+        assertOptions(" -v \"", "v", "\"");
+        assertOptions(" -v \"unterminated -s x", "v", "\"unterminated", "s", "x");
+        assertOptions("");
+        assertError(" -- x", "不支援--,-X-");
+        assertError(" - x", "不支援- ");
+        assertError(" -v a-b", "不支援-X YYY-");
+        assertError(" -\"v", "不支援-',-\",-X',-X\"");
+        assertError(" -v\\", "沒有支援-safsa\\");
+        assertError("x -v a", "指令有問題");
+        assertError(" \"x\"", "不支援 指令和-中間有'or\"");
+        assertError(" -v \"a-b -s x", "指令錯誤");
+    }
+
+    public void testMatchesLegacyParserOnGeneratedLines() {
+        final Random random = new Random(20241018L);
+        final StringBuilder line = new StringBuilder();
+        int valid = 0;
+        for (int n = 0; n < 200_000; n++) {
+            line.setLength(0);
+            final int fragments = random.nextInt(12);
+            for (int i = 0; i < fragments; i++) {
+                line.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            if (compare(line.toString())) {
+                valid++;
+            }
+        }
+        // 產生的字串要有一定比例是合法的, 否則只比對到錯誤訊息
+        assertTrue("合法的只有 " + valid + " 筆", valid > 20_000);
+    }
+
+    public void testOffsetMatchesSubstring() {
+        final String line = "set field -b id -s \"user name\" -v 'a \\' b'";
+        final int offset = "set field".length();
+        assertEquals(CmdOptionTokenizer.tokenize(line.substring(offset)),
+                CmdOptionTokenizer.tokenize(line, offset, line.length()));
+        assertEquals(LegacyCmdOptionParser.processCmdDetail(line.substring(offset)),
+                CmdOptionTokenizer.tokenize(line, offset, line.length()));
+    }
+
+    // 回傳 true 代表解析成功
+    private static boolean compare(String line) {
+        Map<String, String> expected = null;
+        String expectedError = null;
+        try {
+            expected = LegacyCmdOptionParser.processCmdDetail(line);
+        } catch (RuntimeException e) {
+            expectedError = e.getClass().getName() + ": " + e.getMessage();
+        }
+        Map<String, String> actual = null;
+        String actualError = null;
+        try {
+            actual = CmdOptionTokenizer.tokenize(line);
+        } catch (RuntimeException e) {
+            actualError = e.getClass().getName() + ": " + e.getMessage();
+        }
+        assertEquals("錯誤訊息不同 [" + line + "]", expectedError, actualError);
+        assertEquals("解析結果不同 [" + line + "]", expected, actual);
+        return expected != null;
+    }
+
+    private static void assertOptions(String line, String... keyValues) {
+        final Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            expected.put(keyValues[i], keyValues[i + 1]);
+        }
+        assertEquals("[" + line + "]", expected, CmdOptionTokenizer.tokenize(line));
+        compare(line);
+    }
+
+    private static void assertError(String line, String message) {
+        try {
+            CmdOptionTokenizer.tokenize(line);
+            fail("[" + line + "] 應該解析失敗");
+        } catch (RuntimeException e) {
+            assertEquals("[" + line + "]", message, e.getMessage());
+        }
+        compare(line);
+    }
+}
@@ -0,0 +1,356 @@
+package e2e;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.HasCapabilities;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// 量測每種指令的實際耗時: 內建 HTTP server 提供固定的測試頁面 (大表單、1000 列 checkbox 表格、延遲插入的元素、慢速換頁),
+// 用無頭 Chrome 重複執行標準腳本, 各指令的 p50/p90/p99 與整體吞吐量輸出到 report.dir/benchmark.json 當作基準
+// 帶入上一次的 benchmark.json 時逐項比較, 任一指令的 p50 變慢超過 benchmark.regression.percent 時結束碼為 1
+// 用法: java e2e.CommandBenchmark [每個腳本執行次數, 預設 20] [比較用的 benchmark.json]
+public final class CommandBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandBenchmark.class);
+
+    private static final int FORM_INPUTS = 200;
+    private static final int FORM_TEXTAREAS = 50;
+    private static final int TABLE_ROWS = 1000;
+    private static final int DELAY_MILLIS = 300;
+    // p50 在這個毫秒數以內的差異視為誤差, 不算變慢
+    private static final double REGRESSION_MIN_MILLIS = 5;
+    // 標準腳本, ${base} 代入測試頁面的網址
+    private static final Map<String, String> SCRIPTS = new LinkedHashMap<>();
+
+    static {
+        SCRIPTS.put("large-form", "goPage -p ${base}/form\n"
+                + "wait element -b id -s submit -c clickable\n"
+                + "set field -b cssSelector -s input.text -v benchmark\n"
+                + "set field -b cssSelector -s textarea.area -v benchmark\n"
+                + "click -b id -s submit\n"
+                + "wait page -p ${base}/done -r\n");
+        SCRIPTS.put("checkbox-table", "goPage -p ${base}/table\n"
+                + "wait element -b cssSelector -s input.row -c exist\n"
+                + "click -b cssSelector -s input.row\n"
+                + "wait element -b id -s allChecked -c exist\n");
+        SCRIPTS.put("delayed-element", "goPage -p ${base}/delayed?ms=" + DELAY_MILLIS + "\n"
+                + "wait element -b id -s late -c clickable\n"
+                + "click -b id -s late\n"
+                + "wait element -b id -s clicked -c visible\n");
+        SCRIPTS.put("slow-navigation", "goPage -p ${base}/slow?ms=" + DELAY_MILLIS + "\n"
+                + "wait element -b id -s next -c clickable\n"
+                + "click -b id -s next\n"
+                + "wait page -p ${base}/slow/next?ms=" + DELAY_MILLIS + " -r\n"
+                + "wait element -b id -s done -c exist\n");
+    }
+
+    private CommandBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final File baselineFile = args.length > 1 ? new File(args[1]) : null;
+        final Properties properties = loadProperties();
+        // 沒有特別設定時用無頭瀏覽器, 其餘設定 (batch.enabled 等) 照 run.properties, 方便比較不同策略
+        if (!properties.containsKey("browser.headless")) {
+            properties.setProperty("browser.headless", "true");
+        }
+        final Map<String, Object> result;
+        final HttpServer fixtures = startFixtures();
+        try (ChromeSessionFactory chromeSessionFactory = new ChromeSessionFactory(properties)) {
+            final String base = "http://127.0.0.1:" + fixtures.getAddress().getPort();
+            result = run(chromeSessionFactory, base, iterations);
+        } finally {
+            fixtures.stop(0);
+            FailureArtifacts.flush(EToE.getIntProperty(properties, "artifacts.flush.timeout.seconds", 30) * 1000L);
+        }
+        final Map<String, Object> settings = new LinkedHashMap<>();
+        for (String key : new String[]{"browser.mode", "browser.headless", "batch.enabled", "locator.cache.enabled",
+                "wait.event.enabled", "wait.poll.min.millis", "wait.poll.max.millis"}) {
+            if (properties.getProperty(key) != null) {
+                settings.put(key, properties.getProperty(key).trim());
+            }
+        }
+        result.put("settings", settings);
+        final File reportDir = new File(properties.getProperty("report.dir", "e2e-report").trim());
+        final File benchmarkFile = new File(reportDir, "benchmark.json");
+        FileUtils.forceMkdir(reportDir);
+        FileUtils.writeStringToFile(benchmarkFile, new Json().toJson(result), StandardCharsets.UTF_8);
+        LOGGER.info("[benchmark] 已輸出到 {}", benchmarkFile.getAbsolutePath());
+        if (baselineFile != null) {
+            final double tolerancePercent = EToE.getIntProperty(properties, "benchmark.regression.percent", 20);
+            System.exit(compare(readJson(baselineFile), result, tolerancePercent) ? 0 : 1);
+        }
+    }
+
+    // 在 test classpath 執行, /e2e 可能先找到 test-classes, 直接找 run.properties 這個資源
+    private static Properties loadProperties() throws IOException {
+        final Properties properties = new Properties();
+        final URL runProperties = CommandBenchmark.class.getResource("/e2e/conf/run.properties");
+        if (runProperties != null) {
+            try (InputStream in = runProperties.openStream()) {
+                properties.load(in);
+            }
+            WaitOptions.configure(properties);
+            BatchActions.configure(properties);
+            LocatorCache.configure(properties);
+            NetworkIdle.configure(properties);
+            FailureArtifacts.configure(properties);
+        }
+        return properties;
+    }
+
+    // 同一個 session 依序執行每個腳本 iterations 次; 每個腳本先跑一次暖身, 不列入統計
+    static Map<String, Object> run(Supplier<WebDriver> webDriverFactory, String base, int iterations) {
+        final Map<String, CommandPlan> plans = plans(base);
+        final RunReport runReport = new RunReport(0);
+        final Map<String, Object> scripts = new LinkedHashMap<>();
+        long steps = 0;
+        long scriptRuns = 0;
+        long failures = 0;
+        long runNanos = 0;
+        final WebDriver webDriver = webDriverFactory.get();
+        try {
+            for (Map.Entry<String, CommandPlan> entry : plans.entrySet()) {
+                final String name = entry.getKey();
+                final CommandPlan commandPlan = entry.getValue();
+                runOnce(webDriver, commandPlan, name);
+                final Histogram elapsed = new Histogram(3);
+                int scriptFailures = 0;
+                StepTimer.bind(runReport, name);
+                try {
+                    for (int i = 0; i < iterations; i++) {
+                        final long start = System.nanoTime();
+                        final boolean success = runOnce(webDriver, commandPlan, name);
+                        final long nanos = System.nanoTime() - start;
+                        runNanos += nanos;
+                        elapsed.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+                        if (!success) {
+                            scriptFailures++;
+                        }
+                    }
+                } finally {
+                    StepTimer.unbind();
+                }
+                steps += (long) iterations * commandPlan.size();
+                scriptRuns += iterations;
+                failures += scriptFailures;
+                final Map<String, Object> script = new LinkedHashMap<>();
+                script.put("steps", commandPlan.size());
+                script.put("iterations", iterations);
+                script.put("failures", scriptFailures);
+                script.put("elapsedMs", RunReport.percentiles(elapsed));
+                scripts.put(name, script);
+                LOGGER.info("[benchmark] {} 執行 {} 次, 失敗 {} 次, 每次 p50 {}ms", name, iterations, scriptFailures,
+                        elapsed.getValueAtPercentile(50) / 1000d);
+            }
+        } finally {
+            try {
+                webDriver.quit();
+            } catch (RuntimeException e) {
+                LOGGER.debug("[benchmark] 關閉 session 發生錯誤", e);
+            }
+        }
+        final Map<String, Object> result = runReport.toMap();
+        // 每個腳本的步驟統計已在 scripts 與 commands 裡, 不需要 run file 的明細
+        result.remove("files");
+        result.remove("metrics");
+        final Map<String, Object> suite = new LinkedHashMap<>();
+        suite.put("iterations", iterations);
+        suite.put("scriptRuns", scriptRuns);
+        suite.put("steps", steps);
+        suite.put("failures", failures);
+        suite.put("elapsedSeconds", runNanos / 1_000_000_000d);
+        suite.put("stepsPerSecond", runNanos == 0 ? 0 : steps * 1_000_000_000d / runNanos);
+        suite.put("scriptsPerSecond", runNanos == 0 ? 0 : scriptRuns * 1_000_000_000d / runNanos);
+        result.put("suite", suite);
+        result.put("scripts", scripts);
+        final Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("java", System.getProperty("java.version"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        if (webDriver instanceof HasCapabilities) {
+            environment.put("browser", ((HasCapabilities) webDriver).getCapabilities().getBrowserName() + " "
+                    + ((HasCapabilities) webDriver).getCapabilities().getBrowserVersion());
+        }
+        result.put("environment", environment);
+        LOGGER.info("[benchmark] 共 {} 個步驟, 失敗 {} 次, 每秒 {} 個步驟, 每秒 {} 個腳本", steps, failures,
+                String.format("%.1f", (double) suite.get("stepsPerSecond")),
+                String.format("%.2f", (double) suite.get("scriptsPerSecond")));
+        return result;
+    }
+
+    private static boolean runOnce(WebDriver webDriver, CommandPlan commandPlan, String name) {
+        try {
+            EToE.runPlan(webDriver, commandPlan);
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.warn("[benchmark] {} 執行失敗: {}", name, e.getMessage());
+            return false;
+        }
+    }
+
+    static Map<String, CommandPlan> plans(String base) {
+        final Map<String, CommandPlan> plans = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : SCRIPTS.entrySet()) {
+            plans.put(entry.getKey(), CommandPlan.compileTemplate(entry.getValue())
+                    .bind(Collections.singletonMap("base", base)));
+        }
+        return plans;
+    }
+
+    // 逐項比較各指令的 p50, 沒有變慢時回傳 true
+    @SuppressWarnings("unchecked")
+    static boolean compare(Map<String, Object> baseline, Map<String, Object> current, double tolerancePercent) {
+        final Map<String, Object> baselineCommands = (Map<String, Object>) baseline.get("commands");
+        final Map<String, Object> currentCommands = (Map<String, Object>) current.get("commands");
+        if (baselineCommands == null || currentCommands == null) {
+            throw new IllegalArgumentException("benchmark.json 缺少 commands");
+        }
+        boolean passed = true;
+        for (Map.Entry<String, Object> entry : currentCommands.entrySet()) {
+            final Object baselineCommand = baselineCommands.get(entry.getKey());
+            if (baselineCommand == null) {
+                LOGGER.info("[benchmark] {} 基準裡沒有資料, 略過", entry.getKey());
+                continue;
+            }
+            final double before = p50((Map<String, Object>) baselineCommand);
+            final double after = p50((Map<String, Object>) entry.getValue());
+            final double changePercent = before == 0 ? 0 : (after - before) * 100 / before;
+            final boolean regressed = after - before > REGRESSION_MIN_MILLIS && changePercent > tolerancePercent;
+            LOGGER.info("[benchmark] {} p50 {}ms -> {}ms ({}%){}", entry.getKey(), before, after,
+                    String.format("%+.1f", changePercent), regressed ? " 變慢" : "");
+            passed &= !regressed;
+        }
+        final Object baselineSuite = baseline.get("suite");
+        if (baselineSuite instanceof Map) {
+            LOGGER.info("[benchmark] 每秒步驟數 {} -> {}", ((Map<String, Object>) baselineSuite).get("stepsPerSecond"),
+                    ((Map<String, Object>) current.get("suite")).get("stepsPerSecond"));
+        }
+        return passed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static double p50(Map<String, Object> command) {
+        final Object duration = command.get("durationMs");
+        final Object p50 = duration instanceof Map ? ((Map<String, Object>) duration).get("p50") : null;
+        return p50 instanceof Number ? ((Number) p50).doubleValue() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readJson(File file) throws IOException {
+        return new Json().toType(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Map.class);
+    }
+
+    // 只監聽本機的測試頁面, 執行緒設成 daemon 不影響 JVM 結束
+    static HttpServer startFixtures() throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/form", exchange -> respond(exchange, formPage()));
+        server.createContext("/done", exchange -> respond(exchange, page("done", "<p id=done>done</p>")));
+        server.createContext("/table", exchange -> respond(exchange, tablePage()));
+        server.createContext("/delayed", exchange -> respond(exchange, delayedPage(queryMillis(exchange))));
+        server.createContext("/slow", exchange -> {
+            final int millis = queryMillis(exchange);
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, exchange.getRequestURI().getPath().equals("/slow/next")
+                    ? page("slow next", "<p id=done>done</p>")
+                    : page("slow", "<a id=next href=\"/slow/next?ms=" + millis + "\">next</a>"));
+        });
+        final ExecutorService executorService = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "benchmark-fixtures");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executorService);
+        server.start();
+        return server;
+    }
+
+    private static int queryMillis(HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("ms=")) {
+                    return Integer.parseInt(pair.substring(3));
+                }
+            }
+        }
+        return DELAY_MILLIS;
+    }
+
+    private static void respond(HttpExchange exchange, String html) throws IOException {
+        // 表單送出是 POST, 讀完 body 再回應
+        IOUtils.consume(exchange.getRequestBody());
+        final byte[] body = html.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String page(String title, String body) {
+        return "<!DOCTYPE html><html><head><meta charset=utf-8><title>" + title + "</title></head><body>" + body
+                + "</body></html>";
+    }
+
+    private static String formPage() {
+        final StringBuilder body = new StringBuilder("<form method=post action=\"/done\">");
+        for (int i = 0; i < FORM_INPUTS; i++) {
+            body.append("<label>f").append(i).append(" <input class=text name=f").append(i).append("></label>");
+        }
+        for (int i = 0; i < FORM_TEXTAREAS; i++) {
+            body.append("<textarea class=area name=t").append(i).append("></textarea>");
+        }
+        return page("form", body.append("<button id=submit type=submit>submit</button></form>").toString());
+    }
+
+    // 全部勾選後才出現 #allChecked
+    private static String tablePage() {
+        final StringBuilder body = new StringBuilder("<table>");
+        for (int i = 0; i < TABLE_ROWS; i++) {
+            body.append("<tr><td><input type=checkbox class=row name=r").append(i).append("></td><td>row ")
+                    .append(i).append("</td></tr>");
+        }
+        body.append("</table><script>document.addEventListener('change',function(){")
+                .append("if(document.querySelectorAll('input.row:checked').length===").append(TABLE_ROWS)
+                .append("&&!document.getElementById('allChecked')){var p=document.createElement('p');")
+                .append("p.id='allChecked';p.textContent='all checked';document.body.appendChild(p);}});</script>");
+        return page("table", body.toString());
+    }
+
+    // 載入 millis 毫秒後才插入 #late, 點擊後出現 #clicked
+    private static String delayedPage(int millis) {
+        return page("delayed", "<script>setTimeout(function(){var b=document.createElement('button');b.id='late';"
+                + "b.textContent='late';b.onclick=function(){var p=document.createElement('p');p.id='clicked';"
+                + "p.textContent='clicked';document.body.appendChild(p);};document.body.appendChild(b);},"
+                + millis + ");</script>");
+    }
+}
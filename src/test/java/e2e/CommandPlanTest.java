@@ -0,0 +1,78 @@
+package e2e;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CommandPlanTest extends TestCase {
+
+    public void testLiteralPlanValidatesPlaceholderValues() {
+        try {
+            CommandPlan.compile("goPage -p http://localhost/\nclick -b ${type} -s submit");
+            fail("沒有資料檔時 ${變數} 照原字檢查, 不支援的搜尋根據要在編譯時發現");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("第2行"));
+            assertTrue(e.getMessage(), e.getMessage().contains("不支援的欄位搜尋根據:${type}"));
+        }
+    }
+
+    public void testLiteralPlanAcceptsPlaceholderText() {
+        final CommandPlan commandPlan = CommandPlan.compile("set field -b id -s name -v ${not a variable}");
+        assertEquals(Collections.singleton("not a variable"), commandPlan.getVariables());
+        assertEquals("${not a variable}", commandPlan.getSteps().get(0).getOption("v"));
+    }
+
+    public void testTemplatePlanStillChecksRequiredOptions() {
+        try {
+            CommandPlan.compileTemplate("wait element -b ${type} -c exist");
+            fail("缺少 -s 不用等代入資料就能發現");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("沒有提供欄位搜尋名稱"));
+        }
+        try {
+            CommandPlan.compileTemplate("wait element -b ${type} -s ${name} -c soon");
+            fail("沒有變數的值照常檢查");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("不支援的等待條件:soon"));
+        }
+    }
+
+    public void testTemplatePlanValidatesEachRow() {
+        final CommandPlan commandPlan = CommandPlan.compileTemplate(
+                "wait element -b ${type} -s ${name} -c exist -w ${timeout}");
+        final Map<String, String> row = new HashMap<>();
+        row.put("type", "id");
+        row.put("name", "submit");
+        row.put("timeout", "500");
+        final CommandStep bound = commandPlan.bind(row).getSteps().get(0);
+        assertNotNull(bound.getBy());
+        assertEquals("500", bound.getOption("w"));
+
+        row.put("type", "xpathish");
+        try {
+            commandPlan.bind(row);
+            fail("代入後的值不合法");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("不支援的欄位搜尋根據:xpathish"));
+        }
+    }
+
+    public void testLoadStateNeedsLaterSaveWithSameKey() {
+        CommandPlan.compile("load state -k login\ngoPage -p http://localhost/login\nsave state -k login\nclick -b id -s next");
+        try {
+            CommandPlan.compile("save state -k login\nload state -k login\nload state -k admin\nclick -b id -s next"
+                    + "\nsave state -k admin");
+            fail("load state 之後沒有同 key 的 save state 要在編譯時發現");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("load state -k login : 之後沒有 save state -k login"));
+            assertFalse(e.getMessage(), e.getMessage().contains("admin"));
+        }
+    }
+
+    public void testWaitsForNetworkIdleOnlyWithIdleOption() {
+        assertFalse(CommandPlan.compile("wait page -p http://localhost/\nclick -b id -s next").waitsForNetworkIdle());
+        assertTrue(CommandPlan.compile("click -b id -s next\nwait page -n -q 200").waitsForNetworkIdle());
+    }
+}
@@ -0,0 +1,43 @@
+package e2e;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CommandStepTest extends TestCase {
+
+    public void testValueIsMaskedOutsideExecution() {
+        final CommandStep step = CommandStep.compile("set field -b id -s password -v hunter2", 3);
+        assertEquals("hunter2", step.getOption("v"));
+        assertEquals(CommandStep.MASK, step.getDisplayOptions().get("v"));
+        assertEquals("id", step.getDisplayOptions().get("b"));
+        assertEquals("第3行 set field -b id -s password -v " + CommandStep.MASK, step.toString());
+
+        final StepTiming stepTiming = new StepTiming("login.txt", step, 1_000_000, 0, 0, null);
+        assertFalse(String.valueOf(ShardProtocol.toMessage(stepTiming)).contains("hunter2"));
+    }
+
+    public void testLineWithoutValueIsUnchanged() {
+        final CommandStep step = CommandStep.compile("click -s submit -b id", 7);
+        assertEquals("第7行 click -s submit -b id", step.toString());
+        assertEquals(step.getOptions(), step.getDisplayOptions());
+    }
+
+    public void testBoundValuesShowVariableNames() {
+        final CommandStep template = CommandStep.compile("set field -b id -s ${field} -v ${password}", 2, true);
+        final Map<String, String> row = new HashMap<>();
+        row.put("field", "pwd");
+        row.put("password", "s3cret");
+        final CommandStep bound = template.bind(row);
+        assertEquals("s3cret", bound.getOption("v"));
+        assertEquals("${password}", bound.getDisplayOptions().get("v"));
+        assertEquals("${field}", bound.getDisplayOptions().get("s"));
+        assertFalse(bound.toString().contains("s3cret"));
+
+        final CommandStep literalValue = CommandStep.compile("set field -b id -s ${field} -v fixed", 4, true)
+                .bind(Collections.singletonMap("field", "pwd"));
+        assertEquals("第4行 set field -b id -s ${field} -v " + CommandStep.MASK, literalValue.toString());
+    }
+}
@@ -0,0 +1,183 @@
+package e2e;
+
+import com.sun.net.httpserver.HttpServer;
+import e2e.ConcurrencyController.Sample;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrencyControllerTest extends TestCase {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    // CPU 與記憶體不受跑測試的機器影響, 只看延遲與逾時
+    private static Properties properties(int max) {
+        final Properties properties = new Properties();
+        properties.setProperty("concurrency.min", "1");
+        properties.setProperty("concurrency.max", String.valueOf(max));
+        properties.setProperty("concurrency.decrease.percent", "50");
+        properties.setProperty("concurrency.cpu.percent.max", "101");
+        properties.setProperty("concurrency.memory.min.mb", "0");
+        return properties;
+    }
+
+    private static Sample healthy() {
+        return new Sample(100, 0, 1.0, 20, 8 * GB);
+    }
+
+    private static void fill(ConcurrencyController controller) throws InterruptedException {
+        for (int i = 0; i < controller.getLimit(); i++) {
+            controller.acquire();
+        }
+    }
+
+    private static void drain(ConcurrencyController controller, int count) {
+        for (int i = 0; i < count; i++) {
+            controller.release();
+        }
+    }
+
+    public void testRisesOnlyWhileSaturated() throws InterruptedException {
+        final ConcurrencyController controller = new ConcurrencyController(properties(8), 2, null);
+        fill(controller);
+        assertEquals(3, controller.adjust(healthy()));
+        drain(controller, 2);
+        // 空位沒用滿, 數據再好也不加
+        assertEquals(3, controller.adjust(healthy()));
+        fill(controller);
+        assertEquals(4, controller.adjust(healthy()));
+    }
+
+    public void testBacksOffOnLatencyTimeoutsAndMemory() throws InterruptedException {
+        final ConcurrencyController controller = new ConcurrencyController(properties(16), 8, null);
+        fill(controller);
+        assertEquals("延遲超過基準兩倍", 4, controller.adjust(new Sample(100, 0, 3.5, 20, 8 * GB)));
+        // 剛調降過的下一段期間還是調降前的負載, 先不動
+        assertEquals(4, controller.adjust(new Sample(100, 0, 3.5, 20, 8 * GB)));
+        assertEquals("逾時 10% 超過 5%", 2, controller.adjust(new Sample(100, 10, 1.0, 20, 8 * GB)));
+        final Properties properties = properties(16);
+        properties.setProperty("concurrency.memory.min.mb", "1024");
+        final ConcurrencyController lowMemory = new ConcurrencyController(properties, 8, null);
+        assertEquals(4, lowMemory.adjust(new Sample(100, 0, 1.0, 20, 512L * 1024 * 1024)));
+        assertEquals("記憶體不足時冷卻期間也繼續降", 2, lowMemory.adjust(new Sample(100, 0, 1.0, 20, 512L * 1024 * 1024)));
+    }
+
+    public void testNeverLeavesConfiguredRange() throws InterruptedException {
+        final ConcurrencyController controller = new ConcurrencyController(properties(3), 3, null);
+        fill(controller);
+        assertEquals(3, controller.adjust(healthy()));
+        for (int i = 0; i < 5; i++) {
+            controller.adjust(new Sample(100, 50, 1.0, 20, 8 * GB));
+        }
+        assertEquals(1, controller.getLimit());
+    }
+
+    // parallel 分支用的 tryAcquire 不等待, 也不搶在等待中的檔案前面
+    public void testTryAcquireCountsTowardLimit() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(properties(4), 2, null);
+        controller.acquire();
+        assertTrue(controller.tryAcquire());
+        assertFalse("已達上限", controller.tryAcquire());
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> waitingFile = executorService.submit(() -> {
+                controller.acquire();
+                return null;
+            });
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (controller.getWaiting() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            controller.release();
+            waitingFile.get(5, TimeUnit.SECONDS);
+            controller.release();
+            assertTrue(controller.tryAcquire());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // 真的打一個會變慢的 HTTP server: 快的時候一路加上去, 延遲變成十倍後調降
+    public void testRisesThenBacksOffAgainstSlowingServer() throws Exception {
+        final AtomicLong latencyMillis = new AtomicLong(20);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(latencyMillis.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] body = "ok".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        final ExecutorService workers = Executors.newCachedThreadPool();
+        try {
+            final URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            final CommandStep step = CommandStep.compile("goPage -p " + url, 1);
+            final ConcurrencyController controller = new ConcurrencyController(properties(6), 2, null);
+            int highest = controller.getLimit();
+            for (int window = 0; window < 4; window++) {
+                runWindow(controller, workers, url, step);
+                highest = Math.max(highest, controller.adjust(controller.sample()));
+            }
+            assertEquals("受測系統正常時加到上限", 6, highest);
+            latencyMillis.set(200);
+            runWindow(controller, workers, url, step);
+            assertEquals("延遲變成十倍後減半", 3, controller.adjust(controller.sample()));
+        } finally {
+            workers.shutdownNow();
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    // 比目前上限多一個 worker, 每個取得名額後打三次並把耗時交給控制器
+    private static void runWindow(ConcurrencyController controller, ExecutorService workers, URL url,
+                                  CommandStep step) throws Exception {
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i <= controller.getLimit(); i++) {
+            futures.add(workers.submit(() -> {
+                controller.acquire();
+                try {
+                    for (int request = 0; request < 3; request++) {
+                        final long start = System.nanoTime();
+                        get(url);
+                        controller.onStep(new StepTiming("load.txt", step, System.nanoTime() - start, 0, 0, null));
+                    }
+                } finally {
+                    controller.release();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void get(URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package e2e;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DaemonTest extends TestCase {
+    private final AtomicInteger quitCount = new AtomicInteger();
+
+    private Daemon newDaemon(Properties properties) {
+        properties.setProperty("daemon.port", "0");
+        return new Daemon(new File("."), properties, () -> FakeWebDrivers.create(quitCount));
+    }
+
+    public void testRequestsWithoutTokenAreRejected() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("daemon.token", "secret");
+        final Daemon daemon = newDaemon(properties);
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Integer> serving = executorService.submit(daemon::serve);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (daemon.getPort() < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            final Map<String, Object> run = ShardProtocol.message(ShardProtocol.RUN);
+            run.put("script", "goPage -p http://localhost/");
+            assertEquals(ShardProtocol.ERROR, send(daemon, run).get(ShardProtocol.TYPE));
+            run.put("token", "wrong");
+            assertEquals(ShardProtocol.ERROR, send(daemon, run).get(ShardProtocol.TYPE));
+            final Map<String, Object> shutdown = ShardProtocol.message(ShardProtocol.SHUTDOWN);
+            shutdown.put("token", "secret");
+            assertEquals(ShardProtocol.DONE, send(daemon, shutdown).get(ShardProtocol.TYPE));
+            assertEquals(Integer.valueOf(0), serving.get(10, TimeUnit.SECONDS));
+        } finally {
+            daemon.stop();
+            executorService.shutdownNow();
+        }
+    }
+
+    public void testRefusesNonLoopbackAddressWithoutToken() {
+        final Properties properties = new Properties();
+        properties.setProperty("daemon.bind.address", "0.0.0.0");
+        try {
+            newDaemon(properties).serve();
+            fail("沒有 token 不能監聽本機以外的位址");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("daemon.token"));
+        }
+    }
+
+    public void testFileOutsideRunDirectoryFails() throws IOException {
+        final Daemon daemon = newDaemon(new Properties());
+        final Map<String, Object> run = ShardProtocol.message(ShardProtocol.RUN);
+        run.put("file", "../conf/run.properties");
+        final StringWriter writer = new StringWriter();
+        assertFalse(daemon.execute(run, writer));
+        assertTrue(writer.toString(), writer.toString().contains("run 目錄內"));
+    }
+
+    // 送一個請求, 回傳第一個回應
+    private static Map<String, Object> send(Daemon daemon, Map<String, Object> request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", daemon.getPort());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            ShardProtocol.send(writer, request);
+            return ShardProtocol.read(reader);
+        }
+    }
+}
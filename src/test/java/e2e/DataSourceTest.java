@@ -0,0 +1,99 @@
+package e2e;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+public class DataSourceTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("e2e-data-").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private File write(String name, String content) throws IOException {
+        final File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    public void testCsvHeaderWithBom() throws IOException {
+        try (DataSource dataSource = DataSource.open(write("accounts.csv", "\uFEFFaccount,password\nalice,secret\n"))) {
+            assertEquals(new LinkedHashSet<>(Arrays.asList("account", "password")), dataSource.getColumns());
+            assertEquals("alice", dataSource.next().get("account"));
+        }
+    }
+
+    public void testCsvQuotedFields() throws IOException {
+        try (DataSource dataSource = DataSource.open(write("quoted.csv",
+                "name,note\r\n\"Lin, Amy\",\"say \"\"hi\"\"\"\n\n\"multi\",\"line one\nline two\"\nplain,\"\"\n"))) {
+            Map<String, String> row = dataSource.next();
+            assertEquals("Lin, Amy", row.get("name"));
+            assertEquals("say \"hi\"", row.get("note"));
+            row = dataSource.next();
+            assertEquals("line one\nline two", row.get("note"));
+            row = dataSource.next();
+            assertEquals("plain", row.get("name"));
+            assertEquals("", row.get("note"));
+            assertEquals(3, dataSource.getRowNumber());
+            assertFalse(dataSource.hasNext());
+        }
+    }
+
+    // 一列格式錯誤只影響那一列, 後面的列照常讀
+    public void testCsvBadRowDoesNotStopLaterRows() throws IOException {
+        try (DataSource dataSource = DataSource.open(write("bad.csv", "a,b\n1,2,3\n4,5\n\"6,7\n"))) {
+            try {
+                dataSource.next();
+                fail("欄位數量不符");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("第2行"));
+            }
+            assertTrue(dataSource.hasNext());
+            assertEquals("5", dataSource.next().get("b"));
+            try {
+                dataSource.next();
+                fail("引號沒有結尾");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("引號沒有結尾"));
+            }
+            assertEquals(3, dataSource.getRowNumber());
+            assertFalse(dataSource.hasNext());
+        }
+    }
+
+    public void testJsonLinesBadRowDoesNotStopLaterRows() throws IOException {
+        try (DataSource dataSource = DataSource.open(write("rows.jsonl",
+                "\uFEFF{\"user\":\"a\",\"tags\":[1,2]}\nnot json\n[1]\n{\"user\":\"b\",\"n\":null}\n"))) {
+            assertNull(dataSource.getColumns());
+            final Map<String, String> first = dataSource.next();
+            assertEquals("a", first.get("user"));
+            assertEquals("[1,2]", first.get("tags").replace(" ", "").replace("\n", ""));
+            for (String expected : new String[]{"不是合法的 JSON", "必須是 JSON 物件"}) {
+                try {
+                    dataSource.next();
+                    fail(expected);
+                } catch (RuntimeException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains(expected));
+                }
+            }
+            final Map<String, String> last = dataSource.next();
+            assertEquals("b", last.get("user"));
+            assertEquals("", last.get("n"));
+            assertFalse(dataSource.hasNext());
+        }
+    }
+}
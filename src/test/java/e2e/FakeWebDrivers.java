@@ -0,0 +1,49 @@
+package e2e;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchSessionException;
+import org.openqa.selenium.WebDriver;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 測試用的 WebDriver: 不開瀏覽器, 只回應 pool 重置 session 時會呼叫的方法; quit 之後的呼叫都會失敗
+final class FakeWebDrivers {
+    private FakeWebDrivers() {
+    }
+
+    static WebDriver create(AtomicInteger quitCount) {
+        final AtomicBoolean quit = new AtomicBoolean();
+        final WebDriver.Options options = (WebDriver.Options) Proxy.newProxyInstance(
+                FakeWebDrivers.class.getClassLoader(), new Class<?>[]{WebDriver.Options.class},
+                (proxy, method, args) -> null);
+        return (WebDriver) Proxy.newProxyInstance(FakeWebDrivers.class.getClassLoader(),
+                new Class<?>[]{WebDriver.class, JavascriptExecutor.class}, (proxy, method, args) -> {
+                    if (quit.get() && !"quit".equals(method.getName()) && method.getDeclaringClass() != Object.class) {
+                        throw new NoSuchSessionException("session 已關閉");
+                    }
+                    switch (method.getName()) {
+                        case "getWindowHandle":
+                            return "main";
+                        case "getWindowHandles":
+                            return Collections.singleton("main");
+                        case "manage":
+                            return options;
+                        case "quit":
+                            quit.set(true);
+                            quitCount.incrementAndGet();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "FakeWebDriver@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,223 @@
+package e2e;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Stack;
+
+import static e2e.EToE.APOSTROPHE;
+import static e2e.EToE.DASH_CHAR;
+import static e2e.EToE.DOUBLE_QUOTES;
+import static e2e.EToE.EMPTY_STRING;
+import static e2e.EToE.ESCAPE_CHARACTER;
+import static e2e.EToE.WHITE_SPACE_CHAR;
+
+// 改用 CmdOptionTokenizer 之前的 EToE.processCmdDetail, 原封不動保留給差異測試與 benchmark 當基準
+final class LegacyCmdOptionParser {
+    private LegacyCmdOptionParser() {
+    }
+
+    static Map<String, String> processCmdDetail(String command) {
+        boolean hasGoDash = false;
+        boolean isAfterOption = false;
+        Character doQuotesChar = null;
+        Stack<Character> stack = new Stack<>();// 左邊
+        Deque<Character> deque = new ArrayDeque<>();// 右邊
+        Map<String, String> outCome = new HashMap<>();
+        char[] commandCharArray = command.toCharArray();
+
+        for (char thisChar : commandCharArray) {
+            switch (thisChar) {
+                case WHITE_SPACE_CHAR:
+                    if (hasGoDash) {// 已經走過-
+                        if (stack.isEmpty()) {// 左邊的堆疊是空的
+                            throw new RuntimeException("不支援- ");
+                        } else if (!isAfterOption) {// 左邊
+                            isAfterOption = true;// 開啟變成右邊
+                        } else if (!deque.isEmpty() || doQuotesChar != null) {// 引號模式或右邊雙向佇列不為空
+                            deque.offer(thisChar);
+                        }
+                    }
+                    break;
+                case DASH_CHAR:
+                    if (!hasGoDash) {// 還沒走過-
+                        hasGoDash = true;
+                    } else if (!isAfterOption) {// 左邊
+                        throw new RuntimeException("不支援--,-X-");
+                    } else if (doQuotesChar != null) {// 右邊雙向佇列是"或'開頭
+                        deque.offer(thisChar);
+                    } else if (!deque.isEmpty() && deque.peekLast() != WHITE_SPACE_CHAR) {// 右邊雙向佇列不是空且最後一個不是空白字元
+                        throw new RuntimeException("不支援-X YYY-");
+                    } else {
+                        do {
+                            char last = stack.pop();
+                            if (!deque.isEmpty()) {
+                                StringBuilder stringBuilder = getDequeToStringBuilder(deque);
+                                String optionContent = stringBuilder.toString().trim();
+                                outCome.put(String.valueOf(last), optionContent);
+                            } else {
+                                outCome.put(String.valueOf(last), EMPTY_STRING);
+                            }
+                        } while (!stack.isEmpty());
+                        isAfterOption = false;// 設定為左邊
+                    }
+                    break;
+                case DOUBLE_QUOTES:
+                case APOSTROPHE:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            throw new RuntimeException("不支援-',-\",-X',-X\"");
+                        } else if (deque.isEmpty() && doQuotesChar == null) {// 右邊佇列是空的
+                            doQuotesChar = thisChar;// 開啟引號模式
+                        } else if (doQuotesChar != null && doQuotesChar == thisChar
+                                && isOpenEvenJump(deque.descendingIterator())) {// 結束引號模式
+                            do {
+                                char last = stack.pop();
+                                if (!deque.isEmpty()) {
+                                    StringBuilder stringBuilder = getDequeToStringBuilder(deque);
+                                    String optionContent = stringBuilder.toString();
+                                    outCome.put(String.valueOf(last), optionContent);
+                                } else {
+                                    outCome.put(String.valueOf(last), EMPTY_STRING);
+                                }
+                            } while (!stack.isEmpty());
+                            hasGoDash = false;// 設定未走過-
+                            isAfterOption = false;// 設定為左邊
+                            doQuotesChar = null;// 關閉引號模式
+                        } else {
+                            deque.offer(thisChar);
+                        }
+                    } else {
+                        throw new RuntimeException("不支援 指令和-中間有'or\"");
+                    }
+                    break;
+                case ESCAPE_CHARACTER:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            throw new RuntimeException("沒有支援-safsa\\");
+                        } else {
+                            deque.offer(thisChar);
+                        }
+                    } else {
+                        throw new RuntimeException("指令有問題");
+                    }
+                    break;
+                default:
+                    if (hasGoDash) {// 已走過-
+                        if (!isAfterOption) {// 左邊
+                            stack.push(thisChar);
+                        } else {
+                            deque.offer(thisChar);
+                        }
+                    } else {
+                        throw new RuntimeException("指令有問題");
+                    }
+                    break;
+            }
+        }
+        while (!stack.isEmpty()) {
+            char last = stack.pop();
+            if (!deque.isEmpty()) {
+                if (doQuotesChar != null) {
+                    Deque<Character> beforeDeque = new ArrayDeque<>();
+                    StringBuilder afterStringBuilder = new StringBuilder();
+                    boolean isWhiteSpace = false;
+                    boolean isAfter = false;
+                    beforeDeque.offer(doQuotesChar);
+                    do {
+                        char element = deque.poll();
+                        if (!isAfter) {
+                            if (!isWhiteSpace) {// 前一個不是' '
+                                if (element == WHITE_SPACE_CHAR) {
+                                    isWhiteSpace = true;
+                                } else if (element == DASH_CHAR) {
+                                    throw new RuntimeException("指令錯誤");
+                                } else {
+                                    beforeDeque.offer(element);
+                                }
+                            } else if (element == DASH_CHAR) {
+                                afterStringBuilder.append(element);
+                                isAfter = true;
+                            } else {
+                                beforeDeque.offer(WHITE_SPACE_CHAR);
+                                beforeDeque.offer(element);
+                                isWhiteSpace = false;
+                            }
+                        } else {
+                            afterStringBuilder.append(element);
+                        }
+                    } while (!deque.isEmpty());
+                    outCome.put(String.valueOf(last), getDequeToStringBuilder(beforeDeque).toString());
+                    outCome.putAll(processCmdDetail(afterStringBuilder.toString()));
+                } else {
+                    StringBuilder stringBuilder = getDequeToStringBuilder(deque);
+                    String optionContent = stringBuilder.toString().trim();
+                    outCome.put(String.valueOf(last), optionContent);
+                }
+            } else if (doQuotesChar != null) {
+                outCome.put(String.valueOf(last), doQuotesChar.toString());
+                doQuotesChar = null;
+            } else {
+                outCome.put(String.valueOf(last), EMPTY_STRING);
+            }
+        }
+        return outCome;
+    }
+
+    // 舊版解析器的跳脫規則, 原本在 EToE, 改用 CmdOptionTokenizer 後只剩這裡用到
+    static boolean isOpenEvenJump(Iterator<Character> iterator) {
+        boolean isEven = true;
+        while (iterator.hasNext() && iterator.next() == ESCAPE_CHARACTER) {
+            isEven = !isEven;
+        }
+        return isEven;
+    }
+
+    static StringBuilder getDequeToStringBuilder(Deque<Character> deque) {
+        StringBuilder stringBuilder = new StringBuilder();
+        boolean isJump = false;
+        while (!deque.isEmpty()) {
+            char element = deque.poll();
+            if (!isJump) {
+                if (element == ESCAPE_CHARACTER) {
+                    isJump = true;
+                } else {
+                    stringBuilder.append(element);
+                }
+            } else {
+                switch (element) {
+                    case 't':
+                        stringBuilder.append('\t');
+                        break;
+                    case 'n':
+                        stringBuilder.append('\n');
+                        break;
+                    case 'b':
+                        stringBuilder.append('\b');
+                        break;
+                    case 'f':
+                        stringBuilder.append('\f');
+                        break;
+                    case 'r':
+                        stringBuilder.append('\r');
+                        break;
+                    case ESCAPE_CHARACTER:
+                    case DOUBLE_QUOTES:
+                    case APOSTROPHE:
+                        stringBuilder.append(element);
+                        break;
+                    default:
+                        stringBuilder.append(ESCAPE_CHARACTER).append(element);
+                        break;
+                }
+                isJump = false;
+            }
+        }
+        if (isJump) {
+            stringBuilder.append(ESCAPE_CHARACTER);
+        }
+        return stringBuilder;
+    }
+}
@@ -0,0 +1,31 @@
+package e2e;
+
+import junit.framework.TestCase;
+import org.openqa.selenium.TimeoutException;
+
+import java.util.List;
+import java.util.Map;
+
+public class LoadRunnerTest extends TestCase {
+
+    // 逾時訊息每次的毫秒數都不同, 同一行同一種例外仍只算一組
+    @SuppressWarnings("unchecked")
+    public void testErrorsAreGroupedByTypeAndLine() {
+        final LoadRunner.LoadReport loadReport = new LoadRunner.LoadReport();
+        final CommandStep waitPage = CommandStep.compile("wait page -n", 3);
+        for (int i = 0; i < 100; i++) {
+            loadReport.recordJourney(1000, waitPage, new TimeoutException("等待逾時: 等了 " + (5000 + i) + " ms"), 1);
+        }
+        loadReport.recordJourney(1000, waitPage, new RuntimeException("HTTP 500"), 1);
+        loadReport.recordJourney(1000, null, new RuntimeException("無法啟動瀏覽器"), 1);
+        final List<Map<String, Object>> errors = (List<Map<String, Object>>) loadReport.toMap("a.txt", "browser", 1, 0,
+                1_000_000_000L).get("errors");
+        assertEquals(3, errors.size());
+        assertNull(errors.get(0).get("line"));
+        final Map<String, Object> timeouts = errors.stream()
+                .filter(error -> TimeoutException.class.getName().equals(error.get("type"))).findFirst().get();
+        assertEquals(3, timeouts.get("line"));
+        assertEquals(100L, timeouts.get("count"));
+        assertEquals(3, ((List<String>) timeouts.get("samples")).size());
+    }
+}
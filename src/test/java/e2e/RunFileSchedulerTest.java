@@ -0,0 +1,80 @@
+package e2e;
+
+import e2e.RunFileScheduler.RunFileResult;
+import e2e.RunFileScheduler.RunFileTask;
+import e2e.RunFileScheduler.Status;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RunFileSchedulerTest extends TestCase {
+    private final AtomicInteger quitCount = new AtomicInteger();
+
+    public void testTimeoutStopsFileAndDoesNotLeakInterrupt() {
+        try (WebDriverPool pool = new WebDriverPool(() -> FakeWebDrivers.create(quitCount), 0, 1)) {
+            final RunFileScheduler scheduler = new RunFileScheduler(pool, 1, 500, new RunReport(0));
+            final List<RunFileTask> tasks = new ArrayList<>();
+            tasks.add(new RunFileTask("slow", 2, 0, webDriver -> sleep(10_000)));
+            tasks.add(new RunFileTask("next", 1, 0, webDriver -> {
+                assertFalse("上一個檔案的逾時中斷不應該留到這個檔案", Thread.currentThread().isInterrupted());
+                webDriver.getWindowHandle();
+                sleep(100);
+            }));
+            final List<RunFileResult> results = scheduler.runAll(tasks);
+            assertEquals(Status.TIMEOUT, results.get(0).getStatus());
+            assertTrue(results.get(0).getElapsedMillis() < 5_000);
+            assertEquals(Status.SUCCESS, results.get(1).getStatus());
+            assertEquals("逾時的瀏覽器不放回 pool", 2, pool.getCreateCount());
+        }
+    }
+
+    // 檔案剛好在逾時前後結束: watchdog 不能中斷下一個檔案, 也不能關掉已歸還再借出的瀏覽器
+    public void testFinishRacingTimeout() {
+        final Random random = new Random(42);
+        try (WebDriverPool pool = new WebDriverPool(() -> FakeWebDrivers.create(quitCount), 0, 2)) {
+            final RunFileScheduler scheduler = new RunFileScheduler(pool, 2, 20, new RunReport(0));
+            final List<RunFileTask> tasks = new ArrayList<>();
+            for (int i = 0; i < 150; i++) {
+                final long sleepMillis = 15 + random.nextInt(11);
+                tasks.add(new RunFileTask("file" + i, 0, 0, webDriver -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new IllegalStateException("開始時已經是中斷狀態");
+                    }
+                    webDriver.getWindowHandle();
+                    sleep(sleepMillis);
+                    webDriver.getWindowHandle();
+                }));
+            }
+            int timeouts = 0;
+            for (RunFileResult result : scheduler.runAll(tasks)) {
+                if (result.getStatus() == Status.TIMEOUT) {
+                    timeouts++;
+                } else {
+                    assertEquals(result.getName() + " " + result.getError(), Status.SUCCESS, result.getStatus());
+                }
+            }
+            assertTrue("要同時測到逾時與成功, 逾時 " + timeouts, timeouts > 0 && timeouts < tasks.size());
+            assertEquals(timeouts, pool.getDiscardCount());
+        }
+    }
+
+    public void testEmptyRun() {
+        try (WebDriverPool pool = new WebDriverPool(() -> FakeWebDrivers.create(quitCount), 0, 1)) {
+            assertTrue(new RunFileScheduler(pool, 1, 0, new RunReport(0))
+                    .runAll(Collections.<RunFileTask>emptyList()).isEmpty());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("sleep 被中斷", e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package e2e;
+
+import e2e.RunFileScheduler.RunFileResult;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class ShardCoordinatorTest extends TestCase {
+
+    // 沒有本機 worker, 其他機器的 worker 也一直沒連上時, 等 shard.worker.wait.seconds 後把檔案記為失敗
+    public void testFailsRemainingEntriesWhenNoWorkerConnects() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("shard.workers.local", "0");
+        properties.setProperty("shard.worker.wait.seconds", "1");
+        final Map<String, Long> entries = new LinkedHashMap<>();
+        entries.put("a.txt", 10L);
+        entries.put("b.txt", 20L);
+        final long start = System.currentTimeMillis();
+        final List<RunFileResult> results = new ShardCoordinator(properties, new RunReport(0)).run(entries);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(2, results.size());
+        for (RunFileResult result : results) {
+            assertEquals(RunFileScheduler.Status.FAILED, result.getStatus());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package e2e;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StreamingRunnerTest extends TestCase {
+
+    public void testSplitsLikeCommandPlan() throws IOException {
+        final String[] samples = {"a\nb", "a\r\nb\r\n", "a\rb\nc", "\n\na\n", "a\r", "\r\n\r", "", "a\n\r\nb"};
+        for (String sample : samples) {
+            final List<String> lines = new ArrayList<>();
+            final StringBuilder buffer = new StringBuilder();
+            final StringReader reader = new StringReader(sample);
+            String line;
+            while ((line = StreamingRunner.readLine(reader, buffer)) != null) {
+                lines.add(line);
+            }
+            final List<String> expected = new ArrayList<>(Arrays.asList(sample.split("\r?\n")));
+            if (expected.size() == 1 && expected.get(0).isEmpty()) {
+                expected.clear();
+            }
+            assertEquals("[" + sample.replace("\r", "\\r").replace("\n", "\\n") + "]", expected, lines);
+        }
+    }
+
+    public void testValidateReportsSameLineNumbersAsCommandPlan() throws IOException {
+        final String planError = assertSameErrors(
+                "goPage -p http://localhost/\rclick -b bogus -s a\r\n-- 註解\nclick -b bogus -s b\n");
+        assertTrue(planError, planError.contains("第3行"));
+    }
+
+    public void testValidateReportsLoadStateWithoutLaterSave() throws IOException {
+        final String planError = assertSameErrors("load state -k login\ngoPage -p http://localhost/\n"
+                + "load state -k admin\nsave state -k admin\n");
+        assertTrue(planError, planError.contains("load state -k login : 之後沒有 save state -k login"));
+        assertFalse(planError, planError.contains("admin"));
+    }
+
+    public void testValidateReportsBlockStructure() throws IOException {
+        final String planError = assertSameErrors("parallel\nclick -b id -s a\njoin\nbranch\n"
+                + "parallel\nclick -b id -s b\n");
+        assertTrue(planError, planError.contains("branch 必須在 parallel 與 join 之間"));
+        assertTrue(planError, planError.contains("parallel 區塊缺少 join"));
+    }
+
+    // 串流模式和 CommandPlan 對同一份內容要回報相同的錯誤
+    private static String assertSameErrors(String content) throws IOException {
+        final File file = File.createTempFile("streaming", ".txt");
+        try {
+            Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            String planError = null;
+            try {
+                CommandPlan.compile(content);
+            } catch (RuntimeException e) {
+                planError = e.getMessage();
+            }
+            String streamingError = null;
+            try {
+                StreamingRunner.validate(file);
+            } catch (RuntimeException e) {
+                streamingError = e.getMessage();
+            }
+            assertNotNull(planError);
+            assertEquals(planError, streamingError);
+            return planError;
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package e2e;
+
+import junit.framework.TestCase;
+import org.openqa.selenium.WebDriver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebDriverPoolTest extends TestCase {
+    private final AtomicInteger quitCount = new AtomicInteger();
+
+    private WebDriverPool newPool(int maxSize) {
+        return new WebDriverPool(() -> FakeWebDrivers.create(quitCount), 0, maxSize);
+    }
+
+    public void testReleasedSessionIsReused() {
+        try (WebDriverPool pool = newPool(1)) {
+            final WebDriver first = pool.borrow();
+            pool.release(first);
+            assertSame(first, pool.borrow());
+            assertEquals(1, pool.getCreateCount());
+            assertEquals(1, pool.getReuseCount());
+        }
+    }
+
+    public void testDoubleReleaseDoesNotAddPermit() {
+        try (WebDriverPool pool = newPool(1)) {
+            final WebDriver webDriver = pool.borrow();
+            pool.release(webDriver);
+            pool.release(webDriver);
+            assertNotNull(pool.tryBorrow());
+            assertNull("重複歸還不應該多出空位", pool.tryBorrow());
+        }
+    }
+
+    public void testTryBorrowIdleDoesNotStartBrowser() {
+        try (WebDriverPool pool = newPool(2)) {
+            assertNull(pool.tryBorrowIdle());
+            assertEquals(0, pool.getCreateCount());
+            final WebDriver webDriver = pool.borrow();
+            pool.release(webDriver);
+            assertSame(webDriver, pool.tryBorrowIdle());
+            assertNull(pool.tryBorrowIdle());
+            assertNotNull("沒借到時不應該佔住空位", pool.tryBorrow());
+            assertEquals(2, pool.getCreateCount());
+        }
+    }
+
+    public void testReleaseAfterInvalidateIsIgnored() {
+        try (WebDriverPool pool = newPool(1)) {
+            final WebDriver webDriver = pool.borrow();
+            pool.invalidate(webDriver);
+            pool.release(webDriver);
+            assertEquals(1, quitCount.get());
+            final WebDriver next = pool.tryBorrow();
+            assertNotNull(next);
+            assertNotSame(webDriver, next);
+            assertNull(pool.tryBorrow());
+        }
+    }
+
+    public void testTrimIdleKeepsBorrowedSessions() {
+        try (WebDriverPool pool = newPool(3)) {
+            final WebDriver a = pool.borrow();
+            final WebDriver b = pool.borrow();
+            final WebDriver c = pool.borrow();
+            pool.release(b);
+            pool.release(c);
+            pool.trimIdle(1);
+            assertEquals(2, quitCount.get());
+            pool.release(a);
+            assertSame(a, pool.borrow());
+        }
+    }
+
+    public void testReleaseAfterCloseDoesNotQuitAgain() {
+        final WebDriverPool pool = newPool(2);
+        final WebDriver borrowed = pool.borrow();
+        pool.close();
+        assertEquals(1, quitCount.get());
+        pool.release(borrowed);
+        pool.invalidate(borrowed);
+        assertEquals("關閉時已 quit, 歸還時不再 quit", 1, quitCount.get());
+        assertEquals(1, pool.getDiscardCount());
+    }
+}